@@ -0,0 +1,69 @@
+package com.jmpl.j_jmpl;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how many bytes the tree-walk interpreter allocates while running arithmetic-heavy programs.
+ * Used to check that numeric code stays (mostly) allocation free.
+ * <p>
+ * Run with JMH's GC profiler, {@code gradle jmh -Pjmh='AllocationBenchmark -prof gc'}. Its {@code gc.alloc.rate.norm}
+ * is the bytes allocated per run, and each program loops {@link #ITERATIONS} times.
+ *
+ * @author Joel Luckett
+ * @version 0.1
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class AllocationBenchmark {
+    /** Number of loop iterations in each program. */
+    static final int ITERATIONS = 100000;
+
+    /** Sources of the programs being measured, by name. */
+    private static final Map<String, String> PROGRAMS = Map.of(
+        "sum", "let s = ∑(" + ITERATIONS + ", let i = 1) (i * i + 2 * i - 1) / 2;",
+        "while", "let i = 0; let s = 0; while i < " + ITERATIONS + " do ( s := s + (i * 2 - 1) * (i + 3); i := i + 1; )",
+        "compare", "let i = 0; let n = 10; while i < n * " + (ITERATIONS / 10) + " - 0 do i := i + 1;"
+    );
+
+    @Param({"sum", "while", "compare"})
+    public String program;
+
+    private List<Stmt> statements;
+
+    @Setup
+    public void setUp() {
+        ErrorReporter errors = new ErrorReporter(program);
+        statements = new Parser(new Scanner(PROGRAMS.get(program), errors), errors).parse();
+        new Resolver(errors).resolve(statements);
+
+        if(errors.hadError()) {
+            errors.print();
+            throw new IllegalStateException(program + ": could not be compiled");
+        }
+    }
+
+    @Benchmark
+    public Object interpret() {
+        Interpreter interpreter = new Interpreter();
+        interpreter.interpret(statements);
+        return interpreter;
+    }
+}
@@ -0,0 +1,187 @@
+package com.jmpl.j_jmpl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of each stage of the pipeline (scanning, parsing, resolving, optimising, interpreting and running
+ * on the VM) over the programs in {@code benchmarks}, reporting the average time per operation.
+ * <p>
+ * Each program is a value of the {@code program} parameter, so it is measured in forks of its own. A stage is given
+ * input made fresh by the stages before it, as resolving and optimising change the syntax tree they are given.
+ * Program output is discarded while benchmarking.
+ * <p>
+ * Run with {@code gradle jmh -Pjmh=PipelineBenchmark}, see the README.
+ *
+ * @author Joel Luckett
+ * @version 0.1
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class PipelineBenchmark {
+    /** The directory programs are read from, relative to the working directory. */
+    private static final Path CORPUS = Paths.get(System.getProperty("jmpl.corpus", "benchmarks"));
+
+    /**
+     * A program of the corpus, with the output of the stages that don't change what they are given.
+     */
+    @State(Scope.Benchmark)
+    public static class Program {
+        /** The name of the program's file in the corpus. */
+        @Param({"arrays.jmpl", "calls.jmpl", "comprehensions.jmpl", "fib.jmpl", "integers.jmpl", "loop.jmpl",
+                "ranges.jmpl", "recursion.jmpl", "sets.jmpl", "strings.jmpl", "sum.jmpl", "tail.jmpl"})
+        public String program;
+
+        String source;
+        List<Token> tokens;
+        /** The standard output, put back once the program has been benchmarked. */
+        private PrintStream out;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            source = new String(Files.readAllBytes(CORPUS.resolve(program)), JMPL.DEFAULT_CHARSET);
+            tokens = new Scanner(source, new ErrorReporter()).scanTokens();
+
+            // Fail now rather than benchmark a program that doesn't compile
+            ErrorReporter errors = new ErrorReporter(program);
+            new Resolver(errors).resolve(new Parser(tokens, errors).parse());
+            if(errors.hadError()) {
+                errors.print();
+                throw new IllegalStateException(program + ": could not be compiled");
+            }
+
+            // Discard anything the program outputs
+            out = System.out;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            System.setOut(out);
+        }
+
+        /**
+         * Parses the program into a new syntax tree.
+         *
+         * @return the statements of the program
+         */
+        List<Stmt> parse() {
+            return new Parser(tokens, new ErrorReporter()).parse();
+        }
+
+        /**
+         * Parses and resolves the program into a new syntax tree.
+         *
+         * @return the resolved statements of the program
+         */
+        List<Stmt> resolve() {
+            List<Stmt> statements = parse();
+            new Resolver(new ErrorReporter()).resolve(statements);
+
+            return statements;
+        }
+    }
+
+    /**
+     * A syntax tree that has just been parsed, for the resolver. Made for every invocation, as resolving changes it.
+     */
+    @State(Scope.Thread)
+    public static class Parsed {
+        List<Stmt> statements;
+
+        @Setup(Level.Invocation)
+        public void setUp(Program program) {
+            statements = program.parse();
+        }
+    }
+
+    /**
+     * A syntax tree that has just been resolved, for the optimiser. Made for every invocation, as optimising changes
+     * it.
+     */
+    @State(Scope.Thread)
+    public static class Resolved {
+        List<Stmt> statements;
+
+        @Setup(Level.Invocation)
+        public void setUp(Program program) {
+            statements = program.resolve();
+        }
+    }
+
+    /**
+     * A syntax tree put through the whole front end and its bytecode, for the engines. Running a program doesn't
+     * change them, so they are made once per fork.
+     */
+    @State(Scope.Thread)
+    public static class Compiled {
+        List<Stmt> statements;
+        CompiledFunction script;
+
+        @Setup(Level.Trial)
+        public void setUp(Program program) {
+            statements = program.resolve();
+            new Optimiser(false).optimise(statements);
+            script = new Compiler(new ErrorReporter()).compile(statements);
+        }
+    }
+
+    @Benchmark
+    public Object scan(Program program) {
+        return new Scanner(program.source, new ErrorReporter()).scanTokens();
+    }
+
+    @Benchmark
+    public Object parse(Program program) {
+        return program.parse();
+    }
+
+    @Benchmark
+    public Object resolve(Parsed parsed) {
+        new Resolver(new ErrorReporter()).resolve(parsed.statements);
+        return parsed.statements;
+    }
+
+    @Benchmark
+    public Object optimise(Resolved resolved) {
+        new Optimiser(false).optimise(resolved.statements);
+        return resolved.statements;
+    }
+
+    @Benchmark
+    public Object interpret(Compiled compiled) {
+        Interpreter interpreter = new Interpreter();
+        interpreter.interpret(compiled.statements);
+        return interpreter;
+    }
+
+    @Benchmark
+    public Object vm(Compiled compiled) {
+        VM vm = new VM(new Interpreter());
+        vm.interpret(compiled.script);
+        return vm;
+    }
+}
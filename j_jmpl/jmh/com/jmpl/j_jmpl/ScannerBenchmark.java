@@ -0,0 +1,104 @@
+package com.jmpl.j_jmpl;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures how fast the {@link Scanner} turns source code into tokens, in tokens and characters per second.
+ * <p>
+ * The programs in the corpus are repeated until the source is the requested size, so scanning takes long enough to
+ * measure and the keyword, identifier and operator mix matches real programs. Each operation scans the whole source.
+ * <p>
+ * Run with {@code gradle jmh -Pjmh=ScannerBenchmark}, see the README.
+ *
+ * @author Joel Luckett
+ * @version 0.1
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Benchmark)
+public class ScannerBenchmark {
+    /** The directory programs are read from, relative to the working directory. */
+    private static final Path CORPUS = Paths.get(System.getProperty("jmpl.corpus", "benchmarks"));
+
+    /** The size of the source in megabytes. */
+    @Param("16")
+    public int megabytes;
+
+    private String source;
+
+    /**
+     * Counts what is scanned, reported by JMH per second.
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Scanned {
+        public long tokens;
+        public long chars;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            tokens = 0;
+            chars = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        List<String> programs = new ArrayList<>();
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(CORPUS, "*.jmpl")) {
+            for(Path file : files) programs.add(new String(Files.readAllBytes(file), JMPL.DEFAULT_CHARSET));
+        }
+
+        if(programs.isEmpty()) throw new IllegalStateException(CORPUS + ": no programs found");
+
+        // Repeat the corpus until it is large enough
+        StringBuilder builder = new StringBuilder();
+        while(builder.length() < megabytes * (1 << 20)) {
+            for(String program : programs) builder.append(program).append('\n');
+        }
+        source = builder.toString();
+    }
+
+    /**
+     * Scans the source, pulling each token as the parser would.
+     *
+     * @param scanned   the counts of what has been scanned
+     * @param blackhole consumes the tokens so the JVM can't eliminate the work that produced them
+     */
+    @Benchmark
+    public void scan(Scanned scanned, Blackhole blackhole) {
+        Scanner scanner = new Scanner(source, new ErrorReporter());
+
+        while(scanner.hasNext()) {
+            blackhole.consume(scanner.next());
+            scanned.tokens++;
+        }
+
+        scanned.chars += source.length();
+    }
+}
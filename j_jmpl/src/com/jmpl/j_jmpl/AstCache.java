@@ -0,0 +1,680 @@
+package com.jmpl.j_jmpl;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Cache of resolved syntax trees, stored in a .jmplc file next to each source file so unchanged files don't have
+ * to be scanned, parsed and resolved again.
+ * <p>
+ * A cache file holds a hash of the source it was made from, and is only used if the source still has the same
+ * hash. Everything the resolver fills in (depths, slots, purity, calls, globals read and tail calls) is stored with
+ * the tree, so a loaded tree is ready to run. Only trees without errors are cached.
+ * <p>
+ * The format is a header (magic number, {@link #VERSION}, whether dead code was eliminated, source hash, and the
+ * length and CRC-32 of the body) followed by the body: the statements, written depth first as a tag for each node
+ * and then its fields. Each distinct string is written once and then referred to by its index. A body that doesn't
+ * match its length and checksum, or isn't read to its end, is damaged and the cache is ignored.
+ *
+ * @author Joel Luckett
+ * @version 0.1
+ */
+final class AstCache {
+    /** Extension of cache files, added to the source file's name. */
+    static final String EXTENSION = ".jmplc";
+    /** "JMPL" in ASCII. */
+    private static final int MAGIC = 0x4A4D504C;
+    /** Version of the format, which must be changed whenever it or the syntax tree changes so old caches are ignored. */
+    private static final int VERSION = 11;
+
+    /** Tag written for a missing (null) node. */
+    private static final int NONE = 0;
+
+    // Statement tags
+    private static final int BLOCK = 1, EXPRESSION = 2, FUNCTION = 3, IF = 4, OUTPUT = 5, RETURN = 6, LET = 7, WHILE = 8;
+
+    // Expression tags
+    private static final int ARRAY = 1, ASSIGN = 2, BINARY = 3, CALL = 4, COMPREHENSION = 5, GROUPING = 6, INDEX = 7,
+                             INDEX_ASSIGN = 8, LITERAL = 9, LOGICAL = 10, SEQUENCE_OP = 11, SET = 12, UNARY = 13,
+                             VARIABLE = 14;
+
+    // Literal value tags
+    private static final int NULL = 0, NUMBER = 1, STRING = 2, TRUE = 3, FALSE = 4, INTEGER = 5;
+
+    private AstCache() {}
+
+    /**
+     * Gets the path of the cache file for a source file.
+     *
+     * @param source the path of the source file
+     * @return       the path of its cache file
+     */
+    static Path path(Path source) {
+        return source.resolveSibling(source.getFileName() + EXTENSION);
+    }
+
+    /**
+     * Hashes source code, to check if a cache was made from it.
+     *
+     * @param source the bytes of the source code, from its position to its limit, which are left unchanged
+     * @return       the SHA-256 hash of the source
+     */
+    static byte[] hash(ByteBuffer source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(source.duplicate());
+            return digest.digest();
+        } catch(NoSuchAlgorithmException e) {
+            // Every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Loads a cached syntax tree.
+     *
+     * @param cache             the path of the cache file
+     * @param hash              the hash of the current source code
+     * @param eliminateDeadCode whether the statements must have had dead code eliminated
+     * @param file              the name of the source file given to the tokens, or null to leave it out
+     * @return                  the resolved statements, or null if there's no cache or it is out of date or unreadable
+     */
+    static List<Stmt> load(Path cache, byte[] hash, boolean eliminateDeadCode, String file) {
+        if(!Files.isRegularFile(cache)) return null;
+
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cache)))) {
+            if(in.readInt() != MAGIC || in.readInt() != VERSION || in.readBoolean() != eliminateDeadCode) return null;
+
+            byte[] cached = new byte[hash.length];
+            in.readFully(cached);
+            if(!Arrays.equals(cached, hash)) return null;
+
+            // Check the body is all there, with nothing after it, before allocating room for it
+            int length = in.readInt();
+            int checksum = in.readInt();
+            if(length < 0 || length > Files.size(cache)) return null;
+
+            byte[] body = new byte[length];
+            in.readFully(body);
+            if(in.read() != -1 || checksum(body) != checksum) return null;
+
+            ByteArrayInputStream bodyIn = new ByteArrayInputStream(body);
+            List<Stmt> statements = new Reader(new DataInputStream(bodyIn), file).statements();
+
+            // A body that ends before it has all been read isn't the one that was written
+            return bodyIn.available() == 0 ? statements : null;
+        } catch(IOException | RuntimeException e) {
+            // A damaged cache is the same as no cache, it gets written again
+            return null;
+        }
+    }
+
+    /**
+     * Writes a syntax tree to a cache file. Failing to write it isn't an error, as the cache is only an optimisation.
+     *
+     * @param cache             the path of the cache file
+     * @param hash              the hash of the source code the statements were compiled from
+     * @param eliminateDeadCode whether dead code was eliminated from the statements
+     * @param statements        the resolved statements
+     */
+    static void store(Path cache, byte[] hash, boolean eliminateDeadCode, List<Stmt> statements) {
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream bodyOut = new DataOutputStream(body);
+            new Writer(bodyOut).statements(statements);
+            bodyOut.flush();
+            byte[] bodyBytes = body.toByteArray();
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeBoolean(eliminateDeadCode);
+            out.write(hash);
+            out.writeInt(bodyBytes.length);
+            out.writeInt(checksum(bodyBytes));
+            out.write(bodyBytes);
+            out.flush();
+
+            // Written to a temporary file and moved, so a cache is never seen half written
+            Path temporary = Files.createTempFile(cache.toAbsolutePath().getParent(), cache.getFileName().toString(), ".tmp");
+            try {
+                Files.write(temporary, bytes.toByteArray());
+                Files.move(temporary, cache, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        } catch(IOException | UncheckedIOException | UnsupportedOperationException e) {
+            // Leave the cache out, such as when the directory can't be written to
+        }
+    }
+
+    /**
+     * Finds the checksum of a cache's body, to check it hasn't been damaged.
+     *
+     * @param body the bytes of the body
+     * @return     the CRC-32 of the body
+     */
+    private static int checksum(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int)crc.getValue();
+    }
+
+    //#region Writing
+
+    /**
+     * Writes syntax trees, visiting each node.
+     */
+    private static class Writer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private final DataOutputStream out;
+        /** Index of each string written so far. */
+        private final Map<String, Integer> strings = new HashMap<>();
+
+        Writer(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void statements(List<Stmt> statements) throws IOException {
+            out.writeInt(statements.size());
+            for(Stmt statement : statements) write(statement);
+        }
+
+        private void write(Stmt stmt) {
+            if(stmt == null) {
+                tag(NONE);
+            } else {
+                stmt.accept(this);
+            }
+        }
+
+        private void write(Expr expr) {
+            if(expr == null) {
+                tag(NONE);
+            } else {
+                expr.accept(this);
+            }
+        }
+
+        /**
+         * Writes a tag or small number.
+         *
+         * @param tag the tag
+         */
+        private void tag(int tag) {
+            try {
+                out.writeByte(tag);
+            } catch(IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void integer(int value) {
+            try {
+                out.writeInt(value);
+            } catch(IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void bool(boolean value) {
+            tag(value ? 1 : 0);
+        }
+
+        /**
+         * Writes a string, in full the first time and by index after that.
+         *
+         * @param string the string
+         */
+        private void string(String string) {
+            Integer index = strings.get(string);
+
+            if(index != null) {
+                integer(index);
+                return;
+            }
+
+            strings.put(string, strings.size());
+            integer(strings.size() - 1);
+
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            integer(bytes.length);
+            try {
+                out.write(bytes);
+            } catch(IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void strings(List<String> list) {
+            integer(list.size());
+            for(String string : list) string(string);
+        }
+
+        private void token(Token token) {
+            tag(token.type.ordinal());
+            string(token.lexeme);
+            value(token.literal);
+            integer(token.line);
+        }
+
+        /**
+         * Writes a literal value.
+         *
+         * @param value the value, which must be null, a number, a string or a boolean
+         */
+        private void value(Object value) {
+            try {
+                if(value == null) {
+                    tag(NULL);
+                } else if(value instanceof Double) {
+                    tag(NUMBER);
+                    out.writeDouble((Double)value);
+                } else if(value instanceof BigInteger) {
+                    // Large integers are written as their digits
+                    tag(INTEGER);
+                    string(value.toString());
+                } else if(value instanceof String) {
+                    tag(STRING);
+                    string((String)value);
+                } else if(value instanceof Boolean) {
+                    tag((Boolean)value ? TRUE : FALSE);
+                } else {
+                    throw new UnsupportedOperationException("Can't cache a literal of " + value.getClass());
+                }
+            } catch(IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            tag(BLOCK);
+            integer(stmt.statements.size());
+            for(Stmt statement : stmt.statements) write(statement);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            tag(EXPRESSION);
+            write(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            tag(FUNCTION);
+            token(stmt.name);
+            integer(stmt.params.size());
+            for(Token param : stmt.params) token(param);
+            write(stmt.body);
+            bool(stmt.memo);
+            bool(stmt.pure);
+            strings(stmt.calls);
+            strings(stmt.globals);
+            integer(stmt.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            tag(IF);
+            write(stmt.condition);
+            write(stmt.thenBranch);
+            write(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitOutputStmt(Stmt.Output stmt) {
+            tag(OUTPUT);
+            write(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            tag(RETURN);
+            token(stmt.keyword);
+            write(stmt.value);
+            return null;
+        }
+
+        @Override
+        public Void visitLetStmt(Stmt.Let stmt) {
+            tag(LET);
+            token(stmt.name);
+            write(stmt.initialiser);
+            integer(stmt.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            tag(WHILE);
+            write(stmt.condition);
+            write(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitArrayExpr(Expr.Array expr) {
+            tag(ARRAY);
+            token(expr.bracket);
+            integer(expr.elements.size());
+            for(Expr element : expr.elements) write(element);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            tag(ASSIGN);
+            token(expr.name);
+            write(expr.value);
+            integer(expr.depth);
+            integer(expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            tag(BINARY);
+            write(expr.left);
+            token(expr.operator);
+            write(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            tag(CALL);
+            write(expr.callee);
+            token(expr.paren);
+            integer(expr.arguments.size());
+            for(Expr argument : expr.arguments) write(argument);
+            bool(expr.tail);
+            return null;
+        }
+
+        @Override
+        public Void visitComprehensionExpr(Expr.Comprehension expr) {
+            tag(COMPREHENSION);
+            token(expr.brace);
+            token(expr.name);
+            write(expr.source);
+            write(expr.predicate);
+            write(expr.element);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            tag(GROUPING);
+            write(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitIndexExpr(Expr.Index expr) {
+            tag(INDEX);
+            write(expr.array);
+            token(expr.bracket);
+            write(expr.index);
+            return null;
+        }
+
+        @Override
+        public Void visitIndexAssignExpr(Expr.IndexAssign expr) {
+            tag(INDEX_ASSIGN);
+            write(expr.array);
+            token(expr.bracket);
+            write(expr.index);
+            write(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            tag(LITERAL);
+            value(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            tag(LOGICAL);
+            write(expr.left);
+            token(expr.operator);
+            write(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitSequenceOpExpr(Expr.SequenceOp expr) {
+            tag(SEQUENCE_OP);
+            token(expr.name);
+            write(expr.upper);
+            write(expr.lower);
+            write(expr.summand);
+            integer(expr.depth);
+            integer(expr.slot);
+            bool(expr.pure);
+            strings(expr.calls);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            tag(SET);
+            token(expr.brace);
+            integer(expr.elements.size());
+            for(Expr element : expr.elements) write(element);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            tag(UNARY);
+            token(expr.operator);
+            write(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            tag(VARIABLE);
+            token(expr.name);
+            integer(expr.depth);
+            integer(expr.slot);
+            return null;
+        }
+    }
+
+    //#endregion
+
+    //#region Reading
+
+    /**
+     * Reads syntax trees written by {@link Writer}, in the same order.
+     */
+    private static class Reader {
+        private static final TokenType[] TOKEN_TYPES = TokenType.values();
+
+        private final DataInputStream in;
+        /** Name of the source file, which isn't stored as it can be named differently each run. */
+        private final String file;
+        /** Strings read so far, by index. */
+        private final List<String> strings = new ArrayList<>();
+
+        Reader(DataInputStream in, String file) {
+            this.in = in;
+            this.file = file;
+        }
+
+        List<Stmt> statements() throws IOException {
+            int count = in.readInt();
+            List<Stmt> statements = new ArrayList<>(count);
+            for(int i = 0; i < count; i++) statements.add(statement());
+
+            return statements;
+        }
+
+        private Stmt statement() throws IOException {
+            switch(in.readByte()) {
+                case NONE: return null;
+                case BLOCK: {
+                    int count = in.readInt();
+                    List<Stmt> statements = new ArrayList<>(count);
+                    for(int i = 0; i < count; i++) statements.add(statement());
+
+                    return new Stmt.Block(statements);
+                }
+                case EXPRESSION: return new Stmt.Expression(expression());
+                case FUNCTION: {
+                    Token name = token();
+                    int count = in.readInt();
+                    List<Token> params = new ArrayList<>(count);
+                    for(int i = 0; i < count; i++) params.add(token());
+
+                    Stmt.Function function = new Stmt.Function(name, params, statement(), in.readBoolean());
+                    function.pure = in.readBoolean();
+                    function.calls = strings();
+                    function.globals = strings();
+                    function.slot = in.readInt();
+                    return function;
+                }
+                case IF: return new Stmt.If(expression(), statement(), statement());
+                case OUTPUT: return new Stmt.Output(expression());
+                case RETURN: return new Stmt.Return(token(), expression());
+                case LET: {
+                    Stmt.Let let = new Stmt.Let(token(), expression());
+                    let.slot = in.readInt();
+                    return let;
+                }
+                case WHILE: return new Stmt.While(expression(), statement());
+                default: throw new IOException("Unknown statement tag");
+            }
+        }
+
+        private Expr expression() throws IOException {
+            switch(in.readByte()) {
+                case NONE: return null;
+                case ARRAY: {
+                    Token bracket = token();
+                    int count = in.readInt();
+                    List<Expr> elements = new ArrayList<>(count);
+                    for(int i = 0; i < count; i++) elements.add(expression());
+
+                    return new Expr.Array(bracket, elements);
+                }
+                case ASSIGN: {
+                    Expr.Assign assign = new Expr.Assign(token(), expression());
+                    assign.depth = in.readInt();
+                    assign.slot = in.readInt();
+                    return assign;
+                }
+                case BINARY: return new Expr.Binary(expression(), token(), expression());
+                case CALL: {
+                    Expr callee = expression();
+                    Token paren = token();
+                    int count = in.readInt();
+                    List<Expr> arguments = new ArrayList<>(count);
+                    for(int i = 0; i < count; i++) arguments.add(expression());
+
+                    Expr.Call call = new Expr.Call(callee, paren, arguments);
+                    call.tail = in.readBoolean();
+                    return call;
+                }
+                case COMPREHENSION: return new Expr.Comprehension(token(), token(), expression(), expression(), expression());
+                case GROUPING: return new Expr.Grouping(expression());
+                case INDEX: return new Expr.Index(expression(), token(), expression());
+                case INDEX_ASSIGN: return new Expr.IndexAssign(expression(), token(), expression(), expression());
+                case LITERAL: return new Expr.Literal(value());
+                case LOGICAL: return new Expr.Logical(expression(), token(), expression());
+                case SEQUENCE_OP: {
+                    Expr.SequenceOp sum = new Expr.SequenceOp(token(), expression(), statement(), expression());
+                    sum.depth = in.readInt();
+                    sum.slot = in.readInt();
+                    sum.pure = in.readBoolean();
+                    sum.calls = strings();
+                    return sum;
+                }
+                case SET: {
+                    Token brace = token();
+                    int count = in.readInt();
+                    List<Expr> elements = new ArrayList<>(count);
+                    for(int i = 0; i < count; i++) elements.add(expression());
+
+                    return new Expr.Set(brace, elements);
+                }
+                case UNARY: return new Expr.Unary(token(), expression());
+                case VARIABLE: {
+                    Expr.Variable variable = new Expr.Variable(token());
+                    variable.depth = in.readInt();
+                    variable.slot = in.readInt();
+                    return variable;
+                }
+                default: throw new IOException("Unknown expression tag");
+            }
+        }
+
+        private Token token() throws IOException {
+            return new Token(TOKEN_TYPES[in.readUnsignedByte()], string(), value(), in.readInt(), file);
+        }
+
+        private Object value() throws IOException {
+            switch(in.readByte()) {
+                case NULL: return null;
+                case NUMBER: return in.readDouble();
+                case STRING: return string();
+                case INTEGER: return new BigInteger(string());
+                case TRUE: return true;
+                case FALSE: return false;
+                default: throw new IOException("Unknown value tag");
+            }
+        }
+
+        private String string() throws IOException {
+            int index = in.readInt();
+            if(index < strings.size()) return strings.get(index);
+
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+
+            String string = new String(bytes, StandardCharsets.UTF_8);
+            strings.add(string);
+            return string;
+        }
+
+        private List<String> strings() throws IOException {
+            int count = in.readInt();
+            List<String> list = new ArrayList<>(count);
+            for(int i = 0; i < count; i++) list.add(string());
+
+            return list;
+        }
+    }
+
+    //#endregion
+}
@@ -0,0 +1,95 @@
+package com.jmpl.j_jmpl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A chunk of bytecode for the j-jmpl {@link VM}. Stores the instructions, a constant pool and the source line of each byte.
+ * 
+ * @author Joel Luckett
+ * @version 0.1
+ */
+class Chunk {
+    /** The instructions and their operands. */
+    byte[] code = new byte[64];
+    /** The source line of each byte in {@link #code}. Used to report runtime errors. */
+    int[] lines = new int[64];
+    /** Number of bytes written to the chunk. */
+    int count = 0;
+    /** Constants referenced by the instructions. */
+    final List<Object> constants = new ArrayList<>();
+    /** Name of the file the chunk was compiled from, used to report runtime errors. Null if it is left out. */
+    final String file;
+
+    Chunk(String file) {
+        this.file = file;
+    }
+
+    /**
+     * Appends a byte to the chunk.
+     * 
+     * @param b    the byte to append
+     * @param line the source line the byte was compiled from
+     */
+    void write(int b, int line) {
+        if(count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+
+        code[count] = (byte)b;
+        lines[count] = line;
+        count++;
+    }
+
+    /** The constant pool as an array, built once the chunk is complete. */
+    private Object[] constantArray;
+    /** The globals looked up by the instructions, by the constant index of their names. */
+    private Environment.Global[] globals;
+    /** The environment that stores the globals that have been looked up. */
+    private Environment globalsOwner;
+
+    /**
+     * Gets the constant pool as an array for fast indexing. Must only be called once the chunk has been compiled.
+     * 
+     * @return the constants of the chunk
+     */
+    Object[] constants() {
+        if(constantArray == null) constantArray = constants.toArray();
+        return constantArray;
+    }
+
+    /**
+     * Gets the storage of a global named by a constant, looking it up only the first time it is used.
+     * 
+     * @param index       the constant index of the name token of the global
+     * @param environment the environment that stores globals
+     * @return            the storage of the global, or null if it is undefined
+     */
+    Environment.Global global(int index, Environment environment) {
+        if(globalsOwner != environment) {
+            globals = new Environment.Global[constants.size()];
+            globalsOwner = environment;
+        }
+
+        Environment.Global global = globals[index];
+        if(global == null) {
+            global = environment.global(((Token)constants.get(index)).lexeme);
+            globals[index] = global;
+        }
+
+        return global;
+    }
+
+    /**
+     * Adds a value to the constant pool.
+     * 
+     * @param value the constant value
+     * @return      the index of the constant in the pool
+     */
+    int addConstant(Object value) {
+        constants.add(value);
+        return constants.size() - 1;
+    }
+}
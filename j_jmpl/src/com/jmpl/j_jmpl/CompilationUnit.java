@@ -0,0 +1,138 @@
+package com.jmpl.j_jmpl;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * A piece of source code put through the front end (scanned, parsed, resolved, optimised and, for the VM, compiled
+ * to bytecode) on its own.
+ * <p>
+ * Units share nothing while they are compiled, as each has its own {@link ErrorReporter}, so several files can be
+ * compiled in parallel and then run one after another. Names are resolved to globals when the code runs, so a
+ * unit can use functions declared by the units run before it.
+ *
+ * @author Joel Luckett
+ * @version 0.1
+ */
+class CompilationUnit {
+    final ErrorReporter errors;
+    /** Whether dead code is eliminated, see {@link Optimiser}. */
+    private final boolean eliminateDeadCode;
+    /** The resolved statements, null if the unit hasn't been compiled or had an error. */
+    private List<Stmt> statements;
+    /** The compiled script for the VM, null if it wasn't compiled to bytecode. */
+    private CompiledFunction script;
+
+    /**
+     * Creates a compilation unit.
+     *
+     * @param name              the name shown in error messages, or null to leave it out
+     * @param eliminateDeadCode whether to eliminate dead code
+     */
+    CompilationUnit(String name, boolean eliminateDeadCode) {
+        this.errors = new ErrorReporter(name);
+        this.eliminateDeadCode = eliminateDeadCode;
+    }
+
+    /**
+     * Puts source code through the front end, stopping at the first stage that reports an error.
+     *
+     * @param  source      a reader of the source code
+     * @param  bytecode    whether to compile the code for the VM
+     * @throws IOException if an I/O error occurs reading the source
+     */
+    void compile(Reader source, boolean bytecode) throws IOException {
+        try {
+            List<Stmt> parsed = new Parser(new Scanner(source, errors), errors).parse();
+
+            // Stop if there is a syntax error
+            if(errors.hadError()) return;
+
+            new Resolver(errors).resolve(parsed);
+
+            // Stop if there is a resolution error
+            if(errors.hadError()) return;
+
+            new Optimiser(eliminateDeadCode).optimise(parsed);
+
+            // Locals after a removed declaration are in different slots now
+            if(eliminateDeadCode) new Resolver(errors).resolve(parsed);
+
+            if(bytecode) {
+                script = new Compiler(errors).compile(parsed);
+
+                // Stop if there is a compile error
+                if(errors.hadError()) return;
+            }
+
+            statements = parsed;
+        } catch(UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Compiles a file, using its {@link AstCache} if it is up to date and writing one if it isn't.
+     *
+     * @param  path        the path of the file
+     * @param  bytecode    whether to compile the code for the VM
+     * @param  cache       whether to use the cache
+     * @throws IOException if an I/O error occurs reading the file
+     */
+    void compile(Path path, boolean bytecode, boolean cache) throws IOException {
+        // Files too large to map in one go are streamed instead, and aren't cached
+        if(Files.size(path) > Integer.MAX_VALUE) {
+            try(Reader source = new InputStreamReader(Files.newInputStream(path), JMPL.DEFAULT_CHARSET)) {
+                compile(source, bytecode);
+            }
+            return;
+        }
+
+        // The file is mapped and decoded as the parser needs it, rather than read into memory first
+        ByteBuffer bytes = Utf8Reader.map(path);
+        if(!cache) {
+            compile(new Utf8Reader(bytes), bytecode);
+            return;
+        }
+
+        Path cachePath = AstCache.path(path);
+        byte[] hash = AstCache.hash(bytes);
+        List<Stmt> cached = AstCache.load(cachePath, hash, eliminateDeadCode, errors.name());
+
+        if(cached != null) {
+            // Already resolved, so only the bytecode is left to compile
+            if(bytecode) {
+                script = new Compiler(errors).compile(cached);
+                if(errors.hadError()) return;
+            }
+
+            statements = cached;
+            return;
+        }
+
+        compile(new Utf8Reader(bytes), bytecode);
+        if(statements != null) AstCache.store(cachePath, hash, eliminateDeadCode, statements);
+    }
+
+    /**
+     * Runs the unit, if it compiled without errors.
+     *
+     * @param interpreter the interpreter to run the statements in
+     * @param vm          the VM to run the bytecode in, null to use the interpreter
+     */
+    void run(Interpreter interpreter, VM vm) {
+        if(statements == null) return;
+
+        if(vm != null) {
+            vm.interpret(script);
+        } else {
+            interpreter.interpret(statements);
+        }
+    }
+}
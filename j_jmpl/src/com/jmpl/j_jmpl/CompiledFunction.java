@@ -0,0 +1,34 @@
+package com.jmpl.j_jmpl;
+
+/**
+ * A function compiled to bytecode by the {@link Compiler}. The top-level script is compiled as a function with no name.
+ * 
+ * @author Joel Luckett
+ * @version 0.1
+ */
+class CompiledFunction {
+    /** The name token of the function, null for the top-level script. */
+    final Token name;
+    final int arity;
+    /** The declaration the function was compiled from, null for the top-level script. */
+    final Stmt.Function declaration;
+    final Chunk chunk;
+    /** Number of slots the function's locals take in its call frame, starting with the parameters. */
+    int slots = 0;
+    /** For each upvalue, whether it captures a local of the enclosing function rather than one of its upvalues. */
+    boolean[] capturesLocal;
+    /** For each upvalue, the slot or upvalue of the enclosing function it captures. */
+    int[] captureIndices;
+
+    CompiledFunction(Token name, int arity, Stmt.Function declaration, String file) {
+        this.name = name;
+        this.arity = arity;
+        this.declaration = declaration;
+        this.chunk = new Chunk(file);
+    }
+
+    @Override
+    public String toString() {
+        return name == null ? "<script>" : "<fn " + name.lexeme + ">";
+    }
+}
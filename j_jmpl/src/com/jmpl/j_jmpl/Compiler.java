@@ -0,0 +1,849 @@
+package com.jmpl.j_jmpl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compiler class for j-jmpl. Uses the Visitor pattern to compile a resolved AST into bytecode for the {@link VM}.
+ * <p>
+ * Globals are found by name, as the {@link Resolver} leaves them. Every local of a function gets its own slot in the
+ * function's call frame, and locals of enclosing functions are captured as upvalues, so scopes cost nothing at
+ * runtime. The resolver has already checked the program, so a local is found by searching the scopes the compiler
+ * has open, innermost first, just as the resolver did.
+ *
+ * @author Joel Luckett
+ * @version 0.1
+ */
+class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    /** Largest operand that fits in two bytes. */
+    private static final int MAX_OPERAND = 0xffff;
+
+    /** The function currently being compiled. */
+    private FunctionState current;
+    /** The source line of the node being compiled. */
+    private int line = 1;
+    private final ErrorReporter errors;
+
+    /**
+     * A local variable of the function being compiled.
+     */
+    private static class Local {
+        final String name;
+        /** The depth of the scope the local was declared in. */
+        final int depth;
+        /** The slot of the local in its function's call frame. */
+        final int slot;
+        /** Whether a nested function captures the local, so its upvalue has to be closed when the scope ends. */
+        boolean captured = false;
+        /** Whether the local was declared as the branch of an if or while statement, and might not be defined. */
+        boolean conditional = false;
+
+        Local(String name, int depth, int slot) {
+            this.name = name;
+            this.depth = depth;
+            this.slot = slot;
+        }
+    }
+
+    /**
+     * The state of a function that is being compiled, linked to the state of the function enclosing it.
+     */
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final CompiledFunction function;
+        /** The locals in scope, innermost last. */
+        final List<Local> locals = new ArrayList<>();
+        /** For each upvalue, whether it captures a local of the enclosing function rather than one of its upvalues. */
+        final List<Boolean> capturesLocal = new ArrayList<>();
+        /** For each upvalue, the slot or upvalue of the enclosing function it captures. */
+        final List<Integer> captureIndices = new ArrayList<>();
+        /** Number of scopes enclosing the code being compiled. Zero means globals. */
+        int scopeDepth;
+
+        FunctionState(FunctionState enclosing, CompiledFunction function, int scopeDepth) {
+            this.enclosing = enclosing;
+            this.function = function;
+            this.scopeDepth = scopeDepth;
+        }
+    }
+
+    /**
+     * Creates a compiler.
+     *
+     * @param errors the reporter of compile errors
+     */
+    Compiler(ErrorReporter errors) {
+        this.errors = errors;
+    }
+
+    /**
+     * Compiles a list of statements as the top-level script.
+     *
+     * @param statements the list of statements
+     * @return           the compiled script, or null if there was a compile error
+     */
+    CompiledFunction compile(List<Stmt> statements) {
+        current = new FunctionState(null, new CompiledFunction(null, 0, null, errors.name()), 0);
+
+        for(Stmt statement : statements) {
+            compile(statement);
+        }
+
+        emit(OpCode.NULL);
+        emit(OpCode.RETURN);
+
+        CompiledFunction script = endFunction();
+        return errors.hadError() ? null : script;
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    /**
+     * Compiles a statement so it leaves its value on the stack, following the implicit return rules of
+     * {@link Interpreter#executeBlock(List, Environment)}.
+     *
+     * @param stmt the statement to compile
+     */
+    private void compileValue(Stmt stmt) {
+        if(stmt instanceof Stmt.Expression) {
+            // The value of an expression statement is its expression
+            compile(((Stmt.Expression)stmt).expression);
+        } else if(stmt instanceof Stmt.Block) {
+            // The value of a block is the value of its last statement
+            List<Stmt> statements = ((Stmt.Block)stmt).statements;
+
+            beginScope();
+            for(int i = 0; i < statements.size() - 1; i++) {
+                compile(statements.get(i));
+            }
+
+            if(statements.isEmpty()) {
+                emit(OpCode.NULL);
+            } else {
+                compileValue(statements.get(statements.size() - 1));
+            }
+            endScope();
+        } else {
+            // Anything else has no value
+            compile(stmt);
+            emit(OpCode.NULL);
+        }
+    }
+
+    //#region Scopes and Variables
+
+    /**
+     * Starts compiling a nested function, whose parameters are its first locals.
+     *
+     * @param name        the name token of the function
+     * @param params      the parameter tokens of the function
+     * @param declaration the declaration of the function
+     */
+    private void beginFunction(Token name, List<Token> params, Stmt.Function declaration) {
+        current = new FunctionState(current, new CompiledFunction(name, params.size(), declaration, errors.name()), 1);
+
+        for(Token param : params) {
+            addLocal(param);
+        }
+    }
+
+    /**
+     * Finishes compiling the current function and returns to the function enclosing it.
+     *
+     * @return the compiled function
+     */
+    private CompiledFunction endFunction() {
+        CompiledFunction function = current.function;
+
+        function.capturesLocal = new boolean[current.capturesLocal.size()];
+        function.captureIndices = new int[current.captureIndices.size()];
+        for(int i = 0; i < function.capturesLocal.length; i++) {
+            function.capturesLocal[i] = current.capturesLocal.get(i);
+            function.captureIndices[i] = current.captureIndices.get(i);
+        }
+
+        current = current.enclosing;
+        return function;
+    }
+
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+
+    /**
+     * Ends a scope, closing the upvalues of its captured locals so closures keep the values they had when the scope
+     * ended.
+     * <p>
+     * Locals that might not have been defined are cleared as well. Their slots are reused each time the scope is
+     * entered again (like a loop body), and the tree-walking interpreter gives a new scope a fresh set of slots.
+     */
+    private void endScope() {
+        current.scopeDepth--;
+
+        int firstCaptured = -1;
+        List<Local> conditional = new ArrayList<>();
+        while(!current.locals.isEmpty() && current.locals.get(current.locals.size() - 1).depth > current.scopeDepth) {
+            Local local = current.locals.remove(current.locals.size() - 1);
+
+            if(local.captured) firstCaptured = local.slot;
+            if(local.conditional) conditional.add(local);
+        }
+
+        if(firstCaptured != -1) emit(OpCode.CLOSE_UPVALUES, firstCaptured);
+        for(Local local : conditional) {
+            emit(OpCode.NULL);
+            emit(OpCode.STORE_LOCAL, local.slot);
+        }
+    }
+
+    /**
+     * Adds a local to the current scope, in a slot of its own.
+     *
+     * @param name the token of the local's identifier
+     * @return     the local
+     */
+    private Local addLocal(Token name) {
+        Local local = new Local(name.lexeme, current.scopeDepth, current.function.slots++);
+        current.locals.add(local);
+
+        return local;
+    }
+
+    /**
+     * Finds a local of a function by name.
+     *
+     * @param state the function
+     * @param name  the name of the local
+     * @return      the innermost local with the name, or null if there isn't one
+     */
+    private static Local findLocal(FunctionState state, String name) {
+        for(int i = state.locals.size() - 1; i >= 0; i--) {
+            if(state.locals.get(i).name.equals(name)) return state.locals.get(i);
+        }
+
+        return null;
+    }
+
+    /**
+     * Finds a local of an enclosing function by name, capturing it as an upvalue of every function in between.
+     *
+     * @param state the function that uses the local
+     * @param name  the name of the local
+     * @return      the index of the upvalue in the function, or -1 if no enclosing function has the local
+     */
+    private static int resolveUpvalue(FunctionState state, String name) {
+        if(state.enclosing == null) return -1;
+
+        Local local = findLocal(state.enclosing, name);
+        if(local != null) {
+            local.captured = true;
+            return addUpvalue(state, true, local.slot);
+        }
+
+        int upvalue = resolveUpvalue(state.enclosing, name);
+        if(upvalue != -1) return addUpvalue(state, false, upvalue);
+
+        return -1;
+    }
+
+    /**
+     * Adds an upvalue to a function, reusing an existing one if it captures the same variable.
+     *
+     * @param state the function
+     * @param local whether the upvalue captures a local of the enclosing function rather than one of its upvalues
+     * @param index the slot or upvalue of the enclosing function
+     * @return      the index of the upvalue
+     */
+    private static int addUpvalue(FunctionState state, boolean local, int index) {
+        for(int i = 0; i < state.capturesLocal.size(); i++) {
+            if(state.capturesLocal.get(i) == local && state.captureIndices.get(i) == index) return i;
+        }
+
+        state.capturesLocal.add(local);
+        state.captureIndices.add(index);
+
+        return state.capturesLocal.size() - 1;
+    }
+
+    /**
+     * Emits the instruction to define a variable from the value on top of the stack.
+     *
+     * @param name the token of the variable's identifier
+     */
+    private void defineVariable(Token name) {
+        if(current.scopeDepth > 0) {
+            emit(OpCode.STORE_LOCAL, addLocal(name).slot);
+        } else {
+            emit(OpCode.DEFINE_GLOBAL, makeConstant(name));
+        }
+    }
+
+    /**
+     * Emits an instruction that uses a resolved variable, which is either a local of the current function, a local
+     * of an enclosing function or a global.
+     *
+     * @param name      the token of the variable's identifier
+     * @param depth     the resolved depth of the variable
+     * @param localOp   the instruction if the variable is a local of the current function
+     * @param upvalueOp the instruction if the variable is captured from an enclosing function
+     * @param globalOp  the instruction if the variable is a global
+     */
+    private void emitVariable(Token name, int depth, byte localOp, byte upvalueOp, byte globalOp) {
+        if(depth == Resolver.GLOBAL) {
+            emit(globalOp, makeConstant(name));
+            return;
+        }
+
+        Local local = findLocal(current, name.lexeme);
+        if(local != null) {
+            emit(localOp, local.slot);
+            return;
+        }
+
+        int upvalue = resolveUpvalue(current, name.lexeme);
+        if(upvalue == -1) {
+            errors.error(name.line, ErrorType.IDENTIFIER, "Undefined identifier '" + name.lexeme + "'");
+            return;
+        }
+
+        emit(upvalueOp, upvalue);
+    }
+
+    /**
+     * Emits the instruction to get a resolved variable.
+     *
+     * @param name  the token of the variable's identifier
+     * @param depth the resolved depth of the variable
+     */
+    private void getVariable(Token name, int depth) {
+        emitVariable(name, depth, OpCode.GET_LOCAL, OpCode.GET_UPVALUE, OpCode.GET_GLOBAL);
+    }
+
+    /**
+     * Emits the instruction to assign the value on top of the stack to a resolved variable.
+     *
+     * @param name  the token of the variable's identifier
+     * @param depth the resolved depth of the variable
+     */
+    private void setVariable(Token name, int depth) {
+        emitVariable(name, depth, OpCode.SET_LOCAL, OpCode.SET_UPVALUE, OpCode.SET_GLOBAL);
+    }
+
+    /**
+     * Compiles the branch of an if or while statement. If the branch is a declaration, its local might never be
+     * defined, see {@link #endScope()}.
+     *
+     * @param branch the branch
+     */
+    private void compileBranch(Stmt branch) {
+        int declared = current.locals.size();
+        compile(branch);
+
+        for(int i = declared; i < current.locals.size(); i++) {
+            current.locals.get(i).conditional = true;
+        }
+    }
+
+    //#endregion
+
+    //#region Expressions
+
+    @Override
+    public Void visitArrayExpr(Expr.Array expr) {
+        for(Expr element : expr.elements) {
+            compile(element);
+        }
+
+        line = expr.bracket.line;
+        emit(OpCode.BUILD_ARRAY, expr.elements.size());
+
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+
+        line = expr.name.line;
+        setVariable(expr.name, expr.depth);
+
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+
+        line = expr.operator.line;
+        switch(expr.operator.type) {
+            case TokenType.GREATER: emit(OpCode.GREATER); break;
+            case TokenType.GREATER_EQUAL: emit(OpCode.GREATER_EQUAL); break;
+            case TokenType.LESS: emit(OpCode.LESS); break;
+            case TokenType.LESS_EQUAL: emit(OpCode.LESS_EQUAL); break;
+            case TokenType.MINUS: emit(OpCode.SUBTRACT); break;
+            case TokenType.PLUS: emit(OpCode.ADD); break;
+            case TokenType.ASTERISK: emit(OpCode.MULTIPLY); break;
+            case TokenType.SLASH: emit(OpCode.DIVIDE); break;
+            case TokenType.CARET: emit(OpCode.POWER); break;
+            case TokenType.NOT_EQUAL: emit(OpCode.NOT_EQUAL); break;
+            case TokenType.EQUAL_EQUAL: emit(OpCode.EQUAL); break;
+            case TokenType.IN: emit(OpCode.IN); break;
+            case TokenType.UNION: emit(OpCode.UNION); break;
+            case TokenType.INTERSECTION: emit(OpCode.INTERSECTION); break;
+            case TokenType.DIFFERENCE: emit(OpCode.DIFFERENCE); break;
+            case TokenType.DOT_DOT: emit(OpCode.RANGE); break;
+            default:
+                // Unknown operators evaluate to null
+                emit(OpCode.POP);
+                emit(OpCode.POP);
+                emit(OpCode.NULL);
+                break;
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        compile(expr.callee);
+
+        for(Expr argument : expr.arguments) {
+            compile(argument);
+        }
+
+        line = expr.paren.line;
+        emit(OpCode.CALL);
+        emitByte(expr.arguments.size());
+
+        return null;
+    }
+
+    @Override
+    public Void visitSequenceOpExpr(Expr.SequenceOp expr) {
+        line = expr.name.line;
+
+        if(expr.name.type != TokenType.SUMMATION) {
+            emit(OpCode.NULL);
+            return null;
+        }
+
+        compile(expr.upper);
+
+        // Evaluate the lower bound, leaving the index on the stack
+        boolean declaresIndex = expr.lower instanceof Stmt.Let;
+        Token index;
+        if(declaresIndex) {
+            beginScope();
+            index = ((Stmt.Let)expr.lower).name;
+            compile(((Stmt.Let)expr.lower).initialiser);
+
+            line = expr.name.line;
+            emit(OpCode.SET_LOCAL, addLocal(index).slot);
+        } else {
+            index = ((Expr.Assign)((Stmt.Expression)expr.lower).expression).name;
+            compile(((Stmt.Expression)expr.lower).expression);
+        }
+
+        compile(expr.summand);
+
+        // Long pure summations are summed in chunks, as the interpreter sums them in parallel
+        line = expr.name.line;
+        emit(OpCode.SUM_BEGIN, makeConstant(declaresIndex && expr.pure ? expr.calls : null));
+
+        // Add the summand, step the index and re-evaluate the summand until the index passes the upper bound
+        int loopStart = current.function.chunk.count;
+        emit(OpCode.SUM_ADD);
+        setVariable(index, expr.depth);
+        emit(OpCode.POP);
+        int exitJump = emitJump(OpCode.SUM_NEXT);
+
+        compile(expr.summand);
+
+        line = expr.name.line;
+        emitLoop(OpCode.LOOP, loopStart);
+        patchJump(exitJump);
+
+        if(declaresIndex) endScope();
+
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        for(Expr element : expr.elements) {
+            compile(element);
+        }
+
+        line = expr.brace.line;
+        emit(OpCode.BUILD_SET, expr.elements.size());
+
+        return null;
+    }
+
+    @Override
+    public Void visitComprehensionExpr(Expr.Comprehension expr) {
+        compile(expr.source);
+
+        // The predicate and element are compiled into a function of the variable, which gives the element or SKIP
+        Stmt.Function declaration = new Stmt.Function(expr.name, List.of(expr.name), null, false);
+        beginFunction(expr.name, declaration.params, declaration);
+
+        int skipJump = -1;
+        if(expr.predicate != null) {
+            compile(expr.predicate);
+            skipJump = emitJump(OpCode.POP_JUMP_IF_FALSE);
+        }
+
+        if(expr.element != null) {
+            compile(expr.element);
+        } else {
+            line = expr.name.line;
+            emit(OpCode.GET_LOCAL, 0);
+        }
+        emit(OpCode.RETURN);
+
+        if(skipJump != -1) {
+            patchJump(skipJump);
+            emit(OpCode.CONSTANT, makeConstant(LazySet.SKIP));
+            emit(OpCode.RETURN);
+        }
+
+        CompiledFunction compiled = endFunction();
+
+        line = expr.brace.line;
+        emit(OpCode.CLOSURE, makeConstant(compiled));
+        if(expr.brace.type == TokenType.LEFT_SQUARE) {
+            emit(OpCode.ARRAY_COMPREHENSION);
+        } else {
+            emit(OpCode.COMPREHENSION, expr.element != null ? 1 : 0);
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitIndexExpr(Expr.Index expr) {
+        compile(expr.array);
+        compile(expr.index);
+
+        line = expr.bracket.line;
+        emit(OpCode.INDEX);
+
+        return null;
+    }
+
+    @Override
+    public Void visitIndexAssignExpr(Expr.IndexAssign expr) {
+        compile(expr.array);
+        compile(expr.index);
+        compile(expr.value);
+
+        line = expr.bracket.line;
+        emit(OpCode.SET_INDEX);
+
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if(expr.value == null) {
+            emit(OpCode.NULL);
+        } else if(expr.value.equals(true)) {
+            emit(OpCode.TRUE);
+        } else if(expr.value.equals(false)) {
+            emit(OpCode.FALSE);
+        } else {
+            emit(OpCode.CONSTANT, makeConstant(expr.value));
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+
+        if(expr.operator.type == TokenType.OR) {
+            // OR - keep the left operand if it is truthful
+            int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+            int endJump = emitJump(OpCode.JUMP);
+
+            patchJump(elseJump);
+            emit(OpCode.POP);
+            compile(expr.right);
+
+            patchJump(endJump);
+        } else {
+            // AND - keep the left operand if it is not truthful
+            int endJump = emitJump(OpCode.JUMP_IF_FALSE);
+
+            emit(OpCode.POP);
+            compile(expr.right);
+
+            patchJump(endJump);
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+
+        line = expr.operator.line;
+        switch(expr.operator.type) {
+            case TokenType.MINUS: emit(OpCode.NEGATE); break;
+            case TokenType.NOT: emit(OpCode.NOT); break;
+            case TokenType.HASHTAG: emit(OpCode.CARDINALITY); break;
+            case TokenType.SUMMATION: emit(OpCode.SUM_ELEMENTS); break;
+            default:
+                // Unknown operators evaluate to null
+                emit(OpCode.POP);
+                emit(OpCode.NULL);
+                break;
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        line = expr.name.line;
+        getVariable(expr.name, expr.depth);
+
+        return null;
+    }
+
+    //#endregion
+
+    //#region Statements
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for(Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
+
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        if(stmt.expression instanceof Expr.Assign) {
+            // The value of an assignment statement is unused, so store it without keeping a copy on the stack
+            Expr.Assign assign = (Expr.Assign)stmt.expression;
+            compile(assign.value);
+
+            line = assign.name.line;
+            emitVariable(assign.name, assign.depth, OpCode.STORE_LOCAL, OpCode.STORE_UPVALUE, OpCode.STORE_GLOBAL);
+
+            return null;
+        }
+
+        compile(stmt.expression);
+        emit(OpCode.POP);
+
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        line = stmt.name.line;
+
+        // A local function is declared before its body is compiled, so the body can capture it to call itself
+        Local local = current.scopeDepth > 0 ? addLocal(stmt.name) : null;
+
+        // Compile the body into its own chunk, in the scope holding the parameters
+        beginFunction(stmt.name, stmt.params, stmt);
+        compileValue(stmt.body);
+        emit(OpCode.RETURN);
+
+        CompiledFunction compiled = endFunction();
+
+        line = stmt.name.line;
+        emit(OpCode.CLOSURE, makeConstant(compiled));
+        if(local != null) {
+            emit(OpCode.STORE_LOCAL, local.slot);
+        } else {
+            emit(OpCode.DEFINE_GLOBAL, makeConstant(stmt.name));
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+
+        int elseJump = emitJump(OpCode.POP_JUMP_IF_FALSE);
+        compileBranch(stmt.thenBranch);
+
+        int endJump = emitJump(OpCode.JUMP);
+
+        patchJump(elseJump);
+        if(stmt.elseBranch != null) compileBranch(stmt.elseBranch);
+
+        patchJump(endJump);
+
+        return null;
+    }
+
+    @Override
+    public Void visitOutputStmt(Stmt.Output stmt) {
+        compile(stmt.expression);
+        emit(OpCode.OUTPUT);
+
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        line = stmt.keyword.line;
+
+        if(stmt.value != null) {
+            compile(stmt.value);
+        } else {
+            emit(OpCode.NULL);
+        }
+
+        emit(OpCode.RETURN);
+
+        return null;
+    }
+
+    @Override
+    public Void visitLetStmt(Stmt.Let stmt) {
+        if(stmt.initialiser != null) {
+            compile(stmt.initialiser);
+        } else {
+            emit(OpCode.NULL);
+        }
+
+        line = stmt.name.line;
+        defineVariable(stmt.name);
+
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = current.function.chunk.count;
+        compile(stmt.condition);
+
+        int exitJump = emitJump(OpCode.POP_JUMP_IF_FALSE);
+        compileBranch(stmt.body);
+        emitLoop(OpCode.LOOP, loopStart);
+
+        patchJump(exitJump);
+
+        return null;
+    }
+
+    //#endregion
+
+    //#region Emitting Bytecode
+
+    private void emitByte(int b) {
+        current.function.chunk.write(b, line);
+    }
+
+    private void emitShort(int operand) {
+        if(operand > MAX_OPERAND) {
+            errors.error(line, ErrorType.SYNTAX, "Too many constants or variables in one function");
+        }
+
+        emitByte((operand >> 8) & 0xff);
+        emitByte(operand & 0xff);
+    }
+
+    /**
+     * Emits an instruction and its two-byte operands.
+     *
+     * @param op       the instruction
+     * @param operands the operands of the instruction
+     */
+    private void emit(byte op, int... operands) {
+        emitByte(op);
+
+        for(int operand : operands) {
+            emitShort(operand);
+        }
+    }
+
+    /**
+     * Adds a value to the constant pool of the current chunk.
+     *
+     * @param value the constant value
+     * @return      the index of the constant
+     */
+    private int makeConstant(Object value) {
+        return current.function.chunk.addConstant(value);
+    }
+
+    /**
+     * Emits a forward jump with a placeholder offset to be patched later.
+     *
+     * @param op the jump instruction
+     * @return   the position of the offset to patch
+     */
+    private int emitJump(byte op) {
+        emitByte(op);
+        emitByte(0xff);
+        emitByte(0xff);
+
+        return current.function.chunk.count - 2;
+    }
+
+    /**
+     * Sets the offset of a forward jump to land on the next instruction to be emitted.
+     *
+     * @param offset the position of the offset to patch
+     */
+    private void patchJump(int offset) {
+        // -2 to adjust for the bytecode of the jump offset itself
+        int jump = current.function.chunk.count - offset - 2;
+
+        if(jump > MAX_OPERAND) {
+            errors.error(line, ErrorType.SYNTAX, "Too much code to jump over");
+        }
+
+        current.function.chunk.code[offset] = (byte)((jump >> 8) & 0xff);
+        current.function.chunk.code[offset + 1] = (byte)(jump & 0xff);
+    }
+
+    /**
+     * Emits a backward jump to the start of a loop.
+     *
+     * @param op        the jump instruction
+     * @param loopStart the position of the start of the loop
+     */
+    private void emitLoop(byte op, int loopStart) {
+        emitByte(op);
+
+        // +2 to also jump over the offset itself
+        int offset = current.function.chunk.count - loopStart + 2;
+        if(offset > MAX_OPERAND) {
+            errors.error(line, ErrorType.SYNTAX, "Loop body too large");
+        }
+
+        emitByte((offset >> 8) & 0xff);
+        emitByte(offset & 0xff);
+    }
+
+    //#endregion
+}
@@ -1,37 +1,86 @@
 package com.jmpl.j_jmpl;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Environment class for j-jmpl. Stores variables that are being used by the program as key-value pairs in a HashMap.
+ * Environment class for j-jmpl. Stores variables that are being used by the program.
+ * <p>
+ * Globals are late bound so they are stored by name in a HashMap, each in a {@link Global} that the {@link VM} can
+ * keep hold of once it has looked it up. Locals are stored in an array of slots, with each slot index assigned by the
+ * {@link Resolver}.
  * 
  * @author Joel Luckett
  * @version 0.1
  */
 class Environment {
+    /** Initial number of slots allocated for a local scope. */
+    private static final int INITIAL_SLOTS = 8;
+
     /** This environment's enclosing environment (higher scope). */
     final Environment enclosing;
-    /** Map to store all variables as name-value pairs. */
-    private final Map<String, Object> values = new HashMap<>();
+    /** Map to store global variables by name. Null for local scopes. */
+    private final Map<String, Global> values;
+    /** Array to store local variables by slot index. Null for the global scope, and until a local is defined. */
+    private Object[] slots;
+    /** Names of the globals read by memoised functions. Null for local scopes. */
+    private final Set<String> memoReads;
+    /** Number of times a global read by a memoised function has been assigned, see {@link #memoEpoch()}. */
+    private int memoEpoch = 0;
+
+    /**
+     * The storage of a global variable. A global is never removed or redefined, so it can be looked up once.
+     */
+    static final class Global {
+        Object value;
+        /** Whether a memoised function reads the global, see {@link Environment#watch(List)}. */
+        boolean watched;
+
+        Global(Object value, boolean watched) {
+            this.value = value;
+            this.watched = watched;
+        }
+    }
 
     Environment() {
         enclosing = null;
+        values = new HashMap<>();
+        memoReads = ConcurrentHashMap.newKeySet();
     }
 
     Environment(Environment enclosing) {
         this.enclosing = enclosing;
+        values = null;
+        memoReads = null;
+    }
+
+    /**
+     * Creates the scope of a function call, whose parameters are its first slots.
+     * 
+     * @param enclosing the function's closure
+     * @param arguments the arguments of the call, which are used as the slots without being copied
+     */
+    Environment(Environment enclosing, Object[] arguments) {
+        this.enclosing = enclosing;
+        values = null;
+        slots = arguments;
+        memoReads = null;
     }
 
     /**
-     * Gets the value of a stored variable by its name. Throws an error if variable is undefined.
+     * Gets the value of a stored global variable by its name. Throws an error if variable is undefined.
      * 
      * @param name the token of the variable to get
      * @return     the value of the variable if it exists
      */
     Object get(Token name) {
-        if(values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
+        if(values != null) {
+            Global global = values.get(name.lexeme);
+            if(global != null) return global.value;
         }
 
         // If there is an enclosing scope, get the variable from that if it cannot be found here
@@ -41,14 +90,37 @@ class Environment {
     }
 
     /**
-     * Assigns a value to a stored variable.
+     * Gets the value of a stored global variable by its name, without throwing an error if it is undefined.
+     * 
+     * @param name the name of the variable to get
+     * @return     the value of the variable, or null if it is undefined
+     */
+    Object find(String name) {
+        if(values != null && values.containsKey(name)) return values.get(name).value;
+        if(enclosing != null) return enclosing.find(name);
+
+        return null;
+    }
+
+    /**
+     * Gets the storage of a global variable, so it can be read and written without looking it up again.
+     * 
+     * @param name the name of the variable
+     * @return     the variable's storage, or null if it is undefined
+     */
+    Global global(String name) {
+        return values.get(name);
+    }
+
+    /**
+     * Assigns a value to a stored global variable.
      * 
      * @param name  the token of the variable to assign to
      * @param value the value to be assigned to the variable
      */
     void assign(Token name, Object value) {
-        if(values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
+        if(values != null && values.containsKey(name.lexeme)) {
+            assign(values.get(name.lexeme), value);
             return;
         }
 
@@ -62,15 +134,35 @@ class Environment {
     }
 
     /**
-     * Defines a new variable by binding a name to a value and adding it to the map.
+     * Assigns a value to a global variable whose storage has already been looked up.
+     * 
+     * @param global the storage of the variable
+     * @param value  the value to be assigned to the variable
+     */
+    void assign(Global global, Object value) {
+        global.value = value;
+        if(global.watched) memoEpoch++;
+    }
+
+    /**
+     * Defines a new variable. Globals are bound by name, locals are put in the slot the {@link Resolver} gave them.
+     * <p>
+     * Slots are written directly rather than filled in order, as a declaration that is skipped (like a function
+     * declared in an if statement's branch) still has a slot.
      * 
      * @param name  the name of the variable
+     * @param slot  the slot of the variable, ignored for globals
      * @param value the value of the variable
      */
-    void define(Token name, Object value) {
+    void define(Token name, int slot, Object value) {
+        if(values == null) {
+            setSlot(slot, value);
+            return;
+        }
+
         // Only check if this scope defines the variable already
         if(!values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
+            values.put(name.lexeme, new Global(value, memoReads.contains(name.lexeme)));
             return;
         }
 
@@ -94,25 +186,67 @@ class Environment {
     }
 
     /**
-     * Get a variable in an environment at a certain distance
+     * Get a local variable in an environment at a certain distance.
      * 
      * @param distance the number of scopes between the current and the target
-     * @param name     the name of the variable to get
+     * @param slot     the slot index of the variable in the target scope
      * @return         the value of the variable
      */
-    Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+    Object getAt(int distance, int slot) {
+        Object[] slots = ancestor(distance).slots;
+
+        // A declaration that was skipped leaves its variable null, and the scope might not have allocated its slot
+        return slots != null && slot < slots.length ? slots[slot] : null;
     }
 
     /**
-     * Assigns a value to a stored variable in a target scope.
+     * Assigns a value to a stored local variable in a target scope.
      * 
      * @param distance the distance between the current scope and the variable target scope
-     * @param name     the token of the variable to assign to
+     * @param slot     the slot index of the variable in the target scope
      * @param value    the value to be assigned to the variable
      */
-    void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+    void assignAt(int distance, int slot, Object value) {
+        ancestor(distance).setSlot(slot, value);
+    }
+
+    /**
+     * Puts a value in a slot of a local scope, allocating the slot if it hasn't been.
+     * 
+     * @param slot  the slot index of the variable
+     * @param value the value of the variable
+     */
+    private void setSlot(int slot, Object value) {
+        // Slots are allocated lazily so scopes without locals (like most loop bodies) don't allocate them
+        if(slots == null) slots = new Object[Math.max(slot + 1, INITIAL_SLOTS)];
+        else if(slot >= slots.length) slots = Arrays.copyOf(slots, Math.max(slot + 1, slots.length * 2));
+        slots[slot] = value;
+    }
+
+    /**
+     * Records the globals a memoised function reads, so its cached results can be thrown away when one of them is
+     * assigned. The resolver rejects memoised functions that read globals assigned in the same file, but another
+     * file or line of the REPL can still assign them.
+     * 
+     * @param names the names of the globals
+     */
+    void watch(List<String> names) {
+        memoReads.addAll(names);
+
+        for(String name : names) {
+            Global global = values.get(name);
+            if(global != null) global.watched = true;
+        }
+    }
+
+    /**
+     * Gets a count that changes whenever a global read by a memoised function is assigned. Memo caches made at a
+     * different count might hold out of date results.
+     * 
+     * @return the number of assignments to globals read by memoised functions
+     */
+    int memoEpoch() {
+        return memoEpoch;
     }
 
     /**
@@ -122,6 +256,6 @@ class Environment {
      * @param value the value of the native variable
      */
     void defineNative(String name, Object value) {
-        values.put(name, value);
+        values.put(name, new Global(value, false));
     }
 }
@@ -0,0 +1,132 @@
+package com.jmpl.j_jmpl;
+
+import java.io.IOException;
+import java.nio.charset.CharacterCodingException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the compile errors found by the scanner, parser, resolver and compiler for one compilation unit.
+ * <p>
+ * Each unit has its own reporter, so front ends compiling several files in parallel don't share any state, and
+ * the errors can be printed in the order the files were given once they are all compiled.
+ *
+ * @author Joel Luckett
+ * @version 0.1
+ */
+class ErrorReporter {
+    /** Name of the file shown in each message, or null to leave it out. */
+    private final String name;
+    /** Messages of the errors found so far, in the order they were found. */
+    private final List<String> errors = new ArrayList<>();
+
+    ErrorReporter() {
+        this(null);
+    }
+
+    /**
+     * Creates a reporter for a named file.
+     *
+     * @param name the name shown in each message, or null to leave it out
+     */
+    ErrorReporter(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Reports a syntax error at a given line.
+     *
+     * @param line    the line number where the error occured
+     * @param type    the type of error
+     * @param message the message detailing the error
+     */
+    void error(int line, ErrorType type, String message) {
+        report(line, type, "", message);
+    }
+
+    /**
+     * Overload of {@link #error(int, ErrorType, String)} to report an error at a given token.
+     *
+     * @param token   the error token
+     * @param type    the type of error
+     * @param message the error message
+     */
+    void error(Token token, ErrorType type, String message) {
+        if(token.type == TokenType.EOF) {
+            report(token.line, type, " at end", message);
+        } else {
+            report(token.line, type, " at '" + token.lexeme + "'", message);
+        }
+    }
+
+    /**
+     * Reports a file of the unit that couldn't be read.
+     *
+     * @param path  the path of the file
+     * @param error the error reading it
+     */
+    void error(Path path, IOException error) {
+        String reason;
+        if(error instanceof NoSuchFileException) reason = "no such file";
+        else if(error instanceof AccessDeniedException) reason = "permission denied";
+        else if(error instanceof CharacterCodingException) reason = "not valid UTF-8";
+        else if(error instanceof FileSystemException && ((FileSystemException)error).getReason() != null) reason = ((FileSystemException)error).getReason();
+        else reason = error.getMessage();
+
+        // There's no line to show, only the file's name
+        String location = name == null ? "" : "[" + name + "] ";
+        errors.add(location + ErrorType.FILE.getName() + ": Could not read '" + path + "': " + reason + ".");
+    }
+
+    /**
+     * Records an error message.
+     *
+     * @param line    the line number where the error occured
+     * @param type    the type of error
+     * @param where   where the error occured
+     * @param message the message detailing the error
+     */
+    private void report(int line, ErrorType type, String where, String message) {
+        errors.add("[" + location(name, line) + "] " + type.getName() + where + ": " + message + ".");
+    }
+
+    /**
+     * Formats where an error occured, for compile and runtime errors alike.
+     *
+     * @param file the name of the file, or null to leave it out
+     * @param line the line number where the error occured
+     * @return     the location
+     */
+    static String location(String file, int line) {
+        return file == null ? "line " + line : file + ", line " + line;
+    }
+
+    /**
+     * Gets the name of the unit's file shown in messages.
+     *
+     * @return the name, or null if it is left out
+     */
+    String name() {
+        return name;
+    }
+
+    /**
+     * Checks if any errors have been reported, so code containing errors is not executed.
+     *
+     * @return whether there was an error
+     */
+    boolean hadError() {
+        return !errors.isEmpty();
+    }
+
+    /**
+     * Prints the errors to the console in the order they were found.
+     */
+    void print() {
+        for(String error : errors) System.err.println(error);
+    }
+}
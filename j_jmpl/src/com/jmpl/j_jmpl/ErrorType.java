@@ -9,7 +9,9 @@ public enum ErrorType {
     FUNCTION,
     IDENTIFIER,
     RETURN,
-    ZERO_DIVISION;
+    INDEX,
+    ZERO_DIVISION,
+    FILE;
 
     private final String name;
 
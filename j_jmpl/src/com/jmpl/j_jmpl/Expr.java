@@ -10,20 +10,42 @@ import java.util.List;
  */
 abstract class Expr {
     interface Visitor<R> {
+        R visitArrayExpr(Array expr);
         R visitAssignExpr(Assign expr);
         R visitBinaryExpr(Binary expr);
         R visitCallExpr(Call expr);
+        R visitComprehensionExpr(Comprehension expr);
         R visitGroupingExpr(Grouping expr);
+        R visitIndexExpr(Index expr);
+        R visitIndexAssignExpr(IndexAssign expr);
         R visitLiteralExpr(Literal expr);
         R visitLogicalExpr(Logical expr);
         R visitSequenceOpExpr(SequenceOp expr);
+        R visitSetExpr(Set expr);
         R visitUnaryExpr(Unary expr);
         R visitVariableExpr(Variable expr);
     }
 
+    static class Array extends Expr {
+        final Token bracket;
+        final List<Expr> elements;
+
+        Array(Token bracket, List<Expr> elements) {
+            this.bracket = bracket;
+            this.elements = elements;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitArrayExpr(this);
+        }
+    }
+
     static class Assign extends Expr {
         final Token name;
         final Expr value;
+        int depth = Resolver.GLOBAL;
+        int slot;
 
         Assign(Token name, Expr value) {
             this.name = name;
@@ -57,6 +79,8 @@ abstract class Expr {
         final Expr callee;
         final Token paren;
         final List<Expr> arguments;
+        boolean tail;
+        JmplCallable cached;
 
         Call(Expr callee, Token paren, List<Expr> arguments) {
             this.callee = callee;
@@ -70,6 +94,27 @@ abstract class Expr {
         }
     }
 
+    static class Comprehension extends Expr {
+        final Token brace;
+        final Token name;
+        final Expr source;
+        final Expr predicate;
+        final Expr element;
+
+        Comprehension(Token brace, Token name, Expr source, Expr predicate, Expr element) {
+            this.brace = brace;
+            this.name = name;
+            this.source = source;
+            this.predicate = predicate;
+            this.element = element;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitComprehensionExpr(this);
+        }
+    }
+
     static class Grouping extends Expr {
         final Expr expression;
 
@@ -83,6 +128,42 @@ abstract class Expr {
         }
     }
 
+    static class Index extends Expr {
+        final Expr array;
+        final Token bracket;
+        final Expr index;
+
+        Index(Expr array, Token bracket, Expr index) {
+            this.array = array;
+            this.bracket = bracket;
+            this.index = index;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitIndexExpr(this);
+        }
+    }
+
+    static class IndexAssign extends Expr {
+        final Expr array;
+        final Token bracket;
+        final Expr index;
+        final Expr value;
+
+        IndexAssign(Expr array, Token bracket, Expr index, Expr value) {
+            this.array = array;
+            this.bracket = bracket;
+            this.index = index;
+            this.value = value;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitIndexAssignExpr(this);
+        }
+    }
+
     static class Literal extends Expr {
         final Object value;
 
@@ -118,6 +199,10 @@ abstract class Expr {
         final Expr upper;
         final Stmt lower;
         final Expr summand;
+        int depth = Resolver.GLOBAL;
+        int slot;
+        boolean pure;
+        List<String> calls;
 
         SequenceOp(Token name, Expr upper, Stmt lower, Expr summand) {
             this.name = name;
@@ -132,6 +217,21 @@ abstract class Expr {
         }
     }
 
+    static class Set extends Expr {
+        final Token brace;
+        final List<Expr> elements;
+
+        Set(Token brace, List<Expr> elements) {
+            this.brace = brace;
+            this.elements = elements;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitSetExpr(this);
+        }
+    }
+
     static class Unary extends Expr {
         final Token operator;
         final Expr right;
@@ -149,6 +249,8 @@ abstract class Expr {
 
     static class Variable extends Expr {
         final Token name;
+        int depth = Resolver.GLOBAL;
+        int slot;
 
         Variable(Token name) {
             this.name = name;
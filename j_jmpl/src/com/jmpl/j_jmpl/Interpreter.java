@@ -1,9 +1,15 @@
 package com.jmpl.j_jmpl;
 
+import java.math.BigInteger;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Interpreter class for j-jmpl. Uses the Visitor pattern. 
@@ -14,13 +20,31 @@ import java.util.Map;
  */
 public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     /** The environment that stores globals. */
-    final Environment globals = new Environment();
+    final Environment globals;
     /** The current environment the interpreter is in. */
-    private Environment environment = globals;
-    /** Stores resolved distances in a side table. */
-    private final Map<Expr, Integer> locals = new HashMap<>();
+    private Environment environment;
+    /** Hit and miss counters of each memoised function declaration that has been executed. */
+    private final Map<Stmt.Function, MemoCache.Statistics> memoStatistics;
+    /** Whether a return statement has been executed and statements are being skipped until the function returns. */
+    private boolean returning = false;
+    /** The value of the last return statement executed. */
+    private Object returnValue = null;
+    /** The interpreted function whose body is being executed, null at the top level. */
+    private JmplFunction function = null;
+    /** Arguments of a tail call the current function made to itself, run by {@link #executeFunction}. */
+    private Object[] tailArguments = null;
+    /** Arguments of calls without any, shared as an empty array can't be changed. */
+    private static final Object[] NO_ARGUMENTS = new Object[0];
+    /** Marks an operand that was evaluated unboxed by {@link #evaluateDouble(Expr)}, as null is a valid value. */
+    private static final Object UNBOXED = new Object();
+    /** The value of the last operand {@link #operand(Expr)} evaluated unboxed. */
+    private double unboxed;
 
     Interpreter() {
+        globals = new Environment();
+        environment = globals;
+        memoStatistics = new ConcurrentHashMap<>();
+
         // When the interpreter is instantiated, stuff native functions into the global scope
         // So far they are anonymous classes - should probably find a better way
 
@@ -30,7 +54,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             public int arity() { return 0; }
 
             @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
+            public Object call(Interpreter interpreter, Object[] arguments) {
                 return (double)System.currentTimeMillis() / 1000;
             }
 
@@ -39,6 +63,19 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         });
     }
 
+    /**
+     * Creates an interpreter that shares another interpreter's globals, used to evaluate pure expressions on
+     * other threads.
+     * 
+     * @param parent      the interpreter whose globals are shared
+     * @param environment the environment to evaluate in
+     */
+    Interpreter(Interpreter parent, Environment environment) {
+        this.globals = parent.globals;
+        this.environment = environment;
+        this.memoStatistics = parent.memoStatistics;
+    }
+
     void interpret(List<Stmt> statements) {
         try {
             for(Stmt statement : statements) {
@@ -51,55 +88,40 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
-        // Evaluate operands of the expression
-        Object left = evaluate(expr.left);
-        Object right = evaluate(expr.right);
+        // Arithmetic that always gives a number is done unboxed, and only the result is boxed
+        if(isNumeric(expr)) return evaluateNumber(expr);
 
-        // Apply the correct operation to the operands
+        // Comparisons and additions that might be concatenation don't box numeric operands either
         switch(expr.operator.type) {
-            // Comparison
+            case TokenType.PLUS:
+                return add(expr);
             case TokenType.GREATER:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left > (double)right;
             case TokenType.GREATER_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left >= (double)right;
             case TokenType.LESS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left < (double)right;
             case TokenType.LESS_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left <= (double)right;
-            // Arithmetic
-            case TokenType.MINUS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left - (double)right;
-            case TokenType.PLUS:
-                // Number addition
-                if(left instanceof Double && right instanceof Double) {
-                    return (double)left + (double)right;
-                }
+                return compare(expr);
+            case TokenType.IN:
+                return isMember(expr);
+            case TokenType.DOT_DOT:
+                return range(expr);
+            default:
+                break;
+        }
 
-                // String concatenation
-                if(left instanceof String || right instanceof String) {
-                    return stringify(left) + stringify(right);
-                }
+        // Evaluate operands of the expression
+        Object left = evaluate(expr.left);
+        Object right = evaluate(expr.right);
 
-                throw new RuntimeError(expr.operator, ErrorType.TYPE, "Invalid operand type(s)");
-            case TokenType.ASTERISK:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left * (double)right;
-            case TokenType.SLASH:
-                if(isZero(right)) throw new RuntimeError(expr.operator, ErrorType.ZERO_DIVISION, "Division by 0");
-
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left / (double)right;
-            case TokenType.CARET:
-                checkNumberOperands(expr.operator, left, right);
-                return Math.pow((double)left, (double)right);
+        // Apply the correct operation to the operands
+        switch(expr.operator.type) {
             // Boolean
             case TokenType.NOT_EQUAL: return !isEqual(left, right);
             case TokenType.EQUAL_EQUAL: return isEqual(left, right);
+            // Sets
+            case TokenType.UNION:
+            case TokenType.INTERSECTION:
+            case TokenType.DIFFERENCE:
+                return setOperation(expr.operator, left, right);
             default:
                 break;
         }
@@ -111,22 +133,35 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     public Object visitCallExpr(Expr.Call expr) {
         Object callee = evaluate(expr.callee);
 
-        List<Object> arguments = new ArrayList<>();
-
-        for(Expr argument : expr.arguments) {
-            arguments.add(evaluate(argument));
+        Object[] arguments = expr.arguments.isEmpty() ? NO_ARGUMENTS : new Object[expr.arguments.size()];
+        for(int i = 0; i < arguments.length; i++) {
+            arguments[i] = evaluate(expr.arguments.get(i));
         }
 
-        // If the thing being called isn't a function
-        if(!(callee instanceof JmplCallable)) {
-            throw new RuntimeError(expr.paren, ErrorType.SYNTAX, "Only functions can be called");
-        }
+        // Inline cache: a call site nearly always calls the same function, which only needs checking the first time
+        // The cache is shared by threads running summations, but any callee stored in it passed the checks
+        JmplCallable function = expr.cached;
 
-        JmplCallable function = (JmplCallable)callee;
+        if(function == null || callee != function) {
+            // If the thing being called isn't a function
+            if(!(callee instanceof JmplCallable)) {
+                throw new RuntimeError(expr.paren, ErrorType.SYNTAX, "Only functions can be called");
+            }
+
+            function = (JmplCallable)callee;
 
-        // Check the amount of arguments is the amount expected
-        if(arguments.size() != function.arity()) {
-            throw new RuntimeError(expr.paren, ErrorType.ARGUMENT, "Expected " + function.arity() + " arguments but got " + arguments.size());
+            // Check the amount of arguments is the amount expected
+            if(arguments.length != function.arity()) {
+                throw new RuntimeError(expr.paren, ErrorType.ARGUMENT, "Expected " + function.arity() + " arguments but got " + arguments.length);
+            }
+
+            expr.cached = function;
+        }
+
+        // A function calling itself as the last thing it does runs again in the same frame instead of nesting
+        if(expr.tail && function == this.function) {
+            tailArguments = arguments;
+            return null;
         }
 
         return function.call(this, arguments);
@@ -150,9 +185,9 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             if(expr.lower instanceof Stmt.Let) {
                 // If lower declares a new variable, do it in a new block
                 environment = new Environment(previous);
-                lower = evaluate(((Stmt.Let)expr.lower).initialiser);
                 lowerVar = ((Stmt.Let)expr.lower).name;
                 execute(expr.lower);
+                lower = lookUpVariable(lowerVar, expr.depth, expr.slot);
             } else {
                 lower = evaluate(((Stmt.Expression)expr.lower).expression);
                 lowerVar = ((Expr.Assign)((Stmt.Expression)expr.lower).expression).name;
@@ -161,36 +196,74 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             Object summand = evaluate(expr.summand);
 
             // Errors
-            if(!(Math.floor((Double)upper) == (Double)upper)) throw new RuntimeError(expr.name, ErrorType.SYNTAX, "Upper bound must be an integer");
-            if(!(Math.floor((Double)lower) == (Double)lower)) throw new RuntimeError(expr.name, ErrorType.SYNTAX, "Lower bound must be an integer");
-            if(!(summand instanceof Double) && !(summand instanceof String) && !(summand instanceof Character)) throw new RuntimeError(expr.name, ErrorType.SYNTAX, "Summand must be a number or a string");
+            if(!(upper instanceof Double) || !(Math.floor((Double)upper) == (Double)upper)) throw new RuntimeError(expr.name, ErrorType.SYNTAX, "Upper bound must be an integer");
+            if(!(lower instanceof Double) || !(Math.floor((Double)lower) == (Double)lower)) throw new RuntimeError(expr.name, ErrorType.SYNTAX, "Lower bound must be an integer");
+            if(!Numbers.isNumber(summand) && !(summand instanceof String) && !(summand instanceof Character)) throw new RuntimeError(expr.name, ErrorType.SYNTAX, "Summand must be a number or a string");
             if((Double)lower > (Double)upper) throw new RuntimeError(expr.name, ErrorType.SYNTAX, "Lower bound must be less than or equal to the upper bound");
 
             // Perform the summation
             Object s;
-            if(summand instanceof Double) {
-                double sum = 0;
-                while((Double)lower <= (Double)upper) {
-                    sum += (Double)summand;
+            if(Numbers.isNumber(summand)) {
+                double index = (Double)lower;
+                double last = (Double)upper;
+
+                // Polynomial summands don't need a loop
+                Object closed = Summation.closedForm(this, expr, lowerVar, index, last);
+                if(closed != null) {
+                    // Leave the index where the loop would have
+                    assignVariable(lowerVar, expr.depth, expr.slot, last + 1);
+                    environment = previous;
+
+                    return closed;
+                }
+
+                // Pure summands over large ranges are split between threads
+                if(expr.lower instanceof Stmt.Let) {
+                    Object parallel = Summation.parallel(this, expr, lowerVar, index, last, previous);
+                    if(parallel != null) {
+                        // Leave the index where the loop would have
+                        assignVariable(lowerVar, expr.depth, expr.slot, last + 1);
+                        environment = previous;
+
+                        return parallel;
+                    }
+                }
+
+                // Find the scope holding a local index once, rather than every iteration
+                Environment indexScope = expr.depth == Resolver.GLOBAL ? null : environment.ancestor(expr.depth);
+
+                // Keep the sum, index and numeric summands unboxed, only the index variable has to be boxed
+                Numbers.Sum sum = new Numbers.Sum();
+                double term = 0;
+                while(index <= last) {
+                    if(summand == UNBOXED) {
+                        sum.add(term);
+                    } else {
+                        if(!Numbers.isNumber(summand)) throw new RuntimeError(expr.name, ErrorType.SYNTAX, "Summand must be a number or a string");
+                        sum.add(summand);
+                    }
     
                     // Increment lower var and reassign it
-                    environment.assign(lowerVar, (Double)environment.get(lowerVar) + 1);
-                    lower = environment.get(lowerVar);
+                    index++;
+                    if(indexScope != null) indexScope.assignAt(0, expr.slot, index); else globals.assign(lowerVar, index);
     
-                    // Re-evaluate summand
-                    summand = evaluate(expr.summand);
+                    // Re-evaluate summand, but not past the upper bound where it might not be defined
+                    if(index > last) break;
+                    summand = operand(expr.summand);
+                    term = unboxed;
                 }
-                s = sum;
+                s = sum.value();
             } else {
                 StringBuilder sum = new StringBuilder();
                 while((Double)lower <= (Double)upper) {
                     sum.append(summand);
     
                     // Increment lower var and reassign it
-                    environment.assign(lowerVar, (Double)environment.get(lowerVar) + 1);
-                    lower = environment.get(lowerVar);
+                    lower = (Double)lower + 1;
+                    assignVariable(lowerVar, expr.depth, expr.slot, lower);
     
                     // Re-evaluate summand
+                    if((Double)lower > (Double)upper) break;
                     summand = evaluate(expr.summand);
                 }
                 s = sum;
@@ -204,11 +277,115 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Object visitSetExpr(Expr.Set expr) {
+        JmplSet set = new JmplSet(expr.elements.size());
+
+        // Numeric elements are added without boxing them
+        for(Expr element : expr.elements) {
+            Object value = operand(element);
+            if(value == UNBOXED) set.addNumber(unboxed); else set.add(value);
+        }
+
+        return set;
+    }
+
+    @Override
+    public Object visitArrayExpr(Expr.Array expr) {
+        double[] numbers = new double[expr.elements.size()];
+
+        // Numbers are stored without boxing them, until an element isn't a number
+        for(int i = 0; i < numbers.length; i++) {
+            Object value = operand(expr.elements.get(i));
+            if(value == UNBOXED) {
+                numbers[i] = unboxed;
+                continue;
+            }
+            if(value instanceof Double) {
+                numbers[i] = (Double)value;
+                continue;
+            }
+
+            Object[] values = new Object[numbers.length];
+            for(int j = 0; j < i; j++) values[j] = numbers[j];
+            values[i] = value;
+            for(int j = i + 1; j < values.length; j++) values[j] = evaluate(expr.elements.get(j));
+
+            return new JmplArray(values);
+        }
+
+        return new JmplArray(numbers);
+    }
+
+    @Override
+    public Object visitComprehensionExpr(Expr.Comprehension expr) {
+        Object source = evaluate(expr.source);
+        boolean array = expr.brace.type == TokenType.LEFT_SQUARE;
+
+        if(array ? !(source instanceof SetView) && !(source instanceof JmplArray) : !(source instanceof SetView)) {
+            throw new RuntimeError(expr.brace, ErrorType.TYPE, array ? "Elements must be taken from a set or an array" : "Elements must be taken from a set");
+        }
+
+        Environment closure = environment;
+        LazySet.Stage stage = () -> {
+            // Each pass evaluates in an interpreter of its own, so the set can be used from any thread
+            Interpreter pass = new Interpreter(this, closure);
+            return element -> pass.comprehend(expr, closure, element);
+        };
+
+        // Array comprehensions are evaluated straight away
+        if(array) return JmplArray.comprehend(source, stage.open());
+
+        return new LazySet((SetView)source, stage, expr.element != null);
+    }
+
+    /**
+     * Evaluates the predicate and element expression of a comprehension for one element of its source.
+     * 
+     * @param expr    the set comprehension
+     * @param closure the environment the comprehension was evaluated in
+     * @param element the element of the source
+     * @return        the element of the comprehension, or {@link LazySet#SKIP} if the predicate isn't truthful
+     */
+    private Object comprehend(Expr.Comprehension expr, Environment closure, Object element) {
+        environment = new Environment(closure, new Object[] {element});
+
+        if(expr.predicate != null && !isTruthful(evaluate(expr.predicate))) return LazySet.SKIP;
+
+        return expr.element == null ? element : evaluate(expr.element);
+    }
+
     @Override
     public Object visitGroupingExpr(Expr.Grouping expr) {
         return evaluate(expr.expression);
     }
 
+    @Override
+    public Object visitIndexExpr(Expr.Index expr) {
+        JmplArray array = checkArrayOperand(expr.bracket, evaluate(expr.array));
+
+        return array.get(elementIndex(expr.bracket, array, expr.index));
+    }
+
+    @Override
+    public Object visitIndexAssignExpr(Expr.IndexAssign expr) {
+        JmplArray array = checkArrayOperand(expr.bracket, evaluate(expr.array));
+        int index = elementIndex(expr.bracket, array, expr.index);
+
+        // Numbers are stored without boxing them
+        Object value = operand(expr.value);
+        if(value == UNBOXED) {
+            double number = unboxed;
+            array.setNumber(index, number);
+
+            return number;
+        }
+
+        array.set(index, value);
+
+        return value;
+    }
+
     @Override
     public Object visitLiteralExpr(Expr.Literal expr) {
         return expr.value;
@@ -232,6 +409,8 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
+        if(isNumeric(expr)) return evaluateNumber(expr);
+
         // Evaluate operand expression
         Object right = evaluate(expr.right);
 
@@ -253,26 +432,41 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookUpVariable(expr.name, expr);
+        return lookUpVariable(expr.name, expr.depth, expr.slot);
     }
 
     /**
      * Get a variable from an environment at a certain distance.
      * 
-     * @param name the token of the variable to look up
-     * @param expr the variable expression of the variable
-     * @return     the value of the variable
+     * @param name  the token of the variable to look up
+     * @param depth the resolved depth of the variable, or {@link Resolver#GLOBAL}
+     * @param slot  the resolved slot of the variable
+     * @return      the value of the variable
      */
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-
-        if(distance != null) {
-            return environment.getAt(distance, name.lexeme);
+    private Object lookUpVariable(Token name, int depth, int slot) {
+        if(depth != Resolver.GLOBAL) {
+            return environment.getAt(depth, slot);
         } else {
             return globals.get(name);
         }
     }
 
+    /**
+     * Assign to a variable in an environment at a certain distance.
+     * 
+     * @param name  the token of the variable to assign to
+     * @param depth the resolved depth of the variable, or {@link Resolver#GLOBAL}
+     * @param slot  the resolved slot of the variable
+     * @param value the value to be assigned to the variable
+     */
+    private void assignVariable(Token name, int depth, int slot, Object value) {
+        if(depth != Resolver.GLOBAL) {
+            environment.assignAt(depth, slot, value);
+        } else {
+            globals.assign(name, value);
+        }
+    }
+
     /**
      * Checks if the operand for an operator is a number. Used for error detection when casting types.
      * 
@@ -301,18 +495,96 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
     }
 
+    /**
+     * Checks if an operand of an operator that also takes arrays is a set.
+     * 
+     * @param operator the operator token
+     * @param operand  the operand being checked
+     * @return         the operand as a set
+     */
+    private static SetView checkSetOperand(Token operator, Object operand) {
+        if(operand instanceof SetView) return (SetView)operand;
+
+        throw new RuntimeError(operator, ErrorType.TYPE, "Operand must be a set or an array");
+    }
+
+    /**
+     * Checks if an operand is an array.
+     * 
+     * @param bracket the square bracket token
+     * @param operand the operand being checked
+     * @return        the operand as an array
+     */
+    private static JmplArray checkArrayOperand(Token bracket, Object operand) {
+        if(operand instanceof JmplArray) return (JmplArray)operand;
+
+        throw new RuntimeError(bracket, ErrorType.TYPE, "Only arrays can be indexed");
+    }
+
+    /**
+     * Evaluates the index of an element of an array, without boxing a numeric index.
+     * 
+     * @param bracket the square bracket token
+     * @param array   the array
+     * @param expr    the index expression
+     * @return        the index, checked to be in range
+     */
+    private int elementIndex(Token bracket, JmplArray array, Expr expr) {
+        Object boxed = operand(expr);
+        double index = unboxed;
+        if(boxed != UNBOXED) {
+            if(boxed instanceof BigInteger) {
+                throw new RuntimeError(bracket, ErrorType.INDEX, "Index " + boxed + " is out of range for length " + array.length());
+            }
+            if(!(boxed instanceof Double)) throw new RuntimeError(bracket, ErrorType.TYPE, "Index must be an integer");
+
+            index = (Double)boxed;
+        }
+
+        if(Math.floor(index) != index) throw new RuntimeError(bracket, ErrorType.TYPE, "Index must be an integer");
+        if(index < 0 || index >= array.length()) {
+            throw new RuntimeError(bracket, ErrorType.INDEX, "Index " + stringify(index) + " is out of range for length " + array.length());
+        }
+
+        return (int)index;
+    }
+
+    /**
+     * Applies a union, intersection or difference to two sets.
+     * 
+     * @param operator the operator token
+     * @param left     the left operand
+     * @param right    the right operand
+     * @return         the resulting set
+     */
+    private static SetView setOperation(Token operator, Object left, Object right) {
+        if(!(left instanceof SetView) || !(right instanceof SetView)) {
+            throw new RuntimeError(operator, ErrorType.TYPE, "Operands must be sets");
+        }
+
+        switch(operator.type) {
+            case TokenType.UNION: return SetView.union((SetView)left, (SetView)right);
+            case TokenType.INTERSECTION: return SetView.intersection((SetView)left, (SetView)right);
+            case TokenType.DIFFERENCE: return SetView.difference((SetView)left, (SetView)right);
+            // Unreachable
+            default: throw new IllegalStateException("Not a set operator: " + operator.type);
+        }
+    }
+
     /**
      * Checks if an object is 'truthful'. Determines the boolean state of an object, not just if it is a Boolean type.
      * <p>
-     * Returns false if object is null, 0, false, or an empty string. Returns true otherwise.
+     * Returns false if object is null, 0, false, an empty string, an empty set or an empty array. Returns true otherwise.
      * 
      * @param object the object whose truth value is being determined
      * @return       the truth value of the object
      */
-    private boolean isTruthful(Object object) {
+    static boolean isTruthful(Object object) {
         // What cases are false
         if(object == null) return false;
         if(object instanceof String && ((String)object).isEmpty()) return false;
+        if(object instanceof SetView && ((SetView)object).isEmpty()) return false;
+        if(object instanceof JmplArray && ((JmplArray)object).length() == 0) return false;
         if(isZero(object)) return false;
         if(object instanceof Boolean) return (boolean)object;
         
@@ -327,7 +599,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
      * @param b second object
      * @return  if a and b are equal
      */
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
         if(a == null && b == null) return true;
         if(a == null) return false;
 
@@ -340,10 +612,14 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
      * @param object the object to be converted to a string
      * @return       the stringified value
      */
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if(object == null) return "null";
 
         if(object instanceof Double) {
+            // Exact integers are written out in full, like large integers, rather than in scientific notation
+            double number = (Double)object;
+            if(Math.abs(number) >= 1e7 && Numbers.isExactInteger(number)) return Long.toString((long)number);
+
             String text = object.toString();
             
             // Truncate terminating zero
@@ -361,7 +637,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
      * @param text th input string
      * @return     the truncated string
      */
-    private String truncateZeros(String text) {
+    private static String truncateZeros(String text) {
         String s = text;
 
         if(text.endsWith(".0")) {
@@ -377,10 +653,61 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
      * @param object the input object
      * @return       whether the object is zero
      */
-    private boolean isZero(Object object) {
+    static boolean isZero(Object object) {
         return object instanceof Double && (Double)object == 0;
     }
 
+    /**
+     * Finds a global function called (directly or through other functions) by a function or summand that isn't
+     * pure, meaning calls to it can't be cached or run in parallel.
+     * 
+     * @param calls the names of the global functions being called
+     * @return      the name of a function that isn't pure, or null if they are all pure
+     */
+    String impureCall(List<String> calls) {
+        Set<String> visited = new HashSet<>(calls);
+        Deque<String> pending = new ArrayDeque<>(calls);
+
+        while(!pending.isEmpty()) {
+            String name = pending.pop();
+
+            // Native functions could do anything, so only j-jmpl functions count
+            Object callee = globals.find(name);
+            Stmt.Function declaration = null;
+            if(callee instanceof JmplFunction) declaration = ((JmplFunction)callee).declaration();
+            if(callee instanceof VmClosure) declaration = ((VmClosure)callee).function.declaration;
+            if(declaration == null || !declaration.pure) return name;
+
+            for(String call : declaration.calls) {
+                if(visited.add(call)) pending.push(call);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Gets the counters shared by every memo cache of a function declaration.
+     * 
+     * @param declaration the memoised function's declaration
+     * @return            the declaration's counters
+     */
+    MemoCache.Statistics memoStatistics(Stmt.Function declaration) {
+        return memoStatistics.computeIfAbsent(declaration, d -> new MemoCache.Statistics(d.name));
+    }
+
+    /**
+     * Gets the counters of every memoised function declaration that has been executed.
+     * 
+     * @return the memo counters, in the order the functions are declared
+     */
+    List<MemoCache.Statistics> memoStatistics() {
+        List<MemoCache.Statistics> statistics = new ArrayList<>(memoStatistics.values());
+        statistics.sort(Comparator.comparingInt(s -> s.name.line));
+
+        return statistics;
+    }
+
     /**
      * Helper method that sends an expression back into the interpreter's Expr visitor.
      * 
@@ -391,23 +718,358 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return expr.accept(this);
     }
 
+    //#region Unboxed arithmetic
+
     /**
-     * Helper method that sends a statement back into the interpreter's Stmt visitor.
+     * Checks if an expression always gives a number (or throws an error), so it can be evaluated with
+     * {@link #evaluateDouble(Expr)}. Only depends on the shape of the expression, not on the values of variables.
      * 
-     * @param statement input statement
+     * @param expr the expression to check
+     * @return     whether the expression is numeric
      */
-    private void execute(Stmt statement) {
-        statement.accept(this);
+    static boolean isNumeric(Expr expr) {
+        if(expr instanceof Expr.Literal) return ((Expr.Literal)expr).value instanceof Double;
+        if(expr instanceof Expr.Grouping) return isNumeric(((Expr.Grouping)expr).expression);
+        if(expr instanceof Expr.Unary) {
+            TokenType operator = ((Expr.Unary)expr).operator.type;
+            return operator == TokenType.MINUS || operator == TokenType.HASHTAG || operator == TokenType.SUMMATION;
+        }
+
+        if(expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+
+            switch(binary.operator.type) {
+                case TokenType.MINUS:
+                case TokenType.ASTERISK:
+                case TokenType.SLASH:
+                case TokenType.CARET:
+                    return true;
+                case TokenType.PLUS:
+                    // Could be string concatenation unless both sides are numbers
+                    return isNumeric(binary.left) && isNumeric(binary.right);
+                default:
+                    return false;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Evaluates a numeric expression to a primitive double, without boxing any intermediate values.
+     * Operands that aren't numeric expressions are evaluated normally and type checked.
+     * <p>
+     * Integer results too large to be a double are thrown as a {@link LargeInteger}, see {@link Numbers}.
+     * 
+     * @param expr a numeric expression, see {@link #isNumeric(Expr)}
+     * @return     the value of the expression
+     */
+    double evaluateDouble(Expr expr) {
+        if(expr instanceof Expr.Literal) return (Double)((Expr.Literal)expr).value;
+        if(expr instanceof Expr.Grouping) return evaluateDouble(((Expr.Grouping)expr).expression);
+
+        if(expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+
+            // Cardinality and the sum of a set's elements, or the length and sum of an array
+            if(unary.operator.type == TokenType.HASHTAG) {
+                Object right = evaluate(unary.right);
+                if(right instanceof JmplArray) return ((JmplArray)right).length();
+
+                return checkSetOperand(unary.operator, right).size();
+            }
+            if(unary.operator.type == TokenType.SUMMATION) {
+                Object right = evaluate(unary.right);
+                if(right instanceof JmplArray) {
+                    Object sum = ((JmplArray)right).sum();
+                    if(sum == null) throw new RuntimeError(unary.operator, ErrorType.TYPE, "Can only sum arrays of numbers");
+
+                    return unboxResult(sum);
+                }
+
+                Object sum = checkSetOperand(unary.operator, right).sum();
+                if(sum == null) throw new RuntimeError(unary.operator, ErrorType.TYPE, "Can only sum sets of numbers");
+
+                return unboxResult(sum);
+            }
+
+            Object right = operand(unary.right);
+            if(right == UNBOXED) return -unboxed;
+            if(right instanceof BigInteger) throw new LargeInteger(((BigInteger)right).negate());
+
+            checkNumberOperands(unary.operator, right);
+            return -(double)right;
+        }
+
+        Expr.Binary binary = (Expr.Binary)expr;
+
+        // Both operands are evaluated before either is type checked, as in visitBinaryExpr
+        Object boxedLeft = operand(binary.left);
+        double left = unboxed;
+        Object boxedRight = operand(binary.right);
+        double right = unboxed;
+
+        // Division by zero is checked before operand types
+        if(binary.operator.type == TokenType.SLASH && (boxedRight == UNBOXED ? right == 0 : isZero(boxedRight))) {
+            throw new RuntimeError(binary.operator, ErrorType.ZERO_DIVISION, "Division by 0");
+        }
+
+        if(boxedLeft instanceof BigInteger || boxedRight instanceof BigInteger) {
+            return exactOperation(binary.operator, boxedLeft == UNBOXED ? left : boxedLeft, boxedRight == UNBOXED ? right : boxedRight);
+        }
+
+        if(boxedLeft != UNBOXED) left = unboxOperand(binary.operator, boxedLeft);
+        if(boxedRight != UNBOXED) right = unboxOperand(binary.operator, boxedRight);
+
+        double result;
+        switch(binary.operator.type) {
+            case TokenType.PLUS: result = left + right; break;
+            case TokenType.MINUS: result = left - right; break;
+            case TokenType.ASTERISK: result = left * right; break;
+            case TokenType.SLASH: return left / right;
+            case TokenType.CARET: result = Math.pow(left, right); break;
+            // Unreachable
+            default: throw new IllegalStateException("Not a numeric operator: " + binary.operator.type);
+        }
+
+        // Integers past 2^53 might have been rounded, so they are worked out again exactly
+        if(Numbers.isInexact(result, left, right)) return exactOperation(binary.operator, left, right);
+
+        return result;
+    }
+
+    /**
+     * Evaluates a numeric expression, boxing only its result.
+     * 
+     * @param expr a numeric expression, see {@link #isNumeric(Expr)}
+     * @return     the value of the expression, a double or a large integer
+     */
+    private Object evaluateNumber(Expr expr) {
+        try {
+            return evaluateDouble(expr);
+        } catch(LargeInteger e) {
+            return e.value;
+        }
+    }
+
+    /**
+     * Evaluates an operand, without boxing it if it is numeric. Its value is then in {@link #unboxed}, which has
+     * to be read before anything else is evaluated.
+     * 
+     * @param expr the operand expression
+     * @return     {@link #UNBOXED} if the operand was evaluated unboxed, otherwise its value
+     */
+    private Object operand(Expr expr) {
+        if(!isNumeric(expr)) return evaluate(expr);
+
+        try {
+            unboxed = evaluateDouble(expr);
+            return UNBOXED;
+        } catch(LargeInteger e) {
+            return e.value;
+        }
+    }
+
+    /**
+     * Applies an arithmetic operator exactly, when an operand is a large integer or the result might be one.
+     * 
+     * @param operator the operator token
+     * @param left     the left operand
+     * @param right    the right operand, which is not 0 for division
+     * @return         the result, if it is small enough to be a double
+     */
+    private static double exactOperation(Token operator, Object left, Object right) {
+        if(!Numbers.isNumber(left) || !Numbers.isNumber(right)) throw new RuntimeError(operator, ErrorType.TYPE, "Operands must be numbers");
+
+        switch(operator.type) {
+            case TokenType.PLUS: return unboxResult(Numbers.add(left, right));
+            case TokenType.MINUS: return unboxResult(Numbers.subtract(left, right));
+            case TokenType.ASTERISK: return unboxResult(Numbers.multiply(left, right));
+            case TokenType.SLASH: return unboxResult(Numbers.divide(left, right));
+            case TokenType.CARET: return unboxResult(Numbers.power(left, right));
+            // Unreachable
+            default: throw new IllegalStateException("Not a numeric operator: " + operator.type);
+        }
+    }
+
+    /**
+     * Unboxes a number, or throws it as a {@link LargeInteger} if it is one.
+     * 
+     * @param number a double or a large integer
+     * @return       the number as a double
+     */
+    private static double unboxResult(Object number) {
+        if(number instanceof BigInteger) throw new LargeInteger((BigInteger)number);
+
+        return (Double)number;
+    }
+
+    /**
+     * Evaluates a comparison without boxing numeric operands.
+     * 
+     * @param expr the comparison expression
+     * @return     the result of the comparison
+     */
+    private boolean compare(Expr.Binary expr) {
+        Object boxedLeft = operand(expr.left);
+        double left = unboxed;
+        Object boxedRight = operand(expr.right);
+        double right = unboxed;
+
+        if(boxedLeft instanceof BigInteger || boxedRight instanceof BigInteger) {
+            if(boxedLeft == UNBOXED) boxedLeft = left;
+            if(boxedRight == UNBOXED) boxedRight = right;
+            if(!Numbers.isNumber(boxedLeft) || !Numbers.isNumber(boxedRight)) {
+                throw new RuntimeError(expr.operator, ErrorType.TYPE, "Operands must be numbers");
+            }
+
+            // Compared exactly, as large integers can't all be doubles
+            Integer order = Numbers.compare(boxedLeft, boxedRight);
+            if(order == null) return false;
+
+            left = order;
+            right = 0;
+        } else {
+            if(boxedLeft != UNBOXED) left = unboxOperand(expr.operator, boxedLeft);
+            if(boxedRight != UNBOXED) right = unboxOperand(expr.operator, boxedRight);
+        }
+
+        switch(expr.operator.type) {
+            case TokenType.GREATER: return left > right;
+            case TokenType.GREATER_EQUAL: return left >= right;
+            case TokenType.LESS: return left < right;
+            case TokenType.LESS_EQUAL: return left <= right;
+            // Unreachable
+            default: throw new IllegalStateException("Not a comparison operator: " + expr.operator.type);
+        }
+    }
+
+    /**
+     * Checks if the left operand is an element of the right, a set. Numbers are looked up without boxing them.
+     * 
+     * @param expr the membership expression
+     * @return     whether the left operand is in the set
+     */
+    private boolean isMember(Expr.Binary expr) {
+        Object element = operand(expr.left);
+        double number = unboxed;
+        Object right = evaluate(expr.right);
+
+        if(element == UNBOXED) {
+            if(right instanceof JmplArray) return ((JmplArray)right).containsNumber(number);
+
+            return checkSetOperand(expr.operator, right).containsNumber(number);
+        }
+
+        if(right instanceof JmplArray) return ((JmplArray)right).contains(element);
+
+        return checkSetOperand(expr.operator, right).contains(element);
     }
 
     /**
-     * Resolves an expression. 
+     * Evaluates a range, without boxing numeric bounds.
      * 
-     * @param expr  the expression to be resolved
-     * @param depth the number of environments vetween the current and enclosing one
+     * @param expr the range expression
+     * @return     the range
      */
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    private Range range(Expr.Binary expr) {
+        Object boxedLower = operand(expr.left);
+        double lower = unboxed;
+        Object boxedUpper = operand(expr.right);
+        double upper = unboxed;
+
+        // Ranges step through their integers as doubles, so their bounds have to be exact
+        if(boxedLower instanceof BigInteger || boxedUpper instanceof BigInteger) {
+            throw new RuntimeError(expr.operator, ErrorType.TYPE, "Range bounds must be no larger than 2^53");
+        }
+
+        if(boxedLower != UNBOXED) lower = unboxOperand(expr.operator, boxedLower);
+        if(boxedUpper != UNBOXED) upper = unboxOperand(expr.operator, boxedUpper);
+
+        if(!Range.isBound(lower) || !Range.isBound(upper)) {
+            throw new RuntimeError(expr.operator, ErrorType.TYPE, "Range bounds must be integers");
+        }
+
+        return new Range(lower, upper);
+    }
+
+    /**
+     * Evaluates an addition whose operands might not be numbers. Numbers are added without boxing operands,
+     * anything else is concatenated as strings.
+     * 
+     * @param expr the addition expression
+     * @return     the sum or concatenation of the operands
+     */
+    private Object add(Expr.Binary expr) {
+        Object boxedLeft = operand(expr.left);
+        double left = unboxed;
+        Object boxedRight = operand(expr.right);
+        double right = unboxed;
+
+        if(boxedLeft instanceof Double) {
+            left = (Double)boxedLeft;
+            boxedLeft = UNBOXED;
+        }
+        if(boxedRight instanceof Double) {
+            right = (Double)boxedRight;
+            boxedRight = UNBOXED;
+        }
+
+        // Number addition
+        if(boxedLeft == UNBOXED && boxedRight == UNBOXED) {
+            double sum = left + right;
+            return Numbers.isInexact(sum, left, right) ? Numbers.add(left, right) : sum;
+        }
+
+        if(boxedLeft == UNBOXED) boxedLeft = left;
+        if(boxedRight == UNBOXED) boxedRight = right;
+
+        if(Numbers.isNumber(boxedLeft) && Numbers.isNumber(boxedRight)) return Numbers.add(boxedLeft, boxedRight);
+
+        // String concatenation
+        if(boxedLeft instanceof String || boxedRight instanceof String) {
+            return stringify(boxedLeft) + stringify(boxedRight);
+        }
+
+        throw new RuntimeError(expr.operator, ErrorType.TYPE, "Invalid operand type(s)");
+    }
+
+    /**
+     * Unboxes the operand of a binary operator, throwing the same error as
+     * {@link #checkNumberOperands(Token, Object...)} if it isn't a number.
+     * 
+     * @param operator the operator token
+     * @param operand  the operand being unboxed
+     * @return         the value of the operand
+     */
+    private double unboxOperand(Token operator, Object operand) {
+        if(!(operand instanceof Double)) throw new RuntimeError(operator, ErrorType.TYPE, "Operands must be numbers");
+
+        return (Double)operand;
+    }
+
+    /**
+     * Thrown by {@link #evaluateDouble(Expr)} when a numeric expression is an integer too large to be a double,
+     * carrying it to where it can be boxed. Stackless, as it is only used for control flow.
+     */
+    private static class LargeInteger extends RuntimeException {
+        final BigInteger value;
+
+        LargeInteger(BigInteger value) {
+            super(null, null, false, false);
+            this.value = value;
+        }
+    }
+
+    //#endregion
+
+    /**
+     * Helper method that sends a statement back into the interpreter's Stmt visitor.
+     * 
+     * @param statement input statement
+     */
+    private void execute(Stmt statement) {
+        statement.accept(this);
     }
 
     /**
@@ -425,9 +1087,6 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
             for (int i = 0; i < statements.size(); i++) {
                 Stmt statement = statements.get(i);
-                
-                // If not, execute the statement
-                execute(statement);
 
                 // If this is the last statement, implicitly return the last statement if it is an expression
                 // Recursively call if it's a block
@@ -438,16 +1097,62 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                         return evaluate(((Stmt.Expression)statement).expression);
                     }
                 }
+                
+                // If not, execute the statement
+                execute(statement);
+
+                // Skip the rest of the block if the statement returned
+                if(returning) return null;
             }
         } finally {
             // Return to the old environment
             this.environment = previous;
         }
 
-        System.out.println("Hit null");
         return null;
     }
 
+    /**
+     * Executes the body of a function in the environment holding its parameters.
+     * <p>
+     * Return statements don't throw, they set {@link #returning} so each statement stops executing, which
+     * ends here where the returned value is picked up. Tail calls to the function itself work the same way,
+     * leaving their arguments in {@link #tailArguments}, and are run by looping with the parameters reassigned
+     * so deep recursion doesn't overflow the stack.
+     * 
+     * @param function    the function being called
+     * @param body        the body of the function, as a list of one statement
+     * @param environment the environment holding the function's parameters
+     * @return            the returned value, or the implicitly returned value of the body
+     */
+    Object executeFunction(JmplFunction function, List<Stmt> body, Environment environment) {
+        JmplFunction caller = this.function;
+        this.function = function;
+
+        try {
+            while(true) {
+                Object value = executeBlock(body, environment);
+
+                if(returning) {
+                    value = returnValue;
+                    returning = false;
+                    returnValue = null;
+                }
+
+                if(tailArguments == null) return value;
+
+                // Parameters are the first slots of the environment
+                for(int i = 0; i < tailArguments.length; i++) {
+                    environment.assignAt(0, i, tailArguments[i]);
+                }
+
+                tailArguments = null;
+            }
+        } finally {
+            this.function = caller;
+        }
+    }
+
     @Override
     public Void visitExpressionStmt(Stmt.Expression stmt) {
         evaluate(stmt.expression);
@@ -456,10 +1161,10 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        JmplFunction function = new JmplFunction(stmt, environment);
+        JmplFunction function = new JmplFunction(stmt, environment, this);
 
         // Variables and functions are stored in the same place
-        environment.define(stmt.name, function);
+        environment.define(stmt.name, stmt.slot, function);
 
         return null;
     }
@@ -490,7 +1195,10 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
         if(stmt.value != null) value = evaluate(stmt.value);
 
-        throw new Return(value);
+        // Signal the enclosing statements to stop executing
+        returnValue = value;
+        returning = true;
+        return null;
     }
 
     @Override
@@ -501,7 +1209,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             value = evaluate(stmt.initialiser);
         }
 
-        environment.define(stmt.name, value);
+        environment.define(stmt.name, stmt.slot, value);
         return null;
     }
 
@@ -509,6 +1217,8 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     public Void visitWhileStmt(Stmt.While stmt) {
         while(isTruthful(evaluate(stmt.condition))) {
             execute(stmt.body);
+
+            if(returning) break;
         }
 
         return null;
@@ -518,12 +1228,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
         
-        Integer distance = locals.get(expr);
-        if(distance != null) {
-            environment.assignAt(distance, expr.name, value);
-        } else {
-            globals.assign(expr.name, value);
-        }
+        assignVariable(expr.name, expr.depth, expr.slot, value);
 
         return value;
     }
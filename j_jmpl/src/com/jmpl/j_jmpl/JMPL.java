@@ -8,11 +8,17 @@ package com.jmpl.j_jmpl;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
 import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.IntStream;
 
 /**
  * The main class that defines j-jmpl, an interpreter for the JMPL language written in Java.
@@ -20,7 +26,6 @@ import java.util.List;
  * <p>
  * To Do: 
  * <ul>
- * <li> Implement ErrorReporter interface that passes to scanner and parser.
  * <li> Let expressions be allowed in the REPL and print their results? Or print a result for all statements.
  * <li> Add break token.
  * </ul>
@@ -34,38 +39,144 @@ public class JMPL {
     /** Default character set used by the interpreter. */
     static final Charset DEFAULT_CHARSET = StandardCharsets.UTF_8;
 
-    /** Boolean to ensure code which contains an error is not executed. */
-    static boolean hadError = false;
+    /** Boolean to ensure code which contains an error is not executed. Only set by the main thread. */
+    private static boolean hadError = false;
     /** Boolean to ensure code which contains a runtime error is exited. */
     static boolean hadRuntimeError = false;
 
+    /** The execution engines that can run resolved code. */
+    enum Engine {
+        /** The tree-walking {@link Interpreter}. */
+        TREE,
+        /** The bytecode {@link Compiler} and {@link VM}. */
+        VM
+    }
+
     private static Interpreter interpreter = new Interpreter();
+    /** Virtual machine sharing the interpreter's globals, only created when the VM engine is used. */
+    private static VM vm;
+    /** The engine used to run code. */
+    private static Engine engine = Engine.TREE;
+    /** Whether to print the hit and miss counters of memoised functions after running a file. */
+    private static boolean memoStats = false;
+    /** Whether to load and save the resolved syntax trees of files in .jmplc files. */
+    private static boolean cache = true;
+    /** Whether to remove code that can never run or has no effect before running it. */
+    private static boolean eliminateDeadCode = false;
 
     public static void main(String[] args) throws IOException {
-        if(args.length > 1) {
-            // Argument error
-            System.out.println("Usage: j_jmpl [path]");
-            System.exit(64); // Command line usage error
-        } else if(args.length == 1) {
-            // Run a file
-            runFile(args[0]);
+        List<String> paths = new ArrayList<>();
+
+        for(String arg : args) {
+            if(arg.startsWith("--engine=")) {
+                // Choose the execution engine
+                try {
+                    engine = Engine.valueOf(arg.substring("--engine=".length()).toUpperCase());
+                } catch(IllegalArgumentException e) {
+                    usage();
+                }
+            } else if(arg.equals("--memo-stats")) {
+                memoStats = true;
+            } else if(arg.equals("--no-cache")) {
+                cache = false;
+            } else if(arg.equals("-O")) {
+                eliminateDeadCode = true;
+            } else if(arg.startsWith("--")) {
+                usage();
+            } else {
+                paths.add(arg);
+            }
+        }
+
+        if(engine == Engine.VM) vm = new VM(interpreter);
+
+        if(!paths.isEmpty()) {
+            // Run files
+            runFiles(paths);
         } else {
             // REPL
             runPrompt();
         }
     }
 
+    /**
+     * Prints the command line usage and exits.
+     */
+    private static void usage() {
+        // Argument error
+        System.out.println("Usage: j_jmpl [--engine=tree|vm] [--memo-stats] [--no-cache] [-O] [path...]");
+        System.exit(64); // Command line usage error
+    }
+
     /** 
-     * Runs a file from a given path.
+     * Runs files in the order they are given. Directories run the .jmpl files in them in name order.
+     * <p>
+     * The files are compiled in parallel, each as its own {@link CompilationUnit}, then run one after another
+     * with the same globals. Nothing is run if any file has a compile error or can't be read.
      * 
-     * @param  path        the path of the file to be run
-     * @throws IOException if an I/O error occurs
+     * @param paths the paths of the files and directories to be run
      */
-    private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        String source = new String(bytes, DEFAULT_CHARSET);
+    private static void runFiles(List<String> paths) {
+        List<Path> files = new ArrayList<>();
+        // Directories that can't be listed have no unit, so are reported on their own
+        ErrorReporter listing = new ErrorReporter();
+
+        for(String path : paths) {
+            Path file = Paths.get(path);
+
+            if(Files.isDirectory(file)) {
+                // Sort so files run in the same order every time
+                List<Path> directory = new ArrayList<>();
+                try(DirectoryStream<Path> entries = Files.newDirectoryStream(file, "*.jmpl")) {
+                    for(Path entry : entries) directory.add(entry);
+                } catch(IOException e) {
+                    listing.error(file, e);
+                }
+                directory.sort(null);
+                files.addAll(directory);
+            } else {
+                files.add(file);
+            }
+        }
 
-        run(source);
+        // Messages only need the file's name when there's more than one
+        List<CompilationUnit> units = new ArrayList<>();
+        for(Path file : files) units.add(new CompilationUnit(files.size() > 1 ? file.toString() : null, eliminateDeadCode));
+
+        IntStream.range(0, files.size()).parallel().forEach(i -> {
+            CompilationUnit unit = units.get(i);
+
+            // A file that can't be read is an error of its unit, so the other files still report theirs
+            try {
+                unit.compile(files.get(i), engine == Engine.VM, cache);
+            } catch(IOException e) {
+                unit.errors.error(files.get(i), e);
+            }
+        });
+
+        listing.print();
+        if(listing.hadError()) hadError = true;
+
+        for(CompilationUnit unit : units) {
+            unit.errors.print();
+            if(unit.errors.hadError()) hadError = true;
+        }
+
+        if(!hadError) {
+            for(CompilationUnit unit : units) {
+                unit.run(interpreter, vm);
+
+                // Later files might depend on what failed
+                if(hadRuntimeError) break;
+            }
+        }
+
+        // Printed to stderr so it doesn't mix with the program's output
+        if(memoStats) {
+            for(MemoCache.Statistics statistics : interpreter.memoStatistics()) {
+                System.err.println("[memo] " + statistics);
+            }
+        }
         
         // Indicate an error in the exit code
         if (hadError) System.exit(65); // Data format error
@@ -90,7 +201,7 @@ public class JMPL {
             // Break loop on null line (^D on Linux, ^C on Windows)
             if(line == null) break;
 
-            run(line);
+            run(new StringReader(line));
 
             // Reset error flag
             hadError = false;
@@ -98,77 +209,33 @@ public class JMPL {
     }
 
     /**
-     * Runs a given source-code string.
+     * Runs source code.
      * 
-     * @param source a byte array as a String containing the source code
+     * @param  source      a reader of the source code
+     * @throws IOException if an I/O error occurs
      */
-    private static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-        Parser parser = new Parser(tokens);
-        List<Stmt> statements = parser.parse();
-
-        // Stop if there is a syntax error
-        if(hadError) return;
-
-        Resolver resolver = new Resolver(interpreter);
-        resolver.resolve(statements);
-
-        // Stop if there is a resolution error
-        if(hadError) return;
+    private static void run(Reader source) throws IOException {
+        CompilationUnit unit = new CompilationUnit(null, eliminateDeadCode);
+        unit.compile(source, engine == Engine.VM);
+
+        unit.errors.print();
+        if(unit.errors.hadError()) {
+            hadError = true;
+            return;
+        }
 
-        interpreter.interpret(statements);
+        unit.run(interpreter, vm);
     }
 
     //#region Error Handling
 
-    /**
-     * Prints an error message to the console to report syntax errors at a given line.
-     * 
-     * @param line    the line number where the error occured
-     * @param type    the type of error
-     * @param message the message detailing the error
-     */
-    static void error(int line, ErrorType type, String message) {
-        report(line, type, "", message);
-    }
-
-    /**
-     * Helper function for the {@link #error(int, String)} method. Prints the error message to the console.
-     * Ensures code is still scanned but not executed if any errors are detected.
-     * 
-     * @param line    the line number where the error occured
-     * @param type    the type of error
-     * @param where   where the error occured
-     * @param message the message detailing the error
-     */
-    private static void report(int line, ErrorType type, String where, String message) {
-        System.err.println("[line " + line + "] " + type.getName() + where + ": " + message + ".");
-        hadError = true;
-    }
-    
-    /**
-     * Overload of {@link #error(int, String)} to report an error at a given token.
-     * 
-     * @param token   the error token
-     * @param type    the type of error
-     * @param message the error message
-     */
-    static void error(Token token, ErrorType type, String message) {
-        if(token.type == TokenType.EOF) {
-            report(token.line, type, " at end", message);
-        } else {
-            report(token.line, type, " at '" + token.lexeme + "'", message);
-        }
-    }
-
     /**
      * Prints a runtime error to the console.
      * 
      * @param error a {@link RuntimeError} 
      */
     static void runtimeError(RuntimeError error) {
-        System.err.println("[line " + error.token.line + "] " + error.type.getName() + ": " + error.getMessage() + ".");
+        System.err.println("[" + ErrorReporter.location(error.file, error.line) + "] " + error.type.getName() + ": " + error.getMessage() + ".");
         hadRuntimeError = true;
     } 
 
@@ -0,0 +1,259 @@
+package com.jmpl.j_jmpl;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+
+/**
+ * Array class for j-jmpl, a fixed length sequence of values indexed from 0. Arrays can be changed element by element,
+ * and two arrays are equal if they have equal elements in the same order.
+ * <p>
+ * While every element is a number, the elements are stored unboxed in a {@code double[]}, so numeric arrays take
+ * eight bytes an element and reading or writing a number doesn't unbox anything. Storing anything else in the
+ * array moves its elements into an {@code Object[]}, and they stay there.
+ *
+ * @author Joel Luckett
+ * @version 0.1
+ */
+final class JmplArray {
+    /** The elements while they are all numbers, null otherwise. */
+    private double[] numbers;
+    /** The elements once one isn't a number, null until then. */
+    private Object[] values;
+
+    /**
+     * Creates an array of numbers.
+     *
+     * @param numbers the elements, which are not copied
+     */
+    JmplArray(double[] numbers) {
+        this.numbers = numbers;
+    }
+
+    /**
+     * Creates an array, storing the elements unboxed if they are all numbers.
+     *
+     * @param elements the elements, which are not copied
+     */
+    JmplArray(Object[] elements) {
+        for(Object element : elements) {
+            if(!(element instanceof Double)) {
+                values = elements;
+                return;
+            }
+        }
+
+        numbers = new double[elements.length];
+        for(int i = 0; i < elements.length; i++) numbers[i] = (Double)elements[i];
+    }
+
+    /**
+     * Creates an array of the elements given by an iterator, in order.
+     *
+     * @param elements the elements
+     * @return         the array
+     */
+    private static JmplArray collect(Iterator<Object> elements) {
+        double[] numbers = new double[8];
+        int count = 0;
+
+        // Numbers are stored unboxed until something else comes along
+        while(elements.hasNext()) {
+            Object element = elements.next();
+
+            if(!(element instanceof Double)) {
+                Object[] values = new Object[Math.max(numbers.length, count + 1)];
+                for(int i = 0; i < count; i++) values[i] = numbers[i];
+                values[count++] = element;
+
+                while(elements.hasNext()) {
+                    if(count == values.length) values = Arrays.copyOf(values, count * 2);
+                    values[count++] = elements.next();
+                }
+
+                return new JmplArray(Arrays.copyOf(values, count));
+            }
+
+            if(count == numbers.length) numbers = Arrays.copyOf(numbers, count * 2);
+            numbers[count++] = (Double)element;
+        }
+
+        return new JmplArray(Arrays.copyOf(numbers, count));
+    }
+
+    /**
+     * Creates the array of an array comprehension, passing the elements of its source through its predicate and
+     * element expression in order.
+     *
+     * @param source the set or array the elements are taken from
+     * @param stage  gives the element each source element becomes, or {@link LazySet#SKIP}
+     * @return       the array
+     */
+    static JmplArray comprehend(Object source, UnaryOperator<Object> stage) {
+        Stream<Object> elements = source instanceof JmplArray ? ((JmplArray)source).stream() : ((SetView)source).stream();
+
+        return collect(elements.map(stage).filter(element -> element != LazySet.SKIP).iterator());
+    }
+
+    /**
+     * Gets the number of elements.
+     *
+     * @return the length of the array
+     */
+    int length() {
+        return numbers != null ? numbers.length : values.length;
+    }
+
+    /**
+     * Gets an element.
+     *
+     * @param index the index of the element, which must be in range
+     * @return      the element
+     */
+    Object get(int index) {
+        return numbers != null ? numbers[index] : values[index];
+    }
+
+    /**
+     * Replaces an element.
+     *
+     * @param index the index of the element, which must be in range
+     * @param value the new element
+     */
+    void set(int index, Object value) {
+        if(value instanceof Double) {
+            setNumber(index, (Double)value);
+            return;
+        }
+
+        if(numbers != null) box();
+        values[index] = value;
+    }
+
+    /**
+     * Replaces an element with a number, without boxing it if every element is a number.
+     *
+     * @param index  the index of the element, which must be in range
+     * @param number the new element
+     */
+    void setNumber(int index, double number) {
+        if(numbers != null) numbers[index] = number; else values[index] = number;
+    }
+
+    /**
+     * Moves the elements out of the unboxed array, once something other than a number is stored.
+     */
+    private void box() {
+        values = new Object[numbers.length];
+        for(int i = 0; i < numbers.length; i++) values[i] = numbers[i];
+
+        numbers = null;
+    }
+
+    /**
+     * Checks if an element is in the array, searching it from the start.
+     *
+     * @param element the element
+     * @return        whether it is in the array
+     */
+    boolean contains(Object element) {
+        if(numbers != null) return element instanceof Double && containsNumber((Double)element);
+
+        for(Object value : values) {
+            if(Interpreter.isEqual(value, element)) return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Checks if a number is in the array, without boxing it if every element is a number.
+     *
+     * @param number the number
+     * @return       whether it is in the array
+     */
+    boolean containsNumber(double number) {
+        if(numbers == null) return contains((Object)number);
+
+        // Numbers are the same if they are equal by Double.equals, as with '=='
+        long bits = Double.doubleToLongBits(number);
+        for(double element : numbers) {
+            if(Double.doubleToLongBits(element) == bits) return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Adds up the elements, exactly if they are integers.
+     *
+     * @return the sum, a double or a large integer, or null if an element isn't a number
+     */
+    Object sum() {
+        Numbers.Sum sum = new Numbers.Sum();
+
+        if(numbers != null) {
+            for(double element : numbers) sum.add(element);
+        } else {
+            for(Object element : values) {
+                if(!Numbers.isNumber(element)) return null;
+                sum.add(element);
+            }
+        }
+
+        return sum.value();
+    }
+
+    /**
+     * Gets the elements in order.
+     *
+     * @return a sequential stream of the elements
+     */
+    Stream<Object> stream() {
+        return numbers != null ? Arrays.stream(numbers).mapToObj(Double::valueOf) : Arrays.stream(values);
+    }
+
+    /**
+     * Copies the array, so changes to either aren't seen by the other.
+     *
+     * @return a new array of the same elements
+     */
+    JmplArray copy() {
+        return numbers != null ? new JmplArray(numbers.clone()) : new JmplArray(values.clone());
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if(object == this) return true;
+        if(!(object instanceof JmplArray)) return false;
+
+        JmplArray other = (JmplArray)object;
+        if(numbers != null && other.numbers != null) return Arrays.equals(numbers, other.numbers);
+        if(length() != other.length()) return false;
+
+        for(int i = 0; i < length(); i++) {
+            if(!Interpreter.isEqual(get(i), other.get(i))) return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        // The same for either storage, as Arrays.hashCode hashes numbers like Double.hashCode
+        return numbers != null ? Arrays.hashCode(numbers) : Arrays.hashCode(values);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("[");
+
+        for(int i = 0; i < length(); i++) {
+            if(i > 0) builder.append(", ");
+            builder.append(Interpreter.stringify(get(i)));
+        }
+
+        return builder.append("]").toString();
+    }
+}
@@ -1,7 +1,5 @@
 package com.jmpl.j_jmpl;
 
-import java.util.List;
-
 /**
  * Callable interface for j-jmpl. 
  * 
@@ -12,5 +10,12 @@ interface JmplCallable {
     // Arity means number of arguments taken by a function
     int arity();
 
-    Object call(Interpreter interpreter, List<Object> arguments);
+    /**
+     * Calls the function.
+     *
+     * @param interpreter the interpreter making the call
+     * @param arguments   the arguments, exactly {@link #arity()} of them, in a new array the function may keep
+     * @return            the value returned by the function
+     */
+    Object call(Interpreter interpreter, Object[] arguments);
 }
@@ -9,14 +9,42 @@ import java.util.List;
  * @author Joel Luckett
  * @version 0.1
  */
-class JmplFunction implements JmplCallable {
+class JmplFunction implements NumericCompiler.Compilable {
+    /** Number of calls before a function is compiled by the {@link NumericCompiler}. */
+    static final int COMPILE_THRESHOLD = 1000;
+    /** Most calls a deoptimised function is interpreted for before it is compiled again. */
+    static final int MAX_BACK_OFF = 1 << 20;
+
     private final Stmt.Function declaration;
+    /** The body of the function, in the list {@link Interpreter#executeFunction} runs so it isn't made every call. */
+    private final List<Stmt> body;
     /** Closure environment that holds onto surrounding variables where the function is defined. */
     private final Environment closure;
+    /** Globals used by compiled code to look up functions. */
+    private final Environment globals;
+    /** Cache of results if the function is memoised, otherwise null. */
+    private final MemoCache memo;
+    /** Whether the functions a memoised function calls have been checked to be pure. */
+    private boolean memoChecked = false;
+
+    /** Number of times the function has been called while interpreted. */
+    private int calls = 0;
+    /** Number of calls to interpret before compiling, doubled each time the function is deoptimised. */
+    private int threshold = COMPILE_THRESHOLD;
+    /** Compiled form of the function, null if it isn't compiled. */
+    private NumericCompiler.NumericFunction compiled = null;
+    /** Whether compiling failed, so it shouldn't be tried again. */
+    private boolean uncompilable = false;
+    /** Whether the function was deoptimised and hasn't been called enough since to be compiled again. */
+    private boolean deoptimised = false;
 
-    JmplFunction(Stmt.Function declaration, Environment closure) {
+    JmplFunction(Stmt.Function declaration, Environment closure, Interpreter interpreter) {
         this.closure = closure;
         this.declaration = declaration;
+        this.body = List.of(declaration.body);
+        this.globals = interpreter.globals;
+        this.memo = declaration.memo ? new MemoCache(interpreter.memoStatistics(declaration)) : null;
+        if(memo != null) globals.watch(declaration.globals);
     }
 
     @Override
@@ -25,25 +53,113 @@ class JmplFunction implements JmplCallable {
     }
 
     @Override 
-    public Object call(Interpreter interpreter, List<Object> arguments) {
-        // Define a scope for the function
-        Environment environment = new Environment(closure);
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        if(memo == null) return invoke(interpreter, arguments);
+
+        // The resolver checked the function itself, the functions it calls can only be checked once they exist
+        if(!memoChecked) {
+            String impure = interpreter.impureCall(declaration.calls);
+            if(impure != null) {
+                throw new RuntimeError(declaration.name, ErrorType.FUNCTION, "Memoised function '" + declaration.name.lexeme + "' calls '" + impure + "', which has side effects");
+            }
+
+            memoChecked = true;
+        }
+
+        // Copied, as the key is kept and the parameters can be assigned to
+        List<Object> key = Arrays.asList(arguments.clone());
+        Object result = memo.get(key, globals.memoEpoch());
+        if(result != MemoCache.MISSING) return result;
+
+        result = invoke(interpreter, arguments);
+        memo.put(key, result);
 
-        // Add all parameters as variables to the function scope
-        for (int i = 0; i < declaration.params.size(); i++) {
-            environment.define(declaration.params.get(i), arguments.get(i));
+        return result;
+    }
+
+    /**
+     * Runs the function, compiled if it is hot enough and interpreted otherwise.
+     * 
+     * @param interpreter the interpreter running the function
+     * @param arguments   the arguments of the call
+     * @return            the value returned by the function
+     */
+    private Object invoke(Interpreter interpreter, Object[] arguments) {
+        // Read once, as another thread summing in parallel can deoptimise the function at any time
+        NumericCompiler.NumericFunction function = compiled;
+        if(function == null && !uncompilable && ++calls >= threshold) {
+            deoptimised = false;
+            function = compiled();
         }
 
-        // Execute the body - its executing as a block because I don't want to make interpreter.environment package private
-        Object value = null;
-        try {
-            value = interpreter.executeBlock(Arrays.asList(declaration.body), environment);
-        } catch(Return returnValue) {
-            // Interpret the statment until it catches a return statement, then return the value
-            return returnValue.value;
+        // Hot functions are compiled and run with unboxed numbers when every argument is a number
+        if(function != null) {
+            double[] values = unbox(arguments);
+
+            if(values != null) {
+                try {
+                    return function.invoke(values);
+                } catch(NumericCompiler.Deoptimization e) {
+                    // Compiled code has no side effects, so the call can be run again in the interpreter
+                }
+            }
+        }
+
+        // The arguments become the parameters of the function's scope
+        Environment environment = new Environment(closure, arguments);
+
+        // Execute the body, giving back the returned value
+        return interpreter.executeFunction(this, body, environment);
+    }
+
+    /**
+     * Gets the declaration of the function.
+     * 
+     * @return the function's declaration
+     */
+    Stmt.Function declaration() {
+        return declaration;
+    }
+
+    @Override
+    public NumericCompiler.NumericFunction compiled() {
+        // Compiled code calls compiled functions directly, which would skip the memo cache
+        if(memo != null) return null;
+
+        NumericCompiler.NumericFunction function = compiled;
+        if(function == null && !uncompilable && !deoptimised) {
+            function = NumericCompiler.compile(this, declaration, globals);
+            compiled = function;
+            uncompilable = function == null;
+        }
+
+        return function;
+    }
+
+    @Override
+    public void deoptimise() {
+        // Backs off, so a function whose assumptions keep failing is mostly interpreted
+        compiled = null;
+        deoptimised = true;
+        calls = 0;
+        threshold = Math.min(threshold * 2, MAX_BACK_OFF);
+    }
+
+    /**
+     * Converts arguments to an array of doubles for compiled code.
+     * 
+     * @param arguments the arguments of the call
+     * @return          the unboxed arguments, or null if any argument isn't a number
+     */
+    private static double[] unbox(Object[] arguments) {
+        double[] values = new double[arguments.length];
+
+        for(int i = 0; i < values.length; i++) {
+            if(!(arguments[i] instanceof Double)) return null;
+            values[i] = (Double)arguments[i];
         }
 
-        return value;
+        return values;
     }
 
     @Override
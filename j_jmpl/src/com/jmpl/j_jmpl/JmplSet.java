@@ -0,0 +1,309 @@
+package com.jmpl.j_jmpl;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Objects;
+import java.util.stream.Stream;
+
+/**
+ * Set class for j-jmpl. Sets are values: they can't be changed once they are built, and two sets are equal if they
+ * have the same elements.
+ * <p>
+ * Numbers are stored unboxed, in an array in the order they were added and an open addressing hash table of their
+ * indices (like {@link SymbolTable}), so checking if a number is in a set doesn't allocate or unbox anything. Other
+ * elements are stored in a {@link LinkedHashSet}. Elements are the same if they are equal by
+ * {@link Interpreter#isEqual(Object, Object)}, so, as with '==', 0 and -0 are different elements.
+ *
+ * @author Joel Luckett
+ * @version 0.1
+ */
+final class JmplSet implements SetView {
+    /** The numbers in the set, in the order they were added. */
+    private double[] numbers;
+    /** Open addressing hash table of the indices of numbers plus one, 0 for an empty slot. Its length is a power of two. */
+    private int[] table;
+    private int count = 0;
+    /** The elements that aren't numbers, null until one is added. */
+    private LinkedHashSet<Object> others = null;
+
+    JmplSet() {
+        this(0);
+    }
+
+    /**
+     * Creates an empty set with room for some numbers.
+     *
+     * @param capacity the number of numbers expected
+     */
+    JmplSet(int capacity) {
+        numbers = new double[Math.max(capacity, 4)];
+        table = new int[Integer.highestOneBit(numbers.length * 2 - 1) * 2];
+    }
+
+    /**
+     * Adds an element while the set is being built. Comprehensions are stored and arrays are copied, as their
+     * elements could change.
+     *
+     * @param element the element
+     */
+    void add(Object element) {
+        if(element instanceof LazySet) element = ((LazySet)element).toSet();
+        if(element instanceof JmplArray) element = ((JmplArray)element).copy();
+
+        if(element instanceof Double) {
+            addNumber((Double)element);
+        } else {
+            if(others == null) others = new LinkedHashSet<>();
+            others.add(element);
+        }
+    }
+
+    /**
+     * Adds a number while the set is being built.
+     *
+     * @param number the number
+     */
+    void addNumber(double number) {
+        long bits = Double.doubleToLongBits(number);
+        int mask = table.length - 1;
+        int slot = hash(bits) & mask;
+
+        while(table[slot] != 0) {
+            if(Double.doubleToLongBits(numbers[table[slot] - 1]) == bits) return;
+            slot = (slot + 1) & mask;
+        }
+
+        if(count == numbers.length) numbers = Arrays.copyOf(numbers, count * 2);
+        numbers[count++] = number;
+        table[slot] = count;
+
+        // Keep the table at most half full so probes stay short
+        if(count * 2 > table.length) rehash();
+    }
+
+    /**
+     * Doubles the size of the hash table.
+     */
+    private void rehash() {
+        table = new int[table.length * 2];
+        int mask = table.length - 1;
+
+        for(int i = 0; i < count; i++) {
+            int slot = hash(Double.doubleToLongBits(numbers[i])) & mask;
+            while(table[slot] != 0) slot = (slot + 1) & mask;
+
+            table[slot] = i + 1;
+        }
+    }
+
+    /**
+     * Hashes the bits of a number, mixing them so whole numbers (which only differ in their high bits) spread out.
+     *
+     * @param bits the bits of the number
+     * @return     the hash
+     */
+    private static int hash(long bits) {
+        long mixed = bits * 0x9E3779B97F4A7C15L;
+        return (int)(mixed >>> 32);
+    }
+
+    @Override
+    public boolean contains(Object element) {
+        if(element instanceof Double) return containsNumber((Double)element);
+
+        return others != null && others.contains(element);
+    }
+
+    /**
+     * Checks if a number is in the set, without boxing it.
+     *
+     * @param number the number
+     * @return       whether it is in the set
+     */
+    @Override
+    public boolean containsNumber(double number) {
+        long bits = Double.doubleToLongBits(number);
+        int mask = table.length - 1;
+        int slot = hash(bits) & mask;
+
+        while(table[slot] != 0) {
+            if(Double.doubleToLongBits(numbers[table[slot] - 1]) == bits) return true;
+            slot = (slot + 1) & mask;
+        }
+
+        return false;
+    }
+
+    @Override
+    public long size() {
+        return count + (others == null ? 0 : others.size());
+    }
+
+    /**
+     * Adds up the numbers in the set without boxing them.
+     *
+     * @return the sum, or null if an element isn't a number
+     */
+    @Override
+    public Object sum() {
+        Numbers.Sum sum = new Numbers.Sum();
+        for(int i = 0; i < count; i++) sum.add(numbers[i]);
+
+        // Large integers are the only other numbers
+        if(others != null) {
+            for(Object element : others) {
+                if(!Numbers.isNumber(element)) return null;
+                sum.add(element);
+            }
+        }
+
+        return sum.value();
+    }
+
+    @Override
+    public Stream<Object> stream() {
+        Stream<Object> elements = Arrays.stream(numbers, 0, count).mapToObj(Double::valueOf);
+
+        return others == null ? elements : Stream.concat(elements, others.stream());
+    }
+
+    @Override
+    public JmplSet toSet() {
+        return this;
+    }
+
+    //#region Set operations
+
+    /**
+     * Gets the union of this set and another, the elements in either.
+     *
+     * @param other the other set
+     * @return      a new set of the elements in either set
+     */
+    JmplSet union(JmplSet other) {
+        JmplSet union = new JmplSet(count + other.count);
+
+        union.addAll(this);
+        union.addAll(other);
+
+        return union;
+    }
+
+    /**
+     * Gets the intersection of this set and another, the elements in both.
+     *
+     * @param other the other set
+     * @return      a new set of the elements in both sets
+     */
+    JmplSet intersection(SetView other) {
+        // Look up the elements of the smaller set in the larger one, or of this set in one that isn't stored
+        JmplSet smaller = other instanceof JmplSet && other.size() < size() ? (JmplSet)other : this;
+        SetView larger = smaller == this ? other : this;
+        JmplSet intersection = new JmplSet(smaller.count);
+
+        for(int i = 0; i < smaller.count; i++) {
+            if(larger.containsNumber(smaller.numbers[i])) intersection.addNumber(smaller.numbers[i]);
+        }
+
+        if(smaller.others != null) {
+            for(Object element : smaller.others) {
+                if(larger.contains(element)) intersection.add(element);
+            }
+        }
+
+        return intersection;
+    }
+
+    /**
+     * Gets the difference of this set and another, the elements in this set but not the other.
+     *
+     * @param other the other set
+     * @return      a new set of the elements only in this set
+     */
+    JmplSet difference(SetView other) {
+        JmplSet difference = new JmplSet(count);
+
+        for(int i = 0; i < count; i++) {
+            if(!other.containsNumber(numbers[i])) difference.addNumber(numbers[i]);
+        }
+
+        if(others != null) {
+            for(Object element : others) {
+                if(!other.contains(element)) difference.add(element);
+            }
+        }
+
+        return difference;
+    }
+
+    /**
+     * Adds all the elements of another set while this set is being built.
+     *
+     * @param other the other set
+     */
+    private void addAll(JmplSet other) {
+        for(int i = 0; i < other.count; i++) addNumber(other.numbers[i]);
+
+        if(other.others != null) {
+            if(others == null) others = new LinkedHashSet<>();
+            others.addAll(other.others);
+        }
+    }
+
+    //#endregion
+
+    @Override
+    public boolean equals(Object object) {
+        if(object == this) return true;
+        if(object instanceof LazySet) object = ((LazySet)object).toSet();
+        if(!(object instanceof SetView)) return false;
+
+        // Sets of the same size are equal if one has every element of the other
+        SetView other = (SetView)object;
+        if(size() != other.size()) return false;
+
+        for(int i = 0; i < count; i++) {
+            if(!other.containsNumber(numbers[i])) return false;
+        }
+
+        if(others != null) {
+            for(Object element : others) {
+                if(!other.contains(element)) return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        // The order of elements doesn't matter, so their hashes are added
+        int hash = 0;
+
+        for(int i = 0; i < count; i++) hash += Double.hashCode(numbers[i]);
+        if(others != null) {
+            for(Object element : others) hash += Objects.hashCode(element);
+        }
+
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("{");
+
+        for(int i = 0; i < count; i++) {
+            if(i > 0) builder.append(", ");
+            builder.append(Interpreter.stringify(numbers[i]));
+        }
+
+        if(others != null) {
+            for(Object element : others) {
+                if(builder.length() > 1) builder.append(", ");
+                builder.append(Interpreter.stringify(element));
+            }
+        }
+
+        return builder.append("}").toString();
+    }
+}
@@ -0,0 +1,126 @@
+package com.jmpl.j_jmpl;
+
+import java.util.Iterator;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+
+/**
+ * The value of a set comprehension. Nothing is evaluated until the set is used: each use streams the elements of
+ * the source set through the comprehension's predicate and element expression together, one element at a time,
+ * so counting, summing or searching the elements doesn't store them.
+ * <p>
+ * Comprehensions that only filter have each element of their source at most once, and membership is checked by
+ * looking the element up in the source and testing the predicate on it. Mapped elements can repeat, so the
+ * elements seen so far are kept to skip repeats. Operators that need the whole set, like '∪' and '==', store it
+ * in a {@link JmplSet} first.
+ * <p>
+ * Variables the expressions use are looked up when the set is used, not when it is created.
+ *
+ * @author Joel Luckett
+ * @version 0.1
+ */
+final class LazySet implements SetView {
+    /** Given by a stage for an element the predicate filters out. */
+    static final Object SKIP = new Object();
+
+    /**
+     * The predicate and element expression of a comprehension, fused into one function.
+     */
+    interface Stage {
+        /**
+         * Starts a pass over the elements of the source. Each pass evaluates on its own, so passes can run at the
+         * same time on different threads.
+         *
+         * @return a function giving the element each source element becomes, or {@link LazySet#SKIP}
+         */
+        UnaryOperator<Object> open();
+    }
+
+    private final SetView source;
+    private final Stage stage;
+    /** Whether elements are mapped to the values of an expression, rather than only filtered. */
+    private final boolean mapped;
+
+    /**
+     * Creates the value of a set comprehension.
+     *
+     * @param source the set the elements are taken from
+     * @param stage  the predicate and element expression
+     * @param mapped whether the stage maps elements to other values
+     */
+    LazySet(SetView source, Stage stage, boolean mapped) {
+        this.source = source;
+        this.stage = stage;
+        this.mapped = mapped;
+    }
+
+    @Override
+    public Stream<Object> stream() {
+        Stream<Object> elements = source.stream().map(stage.open()).filter(element -> element != SKIP);
+
+        // Different elements can be mapped to the same value
+        return mapped ? elements.distinct() : elements;
+    }
+
+    @Override
+    public boolean contains(Object element) {
+        if(!mapped) return source.contains(element) && stage.open().apply(element) != SKIP;
+
+        return stream().anyMatch(other -> Interpreter.isEqual(element, other));
+    }
+
+    @Override
+    public boolean containsNumber(double number) {
+        if(!mapped) return source.containsNumber(number) && stage.open().apply(number) != SKIP;
+
+        return contains(number);
+    }
+
+    @Override
+    public long size() {
+        return stream().count();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        // Elements can be null, which streams can't find
+        return !stream().iterator().hasNext();
+    }
+
+    @Override
+    public Object sum() {
+        Numbers.Sum sum = new Numbers.Sum();
+
+        for(Iterator<Object> elements = stream().iterator(); elements.hasNext();) {
+            Object element = elements.next();
+            if(!Numbers.isNumber(element)) return null;
+
+            sum.add(element);
+        }
+
+        return sum.value();
+    }
+
+    @Override
+    public JmplSet toSet() {
+        JmplSet set = new JmplSet();
+        stream().forEachOrdered(set::add);
+
+        return set;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        return object instanceof SetView && toSet().equals(object);
+    }
+
+    @Override
+    public int hashCode() {
+        return toSet().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return toSet().toString();
+    }
+}
@@ -0,0 +1,98 @@
+package com.jmpl.j_jmpl;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of the results of a memoised function, keyed by its arguments. Holds at most {@link #CAPACITY} results,
+ * evicting the least recently used when it is full.
+ * <p>
+ * Pure functions can be called from summations running in parallel, so the cache is synchronised. Arrays can be
+ * changed after the call, so arrays in the arguments and results are copied into and out of the cache.
+ *
+ * @author Joel Luckett
+ * @version 0.1
+ */
+class MemoCache {
+    /** Most results kept by each memoised function. */
+    static final int CAPACITY = 1 << 12;
+    /** Returned by {@link #get(List, int)} when the arguments aren't cached, as null is a valid result. */
+    static final Object MISSING = new Object();
+
+    private final Statistics statistics;
+    private final Map<List<Object>, Object> results;
+    /** The {@link Environment#memoEpoch()} the results were cached at. */
+    private int epoch = 0;
+
+    /**
+     * Hit and miss counters shared by every cache created for the same function declaration, used to size
+     * {@link #CAPACITY}.
+     */
+    static class Statistics {
+        final Token name;
+        final LongAdder hits = new LongAdder();
+        final LongAdder misses = new LongAdder();
+        final LongAdder evictions = new LongAdder();
+
+        Statistics(Token name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name.lexeme + " (line " + name.line + "): " + hits.sum() + " hits, " + misses.sum() + " misses, " + evictions.sum() + " evictions";
+        }
+    }
+
+    MemoCache(Statistics statistics) {
+        this.statistics = statistics;
+
+        // Access order makes the eldest entry the least recently used
+        this.results = new LinkedHashMap<List<Object>, Object>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<Object>, Object> eldest) {
+                if(size() <= CAPACITY) return false;
+
+                statistics.evictions.increment();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Gets a cached result. Every result is thrown away first if a global the function reads has been assigned since
+     * they were cached.
+     *
+     * @param arguments the arguments of the call
+     * @param epoch     the globals' current {@link Environment#memoEpoch()}
+     * @return          the result, or {@link #MISSING} if it isn't cached
+     */
+    synchronized Object get(List<Object> arguments, int epoch) {
+        if(epoch != this.epoch) {
+            results.clear();
+            this.epoch = epoch;
+        }
+
+        Object result = results.getOrDefault(arguments, MISSING);
+
+        if(result == MISSING) statistics.misses.increment(); else statistics.hits.increment();
+
+        return result instanceof JmplArray ? ((JmplArray)result).copy() : result;
+    }
+
+    /**
+     * Caches a result.
+     *
+     * @param arguments the arguments of the call, which must not be changed afterwards
+     * @param result    the value returned by the call
+     */
+    synchronized void put(List<Object> arguments, Object result) {
+        if(arguments.stream().anyMatch(argument -> argument instanceof JmplArray)) {
+            arguments = arguments.stream().map(argument -> argument instanceof JmplArray ? ((JmplArray)argument).copy() : argument).toList();
+        }
+
+        results.put(arguments, result instanceof JmplArray ? ((JmplArray)result).copy() : result);
+    }
+}
@@ -0,0 +1,316 @@
+package com.jmpl.j_jmpl;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+
+/**
+ * Exact integer arithmetic for j-jmpl. Numbers are doubles, which hold every integer up to 2^53 exactly, so
+ * arithmetic on integers is exact and unboxed as long as its results stay in that range. When an operation on
+ * two integers gives a result past it, the result is worked out exactly as a {@link BigInteger} instead, which
+ * stays exact however large it gets.
+ * <p>
+ * Each integer has one representation: integers up to 2^53 in magnitude are always doubles and a BigInteger is
+ * always larger, so equal integers are equal values. Doubles past 2^53 that come from arithmetic on numbers that
+ * aren't integers are inexact, and arithmetic on them stays in doubles. An exact and an inexact number are never
+ * equal, even if they have the same value.
+ *
+ * @author Joel Luckett
+ * @version 0.1
+ */
+final class Numbers {
+    /** 2^53, the largest magnitude up to which every integer is a double. */
+    static final double EXACT_LIMIT = 0x1p53;
+    private static final BigInteger EXACT_LIMIT_INTEGER = BigInteger.ONE.shiftLeft(53);
+
+    private Numbers() {}
+
+    /**
+     * Checks if a value is a number, either a double or a large integer.
+     *
+     * @param value the value
+     * @return      whether it is a number
+     */
+    static boolean isNumber(Object value) {
+        return value instanceof Double || value instanceof BigInteger;
+    }
+
+    /**
+     * Checks if a double is an integer small enough to be exact.
+     *
+     * @param number the number
+     * @return       whether it is an integer no larger than 2^53 in magnitude
+     */
+    static boolean isExactInteger(double number) {
+        return Math.abs(number) <= EXACT_LIMIT && Math.floor(number) == number;
+    }
+
+    /**
+     * Checks if a number is an exact integer, so operations on it can give a large integer.
+     *
+     * @param number a double or a large integer
+     * @return       whether it is exact
+     */
+    private static boolean isExact(Object number) {
+        return number instanceof BigInteger || isExactInteger((Double)number);
+    }
+
+    /**
+     * Checks if the result of an operation on two doubles might not be exact, when it is an integer past 2^53.
+     *
+     * @param result the result of the operation
+     * @param left   the left operand
+     * @param right  the right operand
+     * @return       whether the operation has to be redone exactly
+     */
+    static boolean isInexact(double result, double left, double right) {
+        return Math.abs(result) >= EXACT_LIMIT && isExactInteger(left) && isExactInteger(right);
+    }
+
+    /**
+     * Gives an integer as a double if it is small enough to be exact, so each integer has one representation.
+     *
+     * @param integer the integer
+     * @return        the integer as a double, or the integer itself if it is larger than 2^53 in magnitude
+     */
+    static Object valueOf(BigInteger integer) {
+        return integer.abs().compareTo(EXACT_LIMIT_INTEGER) <= 0 ? (Object)integer.doubleValue() : integer;
+    }
+
+    /**
+     * Converts an exact number to a large integer.
+     *
+     * @param number an exact integer, see {@link #isExact(Object)}
+     * @return       the number as a BigInteger
+     */
+    private static BigInteger toInteger(Object number) {
+        return number instanceof BigInteger ? (BigInteger)number : BigInteger.valueOf((long)(double)(Double)number);
+    }
+
+    /**
+     * Converts a number to the nearest double.
+     *
+     * @param number a double or a large integer
+     * @return       the number as a double
+     */
+    static double toDouble(Object number) {
+        return number instanceof Double ? (Double)number : ((BigInteger)number).doubleValue();
+    }
+
+    //#region Arithmetic
+
+    /**
+     * Adds two numbers, exactly if they are both integers.
+     *
+     * @param left  the left number
+     * @param right the right number
+     * @return      the sum
+     */
+    static Object add(Object left, Object right) {
+        if(left instanceof Double && right instanceof Double) {
+            double result = (Double)left + (Double)right;
+            if(!isInexact(result, (Double)left, (Double)right)) return result;
+        }
+
+        if(isExact(left) && isExact(right)) return valueOf(toInteger(left).add(toInteger(right)));
+
+        return toDouble(left) + toDouble(right);
+    }
+
+    /**
+     * Subtracts one number from another, exactly if they are both integers.
+     *
+     * @param left  the left number
+     * @param right the right number
+     * @return      the difference
+     */
+    static Object subtract(Object left, Object right) {
+        if(left instanceof Double && right instanceof Double) {
+            double result = (Double)left - (Double)right;
+            if(!isInexact(result, (Double)left, (Double)right)) return result;
+        }
+
+        if(isExact(left) && isExact(right)) return valueOf(toInteger(left).subtract(toInteger(right)));
+
+        return toDouble(left) - toDouble(right);
+    }
+
+    /**
+     * Multiplies two numbers, exactly if they are both integers.
+     *
+     * @param left  the left number
+     * @param right the right number
+     * @return      the product
+     */
+    static Object multiply(Object left, Object right) {
+        if(left instanceof Double && right instanceof Double) {
+            double result = (Double)left * (Double)right;
+            if(!isInexact(result, (Double)left, (Double)right)) return result;
+        }
+
+        if(isExact(left) && isExact(right)) return valueOf(toInteger(left).multiply(toInteger(right)));
+
+        return toDouble(left) * toDouble(right);
+    }
+
+    /**
+     * Divides one number by another, which must not be 0. Large integers that divide exactly give an integer,
+     * and otherwise the quotient is rounded to a double.
+     *
+     * @param left  the dividend
+     * @param right the divisor
+     * @return      the quotient
+     */
+    static Object divide(Object left, Object right) {
+        if(left instanceof Double && right instanceof Double) return (Double)left / (Double)right;
+
+        if(isExact(left) && isExact(right)) {
+            BigInteger[] quotient = toInteger(left).divideAndRemainder(toInteger(right));
+            if(quotient[1].signum() == 0) return valueOf(quotient[0]);
+
+            return new BigDecimal(toInteger(left)).divide(new BigDecimal(toInteger(right)), MathContext.DECIMAL128).doubleValue();
+        }
+
+        return toDouble(left) / toDouble(right);
+    }
+
+    /**
+     * Raises one number to the power of another, exactly if the base is an integer and the power is a
+     * non-negative integer.
+     *
+     * @param left  the base
+     * @param right the power
+     * @return      the result
+     */
+    static Object power(Object left, Object right) {
+        if(left instanceof Double && right instanceof Double) {
+            double result = Math.pow((Double)left, (Double)right);
+            if(!isInexact(result, (Double)left, (Double)right)) return result;
+        }
+
+        // Powers too large for an int would need more memory than there is, unless the base is 0 or ±1
+        if(isExact(left) && right instanceof Double && isExactInteger((Double)right) && (Double)right >= 0 && (Double)right <= Integer.MAX_VALUE) {
+            try {
+                return valueOf(toInteger(left).pow((int)(double)(Double)right));
+            } catch(ArithmeticException e) {
+                // Past the range of BigInteger, which is only infinity as a double
+            }
+        }
+
+        return Math.pow(toDouble(left), toDouble(right));
+    }
+
+    /**
+     * Negates a number.
+     *
+     * @param number the number
+     * @return       the negated number
+     */
+    static Object negate(Object number) {
+        return number instanceof Double ? (Object)(-(Double)number) : ((BigInteger)number).negate();
+    }
+
+    /**
+     * Compares two numbers exactly.
+     *
+     * @param left  the left number
+     * @param right the right number
+     * @return      negative, zero or positive as the left number is less than, equal to or greater than the right,
+     *              or null if either is NaN
+     */
+    static Integer compare(Object left, Object right) {
+        double a = toDouble(left);
+        double b = toDouble(right);
+        if(Double.isNaN(a) || Double.isNaN(b)) return null;
+
+        // Infinities are past every integer, even ones too large to be a double
+        if(left instanceof Double && Double.isInfinite(a) || right instanceof Double && Double.isInfinite(b)) {
+            return order(left instanceof Double ? a : 0, right instanceof Double ? b : 0);
+        }
+        if(left instanceof Double && right instanceof Double) return order(a, b);
+
+        return toDecimal(left).compareTo(toDecimal(right));
+    }
+
+    /**
+     * Compares two doubles that aren't NaN, as '<' and '>' do, so 0 and -0 are equal.
+     *
+     * @param left  the left number
+     * @param right the right number
+     * @return      -1, 0 or 1 as the left number is less than, equal to or greater than the right
+     */
+    private static int order(double left, double right) {
+        return left < right ? -1 : left > right ? 1 : 0;
+    }
+
+    /**
+     * Converts a finite number to an exact decimal.
+     *
+     * @param number the number
+     * @return       the number as a BigDecimal
+     */
+    private static BigDecimal toDecimal(Object number) {
+        return number instanceof Double ? new BigDecimal((Double)number) : new BigDecimal((BigInteger)number);
+    }
+
+    //#endregion
+
+    /**
+     * Adds up numbers, unboxed until the total is an integer too large to be a double.
+     */
+    static final class Sum {
+        private double total = 0;
+        /** The total once it is a large integer, null until then. */
+        private Object exact = null;
+
+        /**
+         * Adds a number to the total.
+         *
+         * @param number the number
+         */
+        void add(double number) {
+            if(exact == null) {
+                double next = total + number;
+                if(!isInexact(next, total, number)) {
+                    total = next;
+                    return;
+                }
+            }
+
+            promote(number);
+        }
+
+        /**
+         * Adds a number to the total.
+         *
+         * @param number a double or a large integer
+         */
+        void add(Object number) {
+            if(number instanceof Double) add((double)(Double)number); else promote(number);
+        }
+
+        /**
+         * Adds a number to the total exactly, going back to an unboxed total if the result is small enough.
+         *
+         * @param number a double or a large integer
+         */
+        private void promote(Object number) {
+            Object result = Numbers.add(exact != null ? exact : total, number);
+            if(result instanceof Double) {
+                total = (Double)result;
+                exact = null;
+            } else {
+                exact = result;
+            }
+        }
+
+        /**
+         * Gets the total.
+         *
+         * @return the total, a double or a large integer
+         */
+        Object value() {
+            return exact != null ? exact : (Object)total;
+        }
+    }
+}
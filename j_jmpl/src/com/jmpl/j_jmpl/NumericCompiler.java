@@ -0,0 +1,720 @@
+package com.jmpl.j_jmpl;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compiler for the numeric tier of j-jmpl. Compiles hot functions of either engine whose bodies only do arithmetic on
+ * their parameters into a tree of nodes that work on primitive doubles, with no boxing, visitor dispatch or
+ * exception-based returns.
+ * <p>
+ * Compiled code assumes every value is a number. It only supports pure code (parameters, number literals,
+ * arithmetic, conditions, returns and calls to other compiled functions), so when an assumption fails the call
+ * can be safely restarted in the {@link Interpreter} by throwing a {@link Deoptimization}. Integer results too
+ * large to be exact as doubles restart the call the same way.
+ *
+ * @author Joel Luckett
+ * @version 0.1
+ */
+class NumericCompiler {
+    /** The function being compiled. */
+    private final Compilable owner;
+    private final Stmt.Function declaration;
+    /** The environment that stores globals, used to look up called functions. */
+    private final Environment globals;
+    /** Whether the function has tail calls to itself, which need a frame with room for a flag. */
+    private boolean tailCalls = false;
+
+    /**
+     * A function that can be compiled to the numeric tier, a {@link JmplFunction} or a {@link VmClosure}.
+     */
+    interface Compilable extends JmplCallable {
+        /**
+         * Gets the compiled form of the function, compiling it if it hasn't been yet.
+         *
+         * @return the compiled function, or null if it can't be compiled
+         */
+        NumericFunction compiled();
+
+        /**
+         * Throws away the compiled form of the function when one of its assumptions fails. The function is compiled
+         * again once it has been called enough more times, in case the values that failed were rare.
+         */
+        void deoptimise();
+    }
+
+    /**
+     * Thrown when compiled code meets a value it can't handle. Stackless, as it is only used for control flow.
+     */
+    static class Deoptimization extends RuntimeException {
+        static final Deoptimization INSTANCE = new Deoptimization();
+
+        private Deoptimization() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * Thrown while compiling when a function uses something the numeric tier does not support.
+     */
+    private static class Unsupported extends RuntimeException {
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * Checks the result of an operation on two numbers is exact. Integers past 2^53 might have been rounded, and
+     * are left to the interpreter to work out exactly, see {@link Numbers}. The function is deoptimised so the calls
+     * after it don't keep running compiled code only to give up, until it is compiled again.
+     *
+     * @param result the result of the operation
+     * @param left   the left operand
+     * @param right  the right operand
+     * @return       the result
+     */
+    private double checkExact(double result, double left, double right) {
+        if(Numbers.isInexact(result, left, right)) {
+            owner.deoptimise();
+            throw Deoptimization.INSTANCE;
+        }
+
+        return result;
+    }
+
+    private NumericCompiler(Compilable owner, Stmt.Function declaration, Environment globals) {
+        this.owner = owner;
+        this.declaration = declaration;
+        this.globals = globals;
+    }
+
+    /**
+     * Compiles a function to the numeric tier.
+     *
+     * @param owner       the function being compiled
+     * @param declaration the declaration of the function
+     * @param globals     the environment that stores globals
+     * @return            the compiled function, or null if the function can't be compiled
+     */
+    static NumericFunction compile(Compilable owner, Stmt.Function declaration, Environment globals) {
+        try {
+            NumericCompiler compiler = new NumericCompiler(owner, declaration, globals);
+
+            // The body is executed as a block of one statement in the scope holding the parameters
+            Node body = compiler.sequence(List.of(declaration.body), 0, 0);
+            return new NumericFunction(declaration.params.size(), body, compiler.tailCalls);
+        } catch(Unsupported e) {
+            return null;
+        }
+    }
+
+    /**
+     * The compiled form of a function.
+     */
+    static class NumericFunction {
+        final int arity;
+        private final Node body;
+        private final boolean tailCalls;
+
+        NumericFunction(int arity, Node body, boolean tailCalls) {
+            this.arity = arity;
+            this.body = body;
+            this.tailCalls = tailCalls;
+        }
+
+        /**
+         * Runs the compiled function.
+         *
+         * @param arguments the arguments of the call
+         * @return          the value returned by the function
+         * @throws Deoptimization if the function has to be run in the interpreter instead
+         */
+        double invoke(double[] arguments) {
+            if(!tailCalls) return body.eval(arguments);
+
+            // A tail call replaces the arguments in the frame and sets the slot after them, so the body runs again
+            double[] frame = Arrays.copyOf(arguments, arity + 1);
+            while(true) {
+                double value = body.eval(frame);
+                if(frame[arity] == 0) return value;
+
+                frame[arity] = 0;
+            }
+        }
+    }
+
+    //#region Compiling
+
+    /**
+     * Compiles the statements of a block from a given index into a node giving the block's value, following the
+     * implicit return rules of {@link Interpreter#executeBlock(List, Environment)}.
+     *
+     * @param statements the statements of the block
+     * @param index      the index of the first statement to compile
+     * @param level      the number of scopes between the block and the parameters
+     * @return           a node giving the value of the block
+     */
+    private Node sequence(List<Stmt> statements, int index, int level) {
+        if(index >= statements.size()) throw new Unsupported();
+
+        Stmt statement = statements.get(index);
+        boolean last = index == statements.size() - 1;
+
+        if(statement instanceof Stmt.Return) {
+            // Anything after a return is unreachable
+            Stmt.Return stmt = (Stmt.Return)statement;
+            if(stmt.value == null) throw new Unsupported();
+
+            return expression(stmt.value, level);
+        } else if(statement instanceof Stmt.If) {
+            Stmt.If stmt = (Stmt.If)statement;
+
+            // A branch that does not return falls through to the rest of the block
+            Node thenBranch = returns(stmt.thenBranch) ? branch(stmt.thenBranch, level) : sequence(statements, index + 1, level);
+
+            Node elseBranch;
+            if(stmt.elseBranch != null && returns(stmt.elseBranch)) {
+                elseBranch = branch(stmt.elseBranch, level);
+            } else if(stmt.elseBranch == null) {
+                elseBranch = sequence(statements, index + 1, level);
+            } else {
+                throw new Unsupported();
+            }
+
+            // Non-returning branches must be empty of side effects, which only expression statements could have
+            if(!returns(stmt.thenBranch) && !isEmpty(stmt.thenBranch)) throw new Unsupported();
+
+            return new Choose(condition(stmt.condition, level), thenBranch, elseBranch);
+        } else if(last && statement instanceof Stmt.Expression) {
+            // Implicitly return the last expression
+            return expression(((Stmt.Expression)statement).expression, level);
+        } else if(statement instanceof Stmt.Block && (last || returns(statement))) {
+            return sequence(((Stmt.Block)statement).statements, 0, level + 1);
+        }
+
+        throw new Unsupported();
+    }
+
+    /**
+     * Compiles a branch of an if statement that always returns.
+     *
+     * @param branch the branch statement
+     * @param level  the number of scopes between the branch and the parameters
+     * @return       a node giving the returned value
+     */
+    private Node branch(Stmt branch, int level) {
+        if(branch instanceof Stmt.Block) return sequence(((Stmt.Block)branch).statements, 0, level + 1);
+
+        return sequence(List.of(branch), 0, level);
+    }
+
+    /**
+     * Checks if a statement always returns from the function.
+     *
+     * @param statement the statement to check
+     * @return          whether the statement always returns
+     */
+    private boolean returns(Stmt statement) {
+        if(statement instanceof Stmt.Return) return true;
+
+        if(statement instanceof Stmt.If) {
+            Stmt.If stmt = (Stmt.If)statement;
+            return stmt.elseBranch != null && returns(stmt.thenBranch) && returns(stmt.elseBranch);
+        }
+
+        if(statement instanceof Stmt.Block) {
+            for(Stmt inner : ((Stmt.Block)statement).statements) {
+                if(returns(inner)) return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Checks if a statement is an empty block.
+     *
+     * @param statement the statement to check
+     * @return          whether the statement does nothing
+     */
+    private boolean isEmpty(Stmt statement) {
+        return statement instanceof Stmt.Block && ((Stmt.Block)statement).statements.isEmpty();
+    }
+
+    /**
+     * Compiles an expression that gives a number.
+     *
+     * @param expr  the expression to compile
+     * @param level the number of scopes between the expression and the parameters
+     * @return      a node giving the value of the expression
+     */
+    private Node expression(Expr expr, int level) {
+        if(expr instanceof Expr.Literal) {
+            Object value = ((Expr.Literal)expr).value;
+            if(!(value instanceof Double)) throw new Unsupported();
+
+            return new Constant((double)value);
+        }
+
+        if(expr instanceof Expr.Grouping) return expression(((Expr.Grouping)expr).expression, level);
+
+        if(expr instanceof Expr.Variable) {
+            // Only the function's own parameters can be read
+            Expr.Variable variable = (Expr.Variable)expr;
+            if(variable.depth != level) throw new Unsupported();
+
+            return new Parameter(variable.slot);
+        }
+
+        if(expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            if(unary.operator.type != TokenType.MINUS) throw new Unsupported();
+
+            return new Negate(expression(unary.right, level));
+        }
+
+        if(expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            Node left = expression(binary.left, level);
+            Node right = expression(binary.right, level);
+
+            switch(binary.operator.type) {
+                case TokenType.PLUS: return new Add(left, right);
+                case TokenType.MINUS: return new Subtract(left, right);
+                case TokenType.ASTERISK: return new Multiply(left, right);
+                case TokenType.SLASH: return new Divide(left, right, binary.operator);
+                case TokenType.CARET: return new Power(left, right);
+                default: throw new Unsupported();
+            }
+        }
+
+        if(expr instanceof Expr.Call) {
+            // Only functions stored in globals can be called
+            Expr.Call call = (Expr.Call)expr;
+            if(!(call.callee instanceof Expr.Variable) || ((Expr.Variable)call.callee).depth != Resolver.GLOBAL) throw new Unsupported();
+
+            Node[] arguments = new Node[call.arguments.size()];
+            for(int i = 0; i < arguments.length; i++) {
+                arguments[i] = expression(call.arguments.get(i), level);
+            }
+
+            if(call.tail) {
+                tailCalls = true;
+                return new TailCall(((Expr.Variable)call.callee).name, call.paren, arguments);
+            }
+
+            return new Call(((Expr.Variable)call.callee).name, call.paren, arguments);
+        }
+
+        throw new Unsupported();
+    }
+
+    /**
+     * Compiles an expression whose truth value is used as a condition.
+     *
+     * @param expr  the expression to compile
+     * @param level the number of scopes between the expression and the parameters
+     * @return      a condition giving the truth value of the expression
+     */
+    private Condition condition(Expr expr, int level) {
+        if(expr instanceof Expr.Grouping) return condition(((Expr.Grouping)expr).expression, level);
+
+        if(expr instanceof Expr.Unary && ((Expr.Unary)expr).operator.type == TokenType.NOT) {
+            return new Not(condition(((Expr.Unary)expr).right, level));
+        }
+
+        if(expr instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical)expr;
+            Condition left = condition(logical.left, level);
+            Condition right = condition(logical.right, level);
+
+            return logical.operator.type == TokenType.OR ? new Or(left, right) : new And(left, right);
+        }
+
+        if(expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+
+            switch(binary.operator.type) {
+                case TokenType.GREATER: return new Greater(expression(binary.left, level), expression(binary.right, level));
+                case TokenType.GREATER_EQUAL: return new GreaterEqual(expression(binary.left, level), expression(binary.right, level));
+                case TokenType.LESS: return new Less(expression(binary.left, level), expression(binary.right, level));
+                case TokenType.LESS_EQUAL: return new LessEqual(expression(binary.left, level), expression(binary.right, level));
+                case TokenType.EQUAL_EQUAL: return new Equal(expression(binary.left, level), expression(binary.right, level));
+                case TokenType.NOT_EQUAL: return new Not(new Equal(expression(binary.left, level), expression(binary.right, level)));
+                default: break;
+            }
+        }
+
+        // Numbers are true unless they are zero
+        return new Truthy(expression(expr, level));
+    }
+
+    //#endregion
+
+    //#region Nodes
+
+    /** A compiled expression that gives a number. */
+    abstract static class Node {
+        abstract double eval(double[] arguments);
+    }
+
+    /** A compiled expression whose truth value is used as a condition. */
+    abstract static class Condition {
+        abstract boolean test(double[] arguments);
+    }
+
+    private static class Constant extends Node {
+        private final double value;
+
+        Constant(double value) {
+            this.value = value;
+        }
+
+        @Override
+        double eval(double[] arguments) {
+            return value;
+        }
+    }
+
+    private static class Parameter extends Node {
+        private final int slot;
+
+        Parameter(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        double eval(double[] arguments) {
+            return arguments[slot];
+        }
+    }
+
+    private static class Negate extends Node {
+        private final Node right;
+
+        Negate(Node right) {
+            this.right = right;
+        }
+
+        @Override
+        double eval(double[] arguments) {
+            return -right.eval(arguments);
+        }
+    }
+
+    private class Add extends Node {
+        private final Node left;
+        private final Node right;
+
+        Add(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        double eval(double[] arguments) {
+            double a = left.eval(arguments);
+            double b = right.eval(arguments);
+
+            return checkExact(a + b, a, b);
+        }
+    }
+
+    private class Subtract extends Node {
+        private final Node left;
+        private final Node right;
+
+        Subtract(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        double eval(double[] arguments) {
+            double a = left.eval(arguments);
+            double b = right.eval(arguments);
+
+            return checkExact(a - b, a, b);
+        }
+    }
+
+    private class Multiply extends Node {
+        private final Node left;
+        private final Node right;
+
+        Multiply(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        double eval(double[] arguments) {
+            double a = left.eval(arguments);
+            double b = right.eval(arguments);
+
+            return checkExact(a * b, a, b);
+        }
+    }
+
+    private static class Divide extends Node {
+        private final Node left;
+        private final Node right;
+        private final Token operator;
+
+        Divide(Node left, Node right, Token operator) {
+            this.left = left;
+            this.right = right;
+            this.operator = operator;
+        }
+
+        @Override
+        double eval(double[] arguments) {
+            double a = left.eval(arguments);
+            double b = right.eval(arguments);
+
+            if(b == 0) throw new RuntimeError(operator, ErrorType.ZERO_DIVISION, "Division by 0");
+
+            return a / b;
+        }
+    }
+
+    private class Power extends Node {
+        private final Node left;
+        private final Node right;
+
+        Power(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        double eval(double[] arguments) {
+            double a = left.eval(arguments);
+            double b = right.eval(arguments);
+
+            return checkExact(Math.pow(a, b), a, b);
+        }
+    }
+
+    /** Picks between two values based on a condition. Used for if statements that return. */
+    private static class Choose extends Node {
+        private final Condition condition;
+        private final Node thenBranch;
+        private final Node elseBranch;
+
+        Choose(Condition condition, Node thenBranch, Node elseBranch) {
+            this.condition = condition;
+            this.thenBranch = thenBranch;
+            this.elseBranch = elseBranch;
+        }
+
+        @Override
+        double eval(double[] arguments) {
+            return condition.test(arguments) ? thenBranch.eval(arguments) : elseBranch.eval(arguments);
+        }
+    }
+
+    /** Calls a function stored in a global, which must also be compiled. */
+    private class Call extends Node {
+        final Token name;
+        final Token paren;
+        final Node[] arguments;
+
+        Call(Token name, Token paren, Node[] arguments) {
+            this.name = name;
+            this.paren = paren;
+            this.arguments = arguments;
+        }
+
+        @Override
+        double eval(double[] frame) {
+            // Globals can be reassigned so the callee is looked up every call, as it is in the interpreter
+            Object callee = globals.get(name);
+
+            double[] values = new double[arguments.length];
+            for(int i = 0; i < arguments.length; i++) {
+                values[i] = arguments[i].eval(frame);
+            }
+
+            if(!(callee instanceof JmplCallable)) {
+                throw new RuntimeError(paren, ErrorType.SYNTAX, "Only functions can be called");
+            }
+
+            JmplCallable function = (JmplCallable)callee;
+            if(values.length != function.arity()) {
+                throw new RuntimeError(paren, ErrorType.ARGUMENT, "Expected " + function.arity() + " arguments but got " + values.length);
+            }
+
+            // Calling anything that isn't compiled could have side effects, so give up on this function
+            NumericFunction compiled = function instanceof Compilable ? ((Compilable)function).compiled() : null;
+            if(compiled == null) {
+                owner.deoptimise();
+                throw Deoptimization.INSTANCE;
+            }
+
+            return compiled.invoke(values);
+        }
+    }
+
+    /**
+     * Calls a function in tail position. If it is the function being compiled, the call is made by
+     * {@link NumericFunction#invoke(double[])} running the body again, so the stack doesn't grow.
+     */
+    private class TailCall extends Call {
+        TailCall(Token name, Token paren, Node[] arguments) {
+            super(name, paren, arguments);
+        }
+
+        @Override
+        double eval(double[] frame) {
+            if(globals.get(name) != owner || arguments.length != owner.arity()) return super.eval(frame);
+
+            // Every argument is evaluated before any parameter is replaced
+            double[] values = new double[arguments.length];
+            for(int i = 0; i < arguments.length; i++) {
+                values[i] = arguments[i].eval(frame);
+            }
+
+            System.arraycopy(values, 0, frame, 0, values.length);
+            frame[values.length] = 1;
+
+            // Ignored, as the body runs again
+            return 0;
+        }
+    }
+
+    private static class Greater extends Condition {
+        private final Node left;
+        private final Node right;
+
+        Greater(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        boolean test(double[] arguments) {
+            return left.eval(arguments) > right.eval(arguments);
+        }
+    }
+
+    private static class GreaterEqual extends Condition {
+        private final Node left;
+        private final Node right;
+
+        GreaterEqual(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        boolean test(double[] arguments) {
+            return left.eval(arguments) >= right.eval(arguments);
+        }
+    }
+
+    private static class Less extends Condition {
+        private final Node left;
+        private final Node right;
+
+        Less(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        boolean test(double[] arguments) {
+            return left.eval(arguments) < right.eval(arguments);
+        }
+    }
+
+    private static class LessEqual extends Condition {
+        private final Node left;
+        private final Node right;
+
+        LessEqual(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        boolean test(double[] arguments) {
+            return left.eval(arguments) <= right.eval(arguments);
+        }
+    }
+
+    /** Equality with the same semantics as {@link Double#equals(Object)}, which the interpreter uses. */
+    private static class Equal extends Condition {
+        private final Node left;
+        private final Node right;
+
+        Equal(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        boolean test(double[] arguments) {
+            return Double.doubleToLongBits(left.eval(arguments)) == Double.doubleToLongBits(right.eval(arguments));
+        }
+    }
+
+    private static class Not extends Condition {
+        private final Condition right;
+
+        Not(Condition right) {
+            this.right = right;
+        }
+
+        @Override
+        boolean test(double[] arguments) {
+            return !right.test(arguments);
+        }
+    }
+
+    private static class And extends Condition {
+        private final Condition left;
+        private final Condition right;
+
+        And(Condition left, Condition right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        boolean test(double[] arguments) {
+            return left.test(arguments) && right.test(arguments);
+        }
+    }
+
+    private static class Or extends Condition {
+        private final Condition left;
+        private final Condition right;
+
+        Or(Condition left, Condition right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        boolean test(double[] arguments) {
+            return left.test(arguments) || right.test(arguments);
+        }
+    }
+
+    /** The truth value of a number, which is true unless it is zero. */
+    private static class Truthy extends Condition {
+        private final Node value;
+
+        Truthy(Node value) {
+            this.value = value;
+        }
+
+        @Override
+        boolean test(double[] arguments) {
+            return value.eval(arguments) != 0;
+        }
+    }
+
+    //#endregion
+}
@@ -0,0 +1,122 @@
+package com.jmpl.j_jmpl;
+
+/**
+ * Instruction set for the j-jmpl {@link VM}. Each instruction is one byte, followed by its operands.
+ * Operands are all two bytes (big-endian) unless stated otherwise.
+ * 
+ * @author Joel Luckett
+ * @version 0.1
+ */
+final class OpCode {
+    private OpCode() {}
+
+    // Constants and literals
+    /** Push a constant. Operand: constant index. */
+    static final byte CONSTANT = 0;
+    static final byte NULL = 1;
+    static final byte TRUE = 2;
+    static final byte FALSE = 3;
+    static final byte POP = 4;
+
+    // Variables
+    /** Push a global. Operand: constant index of the name token. */
+    static final byte GET_GLOBAL = 5;
+    /** Assign the top of the stack to a global, leaving it on the stack. Operand: constant index of the name token. */
+    static final byte SET_GLOBAL = 6;
+    /** Pop the top of the stack into a new global. Operand: constant index of the name token. */
+    static final byte DEFINE_GLOBAL = 7;
+    /** Pop the top of the stack into a global. Operand: constant index of the name token. */
+    static final byte STORE_GLOBAL = 8;
+    /** Push a local. Operand: slot in the current frame. */
+    static final byte GET_LOCAL = 9;
+    /** Assign the top of the stack to a local, leaving it on the stack. Operand: slot in the current frame. */
+    static final byte SET_LOCAL = 10;
+    /** Pop the top of the stack into a local. Operand: slot in the current frame. */
+    static final byte STORE_LOCAL = 11;
+    /** Push a variable captured by the current closure. Operand: upvalue index. */
+    static final byte GET_UPVALUE = 12;
+    /** Assign the top of the stack to a captured variable, leaving it on the stack. Operand: upvalue index. */
+    static final byte SET_UPVALUE = 13;
+    /** Pop the top of the stack into a captured variable. Operand: upvalue index. */
+    static final byte STORE_UPVALUE = 14;
+    /** Close the upvalues of the locals from a slot of the current frame upwards. Operand: slot. */
+    static final byte CLOSE_UPVALUES = 15;
+
+    // Operators
+    static final byte EQUAL = 16;
+    static final byte NOT_EQUAL = 17;
+    static final byte GREATER = 18;
+    static final byte GREATER_EQUAL = 19;
+    static final byte LESS = 20;
+    static final byte LESS_EQUAL = 21;
+    static final byte ADD = 22;
+    static final byte SUBTRACT = 23;
+    static final byte MULTIPLY = 24;
+    static final byte DIVIDE = 25;
+    static final byte POWER = 26;
+    static final byte NOT = 27;
+    static final byte NEGATE = 28;
+
+    // Statements and control flow
+    static final byte OUTPUT = 29;
+    /** Jump forwards. Operand: offset. */
+    static final byte JUMP = 30;
+    /** Jump forwards if the top of the stack is not truthful, without popping it. Operand: offset. */
+    static final byte JUMP_IF_FALSE = 31;
+    /** Pop the top of the stack and jump forwards if it is not truthful. Operand: offset. */
+    static final byte POP_JUMP_IF_FALSE = 32;
+    /** Jump backwards. Operand: offset. */
+    static final byte LOOP = 33;
+
+    // Functions
+    /** Call the value below the arguments. Operand: argument count (one byte). */
+    static final byte CALL = 34;
+    /**
+     * Push a closure, capturing the variables described by the function (see {@link CompiledFunction#capturesLocal}).
+     * Operand: constant index of the {@link CompiledFunction}.
+     */
+    static final byte CLOSURE = 35;
+    static final byte RETURN = 36;
+
+    // Sequence operations, operating on [upper, index, accumulator, summand] at the top of the stack
+    /**
+     * Check the bounds and first summand, and push the accumulator below the summand. Operand: constant index of the
+     * names of the functions the summand calls if it can be summed in chunks (see {@link Summation}), or of null.
+     */
+    static final byte SUM_BEGIN = 37;
+    /** Add the summand to the accumulator, step the index and push the new index. */
+    static final byte SUM_ADD = 38;
+    /**
+     * Once the index is past the upper bound, leave only the accumulator of [upper, index, accumulator] and jump
+     * forwards past the next summand. Operand: offset.
+     */
+    static final byte SUM_NEXT = 39;
+
+    // Sets
+    /** Pop elements into a new set. Operand: element count. */
+    static final byte BUILD_SET = 40;
+    static final byte IN = 41;
+    static final byte UNION = 42;
+    static final byte INTERSECTION = 43;
+    static final byte DIFFERENCE = 44;
+    static final byte CARDINALITY = 45;
+    /** Sum the elements of a set. */
+    static final byte SUM_ELEMENTS = 46;
+    /**
+     * Replace a set and the closure of a comprehension's stage above it with the comprehension.
+     * Operand: 1 if the stage maps elements, 0 if it only filters them.
+     */
+    static final byte COMPREHENSION = 47;
+    /** Replace two integers with the range between them. */
+    static final byte RANGE = 48;
+
+    // Arrays
+    /** Pop elements into a new array. Operand: element count. */
+    static final byte BUILD_ARRAY = 49;
+    /** Replace an array and an index with the element at the index. */
+    static final byte INDEX = 50;
+    /** Store the top of the stack in the element of the array and index below it, leaving only the value. */
+    static final byte SET_INDEX = 51;
+    /** Replace a set or array and the closure of an array comprehension's stage above it with the array. */
+    static final byte ARRAY_COMPREHENSION = 52;
+}
@@ -0,0 +1,695 @@
+package com.jmpl.j_jmpl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Optimiser class for j-jmpl. Run on resolved statements before they are executed or compiled, so work that gives
+ * the same result every time is done once.
+ * <p>
+ * Arithmetic, comparisons, concatenation and negation of literals are folded into a single literal, groupings are
+ * removed, and multiplying or dividing by 1, subtracting 0 and raising to the power of 1 are simplified away when
+ * the other operand is numeric. Anything that would throw an error, such as dividing by 0 or adding a number to a
+ * boolean, is left alone so the error is still thrown when the code runs, at the same line.
+ * <p>
+ * With dead code elimination, if statements with a literal condition are replaced by the branch that runs, while
+ * loops whose literal condition is false and statements after a return are removed, and so are unused local
+ * variables whose initialisers have no effects. Removing declarations moves other locals to different slots, so
+ * code optimised this way must be resolved again.
+ * <p>
+ * Nodes whose children don't change are kept, and rebuilt nodes keep what the resolver found out about them.
+ *
+ * @author Joel Luckett
+ * @version 0.1
+ */
+class Optimiser implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    /** Whether to remove code that can never run or has no effect. */
+    private final boolean eliminateDeadCode;
+
+    /**
+     * Creates an optimiser.
+     *
+     * @param eliminateDeadCode whether to remove code that can never run or has no effect
+     */
+    Optimiser(boolean eliminateDeadCode) {
+        this.eliminateDeadCode = eliminateDeadCode;
+    }
+
+    /**
+     * Optimises the statements of a script in place.
+     *
+     * @param statements the resolved statements
+     */
+    void optimise(List<Stmt> statements) {
+        List<Stmt> optimised = optimise(statements, false);
+
+        statements.clear();
+        statements.addAll(optimised);
+    }
+
+    /**
+     * Optimises the statements of a script or block.
+     *
+     * @param statements the statements
+     * @param block      whether they are in a block, where the last statement gives the value of the block and
+     *                   variables are local
+     * @return           the optimised statements
+     */
+    private List<Stmt> optimise(List<Stmt> statements, boolean block) {
+        List<Stmt> optimised = new ArrayList<>(statements.size());
+
+        for(int i = 0; i < statements.size(); i++) {
+            Stmt stmt = optimise(statements.get(i));
+
+            if(!eliminateDeadCode) {
+                optimised.add(stmt);
+                continue;
+            }
+
+            boolean last = i == statements.size() - 1;
+            stmt = block && last ? liveValue(stmt) : live(stmt);
+            if(stmt == null) continue;
+
+            optimised.add(stmt);
+
+            // Nothing after a return runs
+            if(stmt instanceof Stmt.Return) break;
+        }
+
+        // Variables nothing reads or assigns are left out, unless the block would then have a value
+        // Going backwards also removes variables only used by the initialisers of removed ones
+        if(eliminateDeadCode && block) {
+            for(int i = optimised.size() - 2; i >= 0; i--) {
+                if(!(optimised.get(i) instanceof Stmt.Let)) continue;
+
+                Stmt.Let let = (Stmt.Let)optimised.get(i);
+                if(hasNoEffects(let.initialiser) && !References.any(let.name.lexeme, optimised.subList(i + 1, optimised.size()))) {
+                    optimised.remove(i);
+                }
+            }
+        }
+
+        return optimised;
+    }
+
+    private Stmt optimise(Stmt stmt) {
+        return stmt == null ? null : stmt.accept(this);
+    }
+
+    private Expr optimise(Expr expr) {
+        return expr == null ? null : expr.accept(this);
+    }
+
+    //#region Statements
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        List<Stmt> statements = optimise(stmt.statements, true);
+        return statements.equals(stmt.statements) ? stmt : new Stmt.Block(statements);
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = optimise(stmt.expression);
+        return expression == stmt.expression ? stmt : new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        Stmt body = optimise(stmt.body);
+        // The body is run as a block, so its value is returned
+        if(eliminateDeadCode) body = liveValue(body);
+        if(body == stmt.body) return stmt;
+
+        Stmt.Function function = new Stmt.Function(stmt.name, stmt.params, body, stmt.memo);
+        function.pure = stmt.pure;
+        function.calls = stmt.calls;
+        function.globals = stmt.globals;
+        function.slot = stmt.slot;
+        return function;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = optimise(stmt.condition);
+        Stmt thenBranch = optimise(stmt.thenBranch);
+        Stmt elseBranch = optimise(stmt.elseBranch);
+
+        // The values of branches aren't used
+        if(eliminateDeadCode) {
+            thenBranch = live(thenBranch);
+            elseBranch = live(elseBranch);
+            if(thenBranch == null) thenBranch = new Stmt.Block(new ArrayList<>());
+        }
+
+        if(condition == stmt.condition && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch) return stmt;
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitOutputStmt(Stmt.Output stmt) {
+        Expr expression = optimise(stmt.expression);
+        return expression == stmt.expression ? stmt : new Stmt.Output(expression);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        Expr value = optimise(stmt.value);
+        return value == stmt.value ? stmt : new Stmt.Return(stmt.keyword, value);
+    }
+
+    @Override
+    public Stmt visitLetStmt(Stmt.Let stmt) {
+        Expr initialiser = optimise(stmt.initialiser);
+        if(initialiser == stmt.initialiser) return stmt;
+
+        Stmt.Let let = new Stmt.Let(stmt.name, initialiser);
+        let.slot = stmt.slot;
+        return let;
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = optimise(stmt.condition);
+        Stmt body = optimise(stmt.body);
+
+        if(eliminateDeadCode) {
+            body = live(body);
+            if(body == null) body = new Stmt.Block(new ArrayList<>());
+        }
+
+        if(condition == stmt.condition && body == stmt.body) return stmt;
+        return new Stmt.While(condition, body);
+    }
+
+    //#endregion
+
+    //#region Expressions
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = optimise(expr.value);
+        if(value == expr.value) return expr;
+
+        Expr.Assign assign = new Expr.Assign(expr.name, value);
+        assign.depth = expr.depth;
+        assign.slot = expr.slot;
+        return assign;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = optimise(expr.left);
+        Expr right = optimise(expr.right);
+
+        if(left instanceof Expr.Literal && right instanceof Expr.Literal) {
+            Expr folded = fold(expr.operator, ((Expr.Literal)left).value, ((Expr.Literal)right).value);
+            if(folded != null) return folded;
+        }
+
+        Expr simplified = simplify(expr.operator, left, right);
+        if(simplified != null) return simplified;
+
+        if(left == expr.left && right == expr.right) return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr callee = optimise(expr.callee);
+        List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+        boolean changed = callee != expr.callee;
+
+        for(Expr argument : expr.arguments) {
+            Expr optimised = optimise(argument);
+            if(optimised != argument) changed = true;
+            arguments.add(optimised);
+        }
+
+        if(!changed) return expr;
+
+        Expr.Call call = new Expr.Call(callee, expr.paren, arguments);
+        call.tail = expr.tail;
+        return call;
+    }
+
+    @Override
+    public Expr visitArrayExpr(Expr.Array expr) {
+        List<Expr> elements = new ArrayList<>(expr.elements.size());
+        boolean changed = false;
+
+        for(Expr element : expr.elements) {
+            Expr optimised = optimise(element);
+            if(optimised != element) changed = true;
+            elements.add(optimised);
+        }
+
+        return changed ? new Expr.Array(expr.bracket, elements) : expr;
+    }
+
+    @Override
+    public Expr visitComprehensionExpr(Expr.Comprehension expr) {
+        Expr source = optimise(expr.source);
+        Expr predicate = optimise(expr.predicate);
+        Expr element = optimise(expr.element);
+
+        if(source == expr.source && predicate == expr.predicate && element == expr.element) return expr;
+        return new Expr.Comprehension(expr.brace, expr.name, source, predicate, element);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        // Groupings only matter to the parser
+        return optimise(expr.expression);
+    }
+
+    @Override
+    public Expr visitIndexExpr(Expr.Index expr) {
+        Expr array = optimise(expr.array);
+        Expr index = optimise(expr.index);
+
+        if(array == expr.array && index == expr.index) return expr;
+        return new Expr.Index(array, expr.bracket, index);
+    }
+
+    @Override
+    public Expr visitIndexAssignExpr(Expr.IndexAssign expr) {
+        Expr array = optimise(expr.array);
+        Expr index = optimise(expr.index);
+        Expr value = optimise(expr.value);
+
+        if(array == expr.array && index == expr.index && value == expr.value) return expr;
+        return new Expr.IndexAssign(array, expr.bracket, index, value);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = optimise(expr.left);
+        Expr right = optimise(expr.right);
+
+        // A literal on the left decides whether the right is evaluated
+        if(eliminateDeadCode && left instanceof Expr.Literal) {
+            boolean truthful = Interpreter.isTruthful(((Expr.Literal)left).value);
+            boolean shortCircuits = expr.operator.type == TokenType.OR ? truthful : !truthful;
+
+            return shortCircuits ? left : right;
+        }
+
+        if(left == expr.left && right == expr.right) return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitSequenceOpExpr(Expr.SequenceOp expr) {
+        Expr upper = optimise(expr.upper);
+        Stmt lower = optimise(expr.lower);
+        Expr summand = optimise(expr.summand);
+
+        if(upper == expr.upper && lower == expr.lower && summand == expr.summand) return expr;
+
+        Expr.SequenceOp sequence = new Expr.SequenceOp(expr.name, upper, lower, summand);
+        sequence.depth = expr.depth;
+        sequence.slot = expr.slot;
+        sequence.pure = expr.pure;
+        sequence.calls = expr.calls;
+        return sequence;
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        // Sets aren't folded into literals, as literals have to be numbers, strings or booleans
+        List<Expr> elements = new ArrayList<>(expr.elements.size());
+        boolean changed = false;
+
+        for(Expr element : expr.elements) {
+            Expr optimised = optimise(element);
+            if(optimised != element) changed = true;
+            elements.add(optimised);
+        }
+
+        return changed ? new Expr.Set(expr.brace, elements) : expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = optimise(expr.right);
+
+        if(right instanceof Expr.Literal) {
+            Object value = ((Expr.Literal)right).value;
+
+            switch(expr.operator.type) {
+                case TokenType.MINUS:
+                    // Negating anything but a number is an error
+                    if(Numbers.isNumber(value)) return new Expr.Literal(Numbers.negate(value));
+                    break;
+                case TokenType.NOT:
+                    return new Expr.Literal(!Interpreter.isTruthful(value));
+                default:
+                    break;
+            }
+        }
+
+        return right == expr.right ? expr : new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    //#endregion
+
+    //#region Folding
+
+    /**
+     * Evaluates a binary operator on two literal values, the same way the interpreter would.
+     *
+     * @param operator the operator token
+     * @param left     the value of the left operand
+     * @param right    the value of the right operand
+     * @return         a literal of the result, or null if the operation would throw an error when run
+     */
+    private static Expr fold(Token operator, Object left, Object right) {
+        switch(operator.type) {
+            case TokenType.EQUAL_EQUAL: return new Expr.Literal(Interpreter.isEqual(left, right));
+            case TokenType.NOT_EQUAL: return new Expr.Literal(!Interpreter.isEqual(left, right));
+            case TokenType.PLUS:
+                // Concatenation
+                if(!(left instanceof Double && right instanceof Double)) {
+                    if(left instanceof String || right instanceof String) {
+                        return new Expr.Literal(Interpreter.stringify(left) + Interpreter.stringify(right));
+                    }
+                    return null;
+                }
+                break;
+            default:
+                break;
+        }
+
+        // Every other operator needs two numbers, worked on exactly when they are large integers
+        if(!Numbers.isNumber(left) || !Numbers.isNumber(right)) return null;
+
+        switch(operator.type) {
+            case TokenType.PLUS: return new Expr.Literal(Numbers.add(left, right));
+            case TokenType.MINUS: return new Expr.Literal(Numbers.subtract(left, right));
+            case TokenType.ASTERISK: return new Expr.Literal(Numbers.multiply(left, right));
+            // Division by 0 is left to throw its error
+            case TokenType.SLASH: return Interpreter.isZero(right) ? null : new Expr.Literal(Numbers.divide(left, right));
+            case TokenType.CARET: return new Expr.Literal(Numbers.power(left, right));
+            default: break;
+        }
+
+        // Comparisons are false if either number is NaN
+        Integer order = Numbers.compare(left, right);
+
+        switch(operator.type) {
+            case TokenType.GREATER: return new Expr.Literal(order != null && order > 0);
+            case TokenType.GREATER_EQUAL: return new Expr.Literal(order != null && order >= 0);
+            case TokenType.LESS: return new Expr.Literal(order != null && order < 0);
+            case TokenType.LESS_EQUAL: return new Expr.Literal(order != null && order <= 0);
+            default: return null;
+        }
+    }
+
+    /**
+     * Removes operations that give back their numeric operand unchanged.
+     * <p>
+     * {@code x + 0} isn't simplified, as it turns -0 into 0.
+     *
+     * @param operator the operator token
+     * @param left     the optimised left operand
+     * @param right    the optimised right operand
+     * @return         the operand the operation is equal to, or null if it can't be simplified
+     */
+    private static Expr simplify(Token operator, Expr left, Expr right) {
+        switch(operator.type) {
+            case TokenType.ASTERISK:
+                if(isConstant(right, 1) && Interpreter.isNumeric(left)) return left;
+                if(isConstant(left, 1) && Interpreter.isNumeric(right)) return right;
+                return null;
+            case TokenType.SLASH:
+            case TokenType.CARET:
+                return isConstant(right, 1) && Interpreter.isNumeric(left) ? left : null;
+            case TokenType.MINUS:
+                return isConstant(right, 0) && Interpreter.isNumeric(left) ? left : null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Checks if an expression is a literal of a given number.
+     *
+     * @param expr  the expression
+     * @param value the number
+     * @return      whether the expression is that number
+     */
+    private static boolean isConstant(Expr expr, double value) {
+        return expr instanceof Expr.Literal && Double.valueOf(value).equals(((Expr.Literal)expr).value);
+    }
+
+    //#endregion
+
+    //#region Dead code
+
+    /**
+     * Finds the statement that runs in place of another, skipping if statements and while loops whose conditions
+     * are literals.
+     *
+     * @param stmt the optimised statement
+     * @return     the statement that runs, or null if nothing does
+     */
+    private static Stmt live(Stmt stmt) {
+        while(true) {
+            if(stmt instanceof Stmt.If && ((Stmt.If)stmt).condition instanceof Expr.Literal) {
+                Stmt.If ifStmt = (Stmt.If)stmt;
+                stmt = Interpreter.isTruthful(((Expr.Literal)ifStmt.condition).value) ? ifStmt.thenBranch : ifStmt.elseBranch;
+            } else if(stmt instanceof Stmt.While && ((Stmt.While)stmt).condition instanceof Expr.Literal
+                      && !Interpreter.isTruthful(((Expr.Literal)((Stmt.While)stmt).condition).value)) {
+                return null;
+            } else {
+                return stmt;
+            }
+        }
+    }
+
+    /**
+     * Overload of {@link #live(Stmt)} for the last statement of a block, whose value is the value of the block.
+     * Only gives a statement with the same value, which is null for if statements and while loops.
+     *
+     * @param stmt the optimised statement
+     * @return     the statement that runs with the same value
+     */
+    private static Stmt liveValue(Stmt stmt) {
+        Stmt live = live(stmt);
+
+        if(live == stmt) return stmt;
+        if(live == null) return new Stmt.Block(new ArrayList<>());
+
+        // Expressions and blocks have values of their own
+        return live instanceof Stmt.Expression || live instanceof Stmt.Block ? stmt : live;
+    }
+
+    /**
+     * Checks if evaluating an expression can't have any effects, including throwing an error.
+     *
+     * @param expr the expression, or null
+     * @return     whether it has no effects
+     */
+    private static boolean hasNoEffects(Expr expr) {
+        if(expr == null || expr instanceof Expr.Literal) return true;
+
+        // Globals might not be defined
+        if(expr instanceof Expr.Variable) return ((Expr.Variable)expr).depth != Resolver.GLOBAL;
+
+        if(expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            return unary.operator.type == TokenType.NOT && hasNoEffects(unary.right);
+        }
+
+        if(expr instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical)expr;
+            return hasNoEffects(logical.left) && hasNoEffects(logical.right);
+        }
+
+        if(expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            boolean equality = binary.operator.type == TokenType.EQUAL_EQUAL || binary.operator.type == TokenType.NOT_EQUAL;
+            return equality && hasNoEffects(binary.left) && hasNoEffects(binary.right);
+        }
+
+        // Anything else could throw an error, call a function or assign to a variable
+        return false;
+    }
+
+    /**
+     * Finds whether statements read or assign to a variable with a given name, in any scope.
+     */
+    private static class References implements Expr.Visitor<Boolean>, Stmt.Visitor<Boolean> {
+        private final String name;
+
+        private References(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Checks if any statement reads or assigns to a variable with a given name.
+         *
+         * @param name       the name of the variable
+         * @param statements the statements
+         * @return           whether the name is used
+         */
+        static boolean any(String name, List<Stmt> statements) {
+            References references = new References(name);
+
+            for(Stmt statement : statements) {
+                if(references.in(statement)) return true;
+            }
+
+            return false;
+        }
+
+        private boolean in(Stmt stmt) {
+            return stmt != null && stmt.accept(this);
+        }
+
+        private boolean in(Expr expr) {
+            return expr != null && expr.accept(this);
+        }
+
+        @Override
+        public Boolean visitBlockStmt(Stmt.Block stmt) {
+            for(Stmt statement : stmt.statements) {
+                if(in(statement)) return true;
+            }
+
+            return false;
+        }
+
+        @Override
+        public Boolean visitExpressionStmt(Stmt.Expression stmt) {
+            return in(stmt.expression);
+        }
+
+        @Override
+        public Boolean visitFunctionStmt(Stmt.Function stmt) {
+            return in(stmt.body);
+        }
+
+        @Override
+        public Boolean visitIfStmt(Stmt.If stmt) {
+            return in(stmt.condition) || in(stmt.thenBranch) || in(stmt.elseBranch);
+        }
+
+        @Override
+        public Boolean visitOutputStmt(Stmt.Output stmt) {
+            return in(stmt.expression);
+        }
+
+        @Override
+        public Boolean visitReturnStmt(Stmt.Return stmt) {
+            return in(stmt.value);
+        }
+
+        @Override
+        public Boolean visitLetStmt(Stmt.Let stmt) {
+            return in(stmt.initialiser);
+        }
+
+        @Override
+        public Boolean visitWhileStmt(Stmt.While stmt) {
+            return in(stmt.condition) || in(stmt.body);
+        }
+
+        @Override
+        public Boolean visitArrayExpr(Expr.Array expr) {
+            for(Expr element : expr.elements) {
+                if(in(element)) return true;
+            }
+
+            return false;
+        }
+
+        @Override
+        public Boolean visitAssignExpr(Expr.Assign expr) {
+            return expr.name.lexeme.equals(name) || in(expr.value);
+        }
+
+        @Override
+        public Boolean visitBinaryExpr(Expr.Binary expr) {
+            return in(expr.left) || in(expr.right);
+        }
+
+        @Override
+        public Boolean visitCallExpr(Expr.Call expr) {
+            if(in(expr.callee)) return true;
+
+            for(Expr argument : expr.arguments) {
+                if(in(argument)) return true;
+            }
+
+            return false;
+        }
+
+        @Override
+        public Boolean visitComprehensionExpr(Expr.Comprehension expr) {
+            return in(expr.source) || in(expr.predicate) || in(expr.element);
+        }
+
+        @Override
+        public Boolean visitGroupingExpr(Expr.Grouping expr) {
+            return in(expr.expression);
+        }
+
+        @Override
+        public Boolean visitIndexExpr(Expr.Index expr) {
+            return in(expr.array) || in(expr.index);
+        }
+
+        @Override
+        public Boolean visitIndexAssignExpr(Expr.IndexAssign expr) {
+            return in(expr.array) || in(expr.index) || in(expr.value);
+        }
+
+        @Override
+        public Boolean visitLiteralExpr(Expr.Literal expr) {
+            return false;
+        }
+
+        @Override
+        public Boolean visitLogicalExpr(Expr.Logical expr) {
+            return in(expr.left) || in(expr.right);
+        }
+
+        @Override
+        public Boolean visitSequenceOpExpr(Expr.SequenceOp expr) {
+            return in(expr.upper) || in(expr.lower) || in(expr.summand);
+        }
+
+        @Override
+        public Boolean visitSetExpr(Expr.Set expr) {
+            for(Expr element : expr.elements) {
+                if(in(element)) return true;
+            }
+
+            return false;
+        }
+
+        @Override
+        public Boolean visitUnaryExpr(Expr.Unary expr) {
+            return in(expr.right);
+        }
+
+        @Override
+        public Boolean visitVariableExpr(Expr.Variable expr) {
+            return expr.name.lexeme.equals(name);
+        }
+    }
+
+    //#endregion
+}
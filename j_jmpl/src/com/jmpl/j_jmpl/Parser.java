@@ -1,21 +1,26 @@
 package com.jmpl.j_jmpl;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 /**
- * Parser class for j-jmpl. Takes in a list of tokens and generates the AST or detects errors and notifies the user.
+ * Parser class for j-jmpl. Takes in a stream of tokens and generates the AST or detects errors and notifies the user.
  * Follows Recursive Descent Parsing.
  * <p>
+ * Tokens are pulled from the stream as they are needed and kept in a small ring buffer, as the parser never looks
+ * further than one token back, so a {@link Scanner} can feed it without scanning the whole source first.
+ * <p>
  * Follows the precedence (highest to lowest):
  * <ul>
- * <li>Primary: true, false, null, literals, parentheses
- * <li>Function Call: f()
- * <li>Unary: ¬, -
+ * <li>Primary: true, false, null, literals, parentheses, sets, arrays, comprehensions
+ * <li>Function Call and Index: f(), a[i]
+ * <li>Unary: ¬, -, #, ∑
  * <li>Exponent: ^
- * <li>Factor: /, *
- * <li>Term: -, +
- * <li>Comparison: >, >=, <, <=
+ * <li>Factor: /, *, ∩
+ * <li>Term: -, +, ∪, ∖
+ * <li>Range: ..
+ * <li>Comparison: >, >=, <, <=, ∈
  * <li>Equality: ==, ¬=
  * <li>And: ∧, and
  * <li>Or: ∨, or
@@ -30,12 +35,31 @@ import java.util.List;
 class Parser {
     private static class ParseError extends RuntimeException {}
 
-    private final List<Token> tokens;
+    /** Number of tokens kept, which must be a power of two. */
+    private static final int LOOKAHEAD = 4;
+
+    private final Iterator<Token> tokens;
+    private final ErrorReporter errors;
+    /** The most recent tokens taken from the stream, indexed by their position modulo {@link #LOOKAHEAD}. */
+    private final Token[] buffer = new Token[LOOKAHEAD];
+    /** Number of tokens taken from the stream. */
+    private int loaded = 0;
     /** Pointer to the next token to be parsed. */
     private int current = 0;
 
-    Parser(List<Token> tokens) {
+    Parser(List<Token> tokens, ErrorReporter errors) {
+        this(tokens.iterator(), errors);
+    }
+
+    /**
+     * Creates a parser that takes tokens from a stream as they are needed.
+     * 
+     * @param tokens the tokens to parse, which must end with an EOF token
+     * @param errors the reporter of syntax errors
+     */
+    Parser(Iterator<Token> tokens, ErrorReporter errors) {
         this.tokens = tokens;
+        this.errors = errors;
     }
 
     /**
@@ -85,7 +109,11 @@ class Parser {
      * @return a {@link Stmt} statement
      */
     private Stmt statement() {
-        if(match(TokenType.FUNCTION)) return function("function");
+        if(match(TokenType.FUNCTION)) return function("function", false);
+        if(match(TokenType.MEMO)) {
+            consume(TokenType.FUNCTION, ErrorType.FUNCTION, "Expected 'func' after 'memo'");
+            return function("function", true);
+        }
         if(match(TokenType.IF)) return ifStatement();
         if(match(TokenType.OUT)) return outputStatement();
         if(match(TokenType.RETURN)) return returnStatement();
@@ -197,9 +225,10 @@ class Parser {
      * Parse a statement that is a function.
      * 
      * @param type the type of function
+     * @param memo whether the function's results are memoised
      * @return     a statement that declares a function
      */
-    private Stmt.Function function(String type) {
+    private Stmt.Function function(String type, boolean memo) {
         Token name = consume(TokenType.IDENTIFIER, ErrorType.FUNCTION, "Expected " + type + " name");
         consume(TokenType.LEFT_PAREN, ErrorType.SYNTAX, "Expected '(' after " + type + " name");
 
@@ -219,7 +248,7 @@ class Parser {
 
         // Parse the body
         Stmt body = statement();
-        return new Stmt.Function(name, parameters, body);
+        return new Stmt.Function(name, parameters, body, memo);
     }
 
     /**
@@ -257,6 +286,12 @@ class Parser {
                 return new Expr.Assign(name, value);
             }
 
+            // Replace an element of an array
+            if(expr instanceof Expr.Index) {
+                Expr.Index index = (Expr.Index)expr;
+                return new Expr.IndexAssign(index.array, index.bracket, index.index, value);
+            }
+
             error(equals, ErrorType.SYNTAX, "Invalid assignment target");
         }
 
@@ -266,19 +301,35 @@ class Parser {
     /**
      * Parses a summation as an expression. It has the form: sum (n; m) i;
      * Where n, and i are expressions (not assignments) and m is a declaration or assignment
+     * <p>
+     * The bounds can also be given as a range: sum (i ∈ m..n) s.
+     * A summation symbol not followed by '(' sums the elements of a set, and is parsed as a unary operator.
      * 
      * @return an abstract syntax tree for a summation operation
      */
     private Expr summation() {
         // If a summation symbol is at the start of the expression
-        if(match(TokenType.SUMMATION)) {
-            Token sum = previous();
+        if(check(TokenType.SUMMATION) && peekNext().type == TokenType.LEFT_PAREN) {
+            Token sum = advance();
 
             // Requires parentheses
             consume(TokenType.LEFT_PAREN, ErrorType.SYNTAX, "Expected '('");
 
             // Get the upperbound expression (n)
             Expr upperBound = summation();
+
+            // ∑(i ∈ m..n) s is the same as ∑(n, let i = m) s
+            if(isBinding(upperBound) && match(TokenType.RIGHT_PAREN)) {
+                Expr.Binary binding = (Expr.Binary)upperBound;
+                if(!(binding.right instanceof Expr.Binary) || ((Expr.Binary)binding.right).operator.type != TokenType.DOT_DOT) {
+                    throw error(previous(), ErrorType.SYNTAX, "Expected a range 'm..n' to sum over");
+                }
+
+                Expr.Binary range = (Expr.Binary)binding.right;
+                Stmt index = new Stmt.Let(((Expr.Variable)binding.left).name, range.left);
+
+                return new Expr.SequenceOp(sum, range.right, index, expression());
+            }
             
             consume(TokenType.COMMA, ErrorType.SYNTAX, "Expected ',' after upper bound expression");
 
@@ -395,13 +446,13 @@ class Parser {
      */
     private Expr comparison() {
         // Parse the left hand operand
-        Expr expr = term();
+        Expr expr = range();
 
-        while(match(TokenType.GREATER, TokenType.GREATER_EQUAL, TokenType.LESS, TokenType.LESS_EQUAL)) {
+        while(match(TokenType.GREATER, TokenType.GREATER_EQUAL, TokenType.LESS, TokenType.LESS_EQUAL, TokenType.IN)) {
             Token operator = previous();
 
             // Parse the right hand operand
-            Expr right = term();
+            Expr right = range();
 
             // Create new Binary operator syntax tree node
             expr = new Expr.Binary(expr, operator, right);
@@ -410,6 +461,22 @@ class Parser {
         return expr;
     }
 
+    /**
+     * Checks if the current token is a range of integers to be parsed. Ranges can't be chained.
+     * 
+     * @return a Binary expression abstract syntax tree node for a range
+     */
+    private Expr range() {
+        Expr expr = term();
+
+        if(match(TokenType.DOT_DOT)) {
+            Token operator = previous();
+            expr = new Expr.Binary(expr, operator, term());
+        }
+
+        return expr;
+    }
+
     /**
      * Checks if the current token is a term (addition and subtraction) operation to be parsed.
      * 
@@ -419,7 +486,7 @@ class Parser {
         // Parse the left hand operand
         Expr expr = factor();
     
-        while (match(TokenType.MINUS, TokenType.PLUS)) {
+        while (match(TokenType.MINUS, TokenType.PLUS, TokenType.UNION, TokenType.DIFFERENCE)) {
             Token operator = previous();
 
             // Parse the right hand operand
@@ -441,7 +508,7 @@ class Parser {
         // Parse the left hand operand
         Expr expr = exponent();
     
-        while (match(TokenType.SLASH, TokenType.ASTERISK)) {
+        while (match(TokenType.SLASH, TokenType.ASTERISK, TokenType.INTERSECTION)) {
             Token operator = previous();
 
             // Parse the right hand operand
@@ -477,13 +544,13 @@ class Parser {
     }
 
     /**
-     * Checks if the current token is a unary (not and negation) operation to be parsed.
+     * Checks if the current token is a unary (not, negation, cardinality and set sum) operation to be parsed.
      * It is the top of the operation precedence level chain (before primary statements).
      * 
      * @return a Unary expression abstract syntax tree node for unary operations
      */
     private Expr unary() {
-        if (match(TokenType.NOT, TokenType.MINUS)) {
+        if (match(TokenType.NOT, TokenType.MINUS, TokenType.HASHTAG, TokenType.SUMMATION)) {
             Token operator = previous();
 
             // Recursive call to parse the operand
@@ -514,9 +581,9 @@ class Parser {
     }
     
     /**
-     * Evaluate a function call expression.
+     * Evaluate a function call or array index expression.
      * 
-     * @return a Call expression abstract syntax tree node for function calls
+     * @return a Call or Index expression abstract syntax tree node for function calls and indexing
      */
     private Expr call() {
         Expr expr = primary();
@@ -524,6 +591,12 @@ class Parser {
         while(true) {
             if(match(TokenType.LEFT_PAREN)) {
                 expr = finishCall(expr);
+            } else if(match(TokenType.LEFT_SQUARE)) {
+                Token bracket = previous();
+                Expr index = expression();
+                consume(TokenType.RIGHT_SQUARE, ErrorType.SYNTAX, "Expected ']' after index");
+
+                expr = new Expr.Index(expr, bracket, index);
             } else {
                 break;
             }
@@ -558,10 +631,105 @@ class Parser {
             return new Expr.Grouping(expr);
         }
 
+        if(match(TokenType.LEFT_BRACE)) return set();
+        if(match(TokenType.LEFT_SQUARE)) return array();
+
         // Throw an error if unexpected token
         throw error(peek(), ErrorType.SYNTAX, "Expression expected");
     }
 
+    /**
+     * Parses a set literal, the elements between braces seperated by commas, or a set comprehension.
+     * 
+     * @return a Set or Comprehension expression abstract syntax tree node
+     */
+    private Expr set() {
+        Token brace = previous();
+        List<Expr> elements = new ArrayList<>();
+
+        if(!check(TokenType.RIGHT_BRACE)) {
+            Expr first = expression();
+            if(match(TokenType.PIPE)) return comprehension(brace, first);
+
+            elements.add(first);
+            while(match(TokenType.COMMA)) {
+                elements.add(expression());
+            }
+        }
+
+        consume(TokenType.RIGHT_BRACE, ErrorType.SYNTAX, "Expected '}' after set elements");
+
+        return new Expr.Set(brace, elements);
+    }
+
+    /**
+     * Parses an array literal, the elements between square brackets seperated by commas, or an array comprehension.
+     * 
+     * @return an Array or Comprehension expression abstract syntax tree node
+     */
+    private Expr array() {
+        Token bracket = previous();
+        List<Expr> elements = new ArrayList<>();
+
+        if(!check(TokenType.RIGHT_SQUARE)) {
+            Expr first = expression();
+            if(match(TokenType.PIPE)) return comprehension(bracket, first);
+
+            elements.add(first);
+            while(match(TokenType.COMMA)) {
+                elements.add(expression());
+            }
+        }
+
+        consume(TokenType.RIGHT_SQUARE, ErrorType.SYNTAX, "Expected ']' after array elements");
+
+        return new Expr.Array(bracket, elements);
+    }
+
+    /**
+     * Parses the rest of a set comprehension, after the '|'. It has either the form {x ∈ S | p}, the elements x of
+     * S for which p is truthful, or {e | x ∈ S} or {e | x ∈ S, p}, the values of e for those elements.
+     * Array comprehensions have the same forms between square brackets.
+     * 
+     * @param brace the opening brace or square bracket
+     * @param first the expression before the '|'
+     * @return      a Comprehension expression abstract syntax tree node
+     */
+    private Expr comprehension(Token brace, Expr first) {
+        Expr.Comprehension comprehension;
+
+        if(isBinding(first)) {
+            // Filter the elements
+            Expr.Binary binding = (Expr.Binary)first;
+            comprehension = new Expr.Comprehension(brace, ((Expr.Variable)binding.left).name, binding.right, expression(), null);
+        } else {
+            // Map the elements, and filter them if there is a predicate
+            Expr binding = expression();
+            if(!isBinding(binding)) throw error(peek(), ErrorType.SYNTAX, "Expected 'variable ∈ set' after '|'");
+
+            Expr predicate = match(TokenType.COMMA) ? expression() : null;
+            comprehension = new Expr.Comprehension(brace, ((Expr.Variable)((Expr.Binary)binding).left).name, ((Expr.Binary)binding).right, predicate, first);
+        }
+
+        if(brace.type == TokenType.LEFT_SQUARE) {
+            consume(TokenType.RIGHT_SQUARE, ErrorType.SYNTAX, "Expected ']' after array comprehension");
+        } else {
+            consume(TokenType.RIGHT_BRACE, ErrorType.SYNTAX, "Expected '}' after set comprehension");
+        }
+
+        return comprehension;
+    }
+
+    /**
+     * Checks if an expression binds a variable to the elements of a set, 'x ∈ S'.
+     * 
+     * @param expr the expression
+     * @return     whether it is a binding
+     */
+    private static boolean isBinding(Expr expr) {
+        return expr instanceof Expr.Binary && ((Expr.Binary)expr).operator.type == TokenType.IN && ((Expr.Binary)expr).left instanceof Expr.Variable;
+    }
+
     /**
      * Checks to see if the current token is any of the given types.
      * 
@@ -637,16 +805,31 @@ class Parser {
      * @return the token at the location of the current pointer
      */
     private Token peek() {
-        return tokens.get(current);
+        // The parser never moves past EOF, so the stream always has the next token
+        if(current == loaded) buffer[loaded++ & (LOOKAHEAD - 1)] = tokens.next();
+
+        return buffer[current & (LOOKAHEAD - 1)];
     }
     
+    /**
+     * Gets the token after the current token, without consuming either.
+     * 
+     * @return the next token, or the EOF token if the current token is the last
+     */
+    private Token peekNext() {
+        if(isAtEnd()) return peek();
+        if(current + 1 == loaded) buffer[loaded++ & (LOOKAHEAD - 1)] = tokens.next();
+
+        return buffer[(current + 1) & (LOOKAHEAD - 1)];
+    }
+
     /**
      * Gets the previous token.
      * 
      * @return the token at the location of the current pointer - 1
      */
     private Token previous() {
-        return tokens.get(current - 1);
+        return buffer[(current - 1) & (LOOKAHEAD - 1)];
     }
 
     /**
@@ -658,7 +841,7 @@ class Parser {
      * @return        a {@link ParseError}
      */
     private ParseError error(Token token, ErrorType type, String message) {
-        JMPL.error(token, type, message);
+        errors.error(token, type, message);
         return new ParseError();
     }
     
@@ -674,6 +857,7 @@ class Parser {
             // Switch the tokens that should start a statement
             switch(peek().type) {
                 case TokenType.FUNCTION:
+                case TokenType.MEMO:
                 case TokenType.LET:
                 case TokenType.IF:
                 case TokenType.RETURN:
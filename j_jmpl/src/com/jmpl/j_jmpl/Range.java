@@ -0,0 +1,123 @@
+package com.jmpl.j_jmpl;
+
+import java.math.BigInteger;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+/**
+ * Range class for j-jmpl, the set of integers from one integer to another, written {@code m..n}. Only the bounds
+ * are stored, so membership, cardinality and the sum of the elements take constant time whatever the size of the
+ * range. A range whose upper bound is below its lower bound is empty.
+ *
+ * @author Joel Luckett
+ * @version 0.1
+ */
+final class Range implements SetView {
+    final double lower;
+    final double upper;
+
+    /**
+     * Creates a range.
+     *
+     * @param lower the first integer
+     * @param upper the last integer
+     */
+    Range(double lower, double upper) {
+        // Adding 0 turns -0 into 0
+        this.lower = lower + 0.0;
+        this.upper = upper + 0.0;
+    }
+
+    /**
+     * Checks if a number can be a bound of a range.
+     *
+     * @param bound the number
+     * @return      whether it is an integer
+     */
+    static boolean isBound(double bound) {
+        return Math.floor(bound) == bound && !Double.isInfinite(bound);
+    }
+
+    @Override
+    public boolean contains(Object element) {
+        return element instanceof Double && containsNumber((Double)element);
+    }
+
+    @Override
+    public boolean containsNumber(double number) {
+        // -0 isn't an element, as it isn't equal to 0
+        if(number == 0 && Double.doubleToRawLongBits(number) != 0) return false;
+
+        return number >= lower && number <= upper && Math.floor(number) == number;
+    }
+
+    @Override
+    public long size() {
+        return upper < lower ? 0 : (long)(upper - lower) + 1;
+    }
+
+    @Override
+    public Object sum() {
+        if(upper < lower) return 0.0;
+
+        // One of the number of terms and the sum of the bounds is always even, so it is halved first
+        long terms = (long)upper - (long)lower + 1;
+        long bounds = (long)lower + (long)upper;
+        if(terms % 2 == 0) terms /= 2; else bounds /= 2;
+
+        // Only sums too large to be exact as doubles need a large integer
+        if(Math.abs((double)terms * bounds) < Numbers.EXACT_LIMIT) return (double)(terms * bounds);
+
+        return Numbers.valueOf(BigInteger.valueOf(terms).multiply(BigInteger.valueOf(bounds)));
+    }
+
+    @Override
+    public Stream<Object> stream() {
+        return LongStream.rangeClosed((long)lower, (long)upper).<Object>mapToObj(i -> (double)i);
+    }
+
+    @Override
+    public JmplSet toSet() {
+        JmplSet set = new JmplSet((int)Math.min(size(), 1 << 20));
+        for(double i = lower; i <= upper; i++) set.addNumber(i);
+
+        return set;
+    }
+
+    /**
+     * Gets the integers in both this range and another.
+     *
+     * @param other the other range
+     * @return      the overlap of the ranges, which may be empty
+     */
+    Range intersection(Range other) {
+        return new Range(Math.max(lower, other.lower), Math.min(upper, other.upper));
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if(object instanceof Range) {
+            Range other = (Range)object;
+            if(size() == 0 || other.size() == 0) return size() == other.size();
+
+            return lower == other.lower && upper == other.upper;
+        }
+
+        // Other sets compare their elements
+        return object instanceof SetView && object.equals(this);
+    }
+
+    @Override
+    public int hashCode() {
+        // The same as a stored set of the same elements
+        int hash = 0;
+        for(double i = lower; i <= upper; i++) hash += Double.hashCode(i);
+
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return Interpreter.stringify(lower) + ".." + Interpreter.stringify(upper);
+    }
+}
@@ -0,0 +1,139 @@
+package com.jmpl.j_jmpl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Regression tests for j-jmpl. Runs each program in a directory of tests on the tree-walk interpreter and the VM,
+ * with and without dead code elimination, and checks what it outputs (errors included) against the {@code .out} file
+ * next to it. A directory in the tests is one test of several files, which run in name order with the same
+ * globals as they would with {@code j_jmpl directory}, and its output is in the {@code .out} file named after it.
+ * Its error messages name the file by its name alone, rather than its path.
+ * <p>
+ * Run with {@code java -cp ./bin com.jmpl.j_jmpl.RegressionTest [test directory]}. The directory defaults to
+ * {@code tests}. Exits with status 1 if any test fails.
+ *
+ * @author Joel Luckett
+ * @version 0.1
+ */
+class RegressionTest {
+    public static void main(String[] args) throws IOException {
+        if(args.length > 1) {
+            System.out.println("Usage: RegressionTest [test directory]");
+            System.exit(64); // Command line usage error
+        }
+
+        Path directory = Paths.get(args.length > 0 ? args[0] : "tests");
+
+        List<Path> tests = new ArrayList<>();
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for(Path file : files) {
+                if(Files.isDirectory(file) || file.getFileName().toString().endsWith(".jmpl")) tests.add(file);
+            }
+        }
+        // Sort tests so the order of results is stable
+        tests.sort(null);
+
+        int failed = 0;
+        for(Path test : tests) {
+            String name = test.getFileName().toString();
+            Map<String, String> sources = sources(test);
+            Path expectedPath = test.resolveSibling(name.replaceFirst("\\.jmpl$", "") + ".out");
+            String expected = new String(Files.readAllBytes(expectedPath), JMPL.DEFAULT_CHARSET);
+
+            for(boolean bytecode : new boolean[] {false, true}) {
+                for(boolean eliminateDeadCode : new boolean[] {false, true}) {
+                    String actual = run(sources, bytecode, eliminateDeadCode);
+                    if(actual.equals(expected.replace("\r\n", "\n"))) continue;
+
+                    failed++;
+                    System.out.println("FAIL " + name + " (" + (bytecode ? "vm" : "tree") + (eliminateDeadCode ? ", -O" : "") + ")");
+                    System.out.println("expected:\n" + expected + "actual:\n" + actual);
+                }
+            }
+        }
+
+        System.out.println(tests.size() + " tests, " + failed + " failures");
+        if(failed > 0) System.exit(1);
+    }
+
+    /**
+     * Reads the source code of a test.
+     *
+     * @param  test        the test's file, or its directory of files
+     * @return             the source code of each file by its name, in the order they run
+     * @throws IOException if an I/O error occurs reading the files
+     */
+    private static Map<String, String> sources(Path test) throws IOException {
+        List<Path> files = new ArrayList<>();
+        if(Files.isDirectory(test)) {
+            try(DirectoryStream<Path> entries = Files.newDirectoryStream(test, "*.jmpl")) {
+                for(Path entry : entries) files.add(entry);
+            }
+            files.sort(null);
+        } else {
+            files.add(test);
+        }
+
+        Map<String, String> sources = new LinkedHashMap<>();
+        for(Path file : files) sources.put(file.getFileName().toString(), new String(Files.readAllBytes(file), JMPL.DEFAULT_CHARSET));
+
+        return sources;
+    }
+
+    /**
+     * Runs a program, capturing what it outputs and any errors.
+     *
+     * @param  sources           the source code of each of the program's files by name, which share their globals
+     * @param  bytecode          whether to run it on the VM rather than the tree-walk interpreter
+     * @param  eliminateDeadCode whether to eliminate dead code
+     * @return                   the program's output and errors
+     * @throws IOException       if an I/O error occurs reading the source
+     */
+    private static String run(Map<String, String> sources, boolean bytecode, boolean eliminateDeadCode) throws IOException {
+        List<CompilationUnit> units = new ArrayList<>();
+        for(Map.Entry<String, String> source : sources.entrySet()) {
+            // Messages only need the file's name when there's more than one, as with j_jmpl
+            CompilationUnit unit = new CompilationUnit(sources.size() > 1 ? source.getKey() : null, eliminateDeadCode);
+            unit.compile(new StringReader(source.getValue()), bytecode);
+            units.add(unit);
+        }
+
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream capture = new PrintStream(buffer, true, JMPL.DEFAULT_CHARSET);
+        System.setOut(capture);
+        System.setErr(capture);
+
+        try {
+            // Nothing runs if any file has a compile error
+            boolean hadError = false;
+            for(CompilationUnit unit : units) {
+                unit.errors.print();
+                hadError |= unit.errors.hadError();
+            }
+
+            if(!hadError) {
+                Interpreter interpreter = new Interpreter();
+                VM vm = bytecode ? new VM(interpreter) : null;
+                for(CompilationUnit unit : units) unit.run(interpreter, vm);
+            }
+        } finally {
+            System.setOut(out);
+            System.setErr(err);
+        }
+
+        return buffer.toString(JMPL.DEFAULT_CHARSET).replace("\r\n", "\n");
+    }
+}
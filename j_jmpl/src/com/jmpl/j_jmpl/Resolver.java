@@ -1,32 +1,91 @@
 package com.jmpl.j_jmpl;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 
 /**
- * Resolver class for j-jmpl. Used for variable resolution
+ * Resolver class for j-jmpl. Used for variable resolution, and to find which functions and summands are pure
+ * (have no side effects), so summations can be evaluated in parallel.
  * 
  * @author Joel Luckett
  * @version 0.1
  */
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-    private final Interpreter interpreter;
+    /** Depth given to variables that are not resolved to a local scope. */
+    static final int GLOBAL = -1;
+
     /** Keep track of current scopes. */
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    private final Stack<Map<String, Local>> scopes = new Stack<>();
     /** Keep track fo the current function scope */
     private FunctionType currentFunction = FunctionType.NONE;
-
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
-    }
+    /** Whether the function being resolved has a set comprehension, which keeps its environment to use later. */
+    private boolean hasComprehension = false;
+    /** Effects of the functions and summands currently being resolved, innermost on top. */
+    private final Stack<Effects> effects = new Stack<>();
+    /** Names of the global variables that are assigned to. */
+    private final Set<String> assignedGlobals = new HashSet<>();
+    /** Reads of global variables by memoised functions, by name, checked once every assignment has been seen. */
+    private final Map<String, List<Token>> memoGlobalReads = new HashMap<>();
+    private final ErrorReporter errors;
 
     private enum FunctionType {
         NONE,
         FUNCTION
     }
 
+    /**
+     * A local variable declared in a scope.
+     */
+    private static class Local {
+        /** Index of the variable in its environment's slots. */
+        final int slot;
+        /** False indicates the variable is 'not ready'. */
+        boolean defined = false;
+        /** Whether the variable is assigned to after being declared. */
+        boolean assigned = false;
+        /** Reads of the variable by memoised functions declared in an inner scope. */
+        final List<Token> memoReads = new ArrayList<>();
+
+        Local(int slot) {
+            this.slot = slot;
+        }
+    }
+
+    /**
+     * The side effects of a function or summand.
+     */
+    private static class Effects {
+        /** Index of the outermost scope belonging to the function or summand. */
+        final int scopeStart;
+        /** Whether it doesn't output or assign to variables declared outside of it. */
+        boolean pure = true;
+        /** Names of the global functions it calls, which must also be pure for it to be pure. */
+        final Set<String> calls = new LinkedHashSet<>();
+        /** Whether it is a memoised function, so can't read variables declared outside of it that are assigned. */
+        boolean memo = false;
+        /** Names of the global variables a memoised function reads. */
+        final Set<String> globals = new LinkedHashSet<>();
+
+        Effects(int scopeStart) {
+            this.scopeStart = scopeStart;
+        }
+    }
+
+    /**
+     * Creates a resolver.
+     * 
+     * @param errors the reporter of resolution errors
+     */
+    Resolver(ErrorReporter errors) {
+        this.errors = errors;
+    }
+
     /**
      * Walk through a list of statements and resolve each one.
      * 
@@ -36,6 +95,13 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         for(Stmt statement : statements) {
             resolve(statement);
         }
+
+        // Every assignment to a global has been seen once the whole program is resolved
+        if(scopes.isEmpty()) {
+            for(Map.Entry<String, List<Token>> reads : memoGlobalReads.entrySet()) {
+                if(assignedGlobals.contains(reads.getKey())) memoReadsAssigned(reads.getValue());
+            }
+        }
     }
 
     private void resolve(Stmt stmt) {
@@ -55,6 +121,12 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     private void resolveFunction(Stmt.Function function, FunctionType type) {
         FunctionType enclosingFunction = currentFunction;
         currentFunction = type;
+        boolean enclosingComprehension = hasComprehension;
+        hasComprehension = false;
+
+        // The parameters' scope is the function's outermost scope
+        effects.push(new Effects(scopes.size()));
+        effects.peek().memo = function.memo;
 
         beginScope();
         for(Token param : function.params) {
@@ -64,38 +136,192 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         resolve(function.body);
         endScope();
 
+        Effects functionEffects = effects.pop();
+        function.pure = functionEffects.pure;
+        function.calls = new ArrayList<>(functionEffects.calls);
+        function.globals = new ArrayList<>(functionEffects.globals);
+
+        // Caching results is only correct if calling the function does nothing else
+        if(function.memo && !function.pure) {
+            errors.error(function.name, ErrorType.FUNCTION, "Memoised functions can't have side effects");
+        }
+
+        // Memoised functions keep their calls so every result is cached, and closures and comprehensions could
+        // capture the parameters' environment, which tail calls reuse
+        if(!function.memo && !declaresFunction(function.body) && !hasComprehension) markTailCalls(function, function.body, true);
+
         currentFunction = enclosingFunction;
+        hasComprehension = enclosingComprehension;
+    }
+
+    /**
+     * Marks the calls a function makes to itself in tail position, where nothing is left to do once the call
+     * returns except return its value. These are the values of return statements and the last expression of the
+     * body, following the implicit return rules of {@link Interpreter#executeBlock(List, Environment)}.
+     * 
+     * @param function the function being resolved
+     * @param stmt     a statement in the body of the function
+     * @param last     whether the statement's value is implicitly returned
+     */
+    private void markTailCalls(Stmt.Function function, Stmt stmt, boolean last) {
+        if(stmt instanceof Stmt.Return) {
+            markTailCall(function, ((Stmt.Return)stmt).value);
+        } else if(stmt instanceof Stmt.Expression) {
+            if(last) markTailCall(function, ((Stmt.Expression)stmt).expression);
+        } else if(stmt instanceof Stmt.Block) {
+            List<Stmt> statements = ((Stmt.Block)stmt).statements;
+
+            for(int i = 0; i < statements.size(); i++) {
+                markTailCalls(function, statements.get(i), last && i == statements.size() - 1);
+            }
+        } else if(stmt instanceof Stmt.If) {
+            // If statements don't give a value, so only returns in their branches are tail calls
+            markTailCalls(function, ((Stmt.If)stmt).thenBranch, false);
+            if(((Stmt.If)stmt).elseBranch != null) markTailCalls(function, ((Stmt.If)stmt).elseBranch, false);
+        } else if(stmt instanceof Stmt.While) {
+            markTailCalls(function, ((Stmt.While)stmt).body, false);
+        }
+    }
+
+    /**
+     * Marks an expression in tail position if it is a call to the function by name. Whether the callee really is
+     * the function is checked when it is called, as the name could refer to something else by then.
+     * 
+     * @param function the function being resolved
+     * @param expr     the expression in tail position, possibly null
+     */
+    private void markTailCall(Stmt.Function function, Expr expr) {
+        while(expr instanceof Expr.Grouping) expr = ((Expr.Grouping)expr).expression;
+
+        if(expr instanceof Expr.Call) {
+            Expr.Call call = (Expr.Call)expr;
+
+            if(call.callee instanceof Expr.Variable && ((Expr.Variable)call.callee).name.lexeme.equals(function.name.lexeme)) {
+                call.tail = true;
+            }
+        }
+    }
+
+    /**
+     * Checks if a statement declares a function anywhere inside it.
+     * 
+     * @param stmt the statement to check
+     * @return     whether a function is declared
+     */
+    private boolean declaresFunction(Stmt stmt) {
+        if(stmt instanceof Stmt.Function) return true;
+
+        if(stmt instanceof Stmt.Block) {
+            for(Stmt inner : ((Stmt.Block)stmt).statements) {
+                if(declaresFunction(inner)) return true;
+            }
+        }
+
+        if(stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If)stmt;
+            return declaresFunction(ifStmt.thenBranch) || (ifStmt.elseBranch != null && declaresFunction(ifStmt.elseBranch));
+        }
+
+        if(stmt instanceof Stmt.While) return declaresFunction(((Stmt.While)stmt).body);
+
+        return false;
+    }
+
+    /**
+     * Records an assignment, which is a side effect of every function and summand enclosing it that doesn't
+     * declare the variable.
+     * 
+     * @param name  the token of the variable's identifier
+     * @param depth the resolved depth of the variable
+     */
+    private void assignment(Token name, int depth) {
+        int scope = depth == GLOBAL ? -1 : scopes.size() - 1 - depth;
+        if(scope < 0) assignedGlobals.add(name.lexeme); else scopes.get(scope).get(name.lexeme).assigned = true;
+
+        for(Effects enclosing : effects) {
+            if(scope < enclosing.scopeStart) enclosing.pure = false;
+        }
+    }
+
+    /**
+     * Records a read of a variable by any enclosing memoised function that doesn't declare it. Their cached results
+     * would be out of date if the variable were assigned, which is checked once its scope has ended.
+     * 
+     * @param name  the token of the variable's identifier
+     * @param depth the resolved depth of the variable
+     */
+    private void read(Token name, int depth) {
+        int scope = depth == GLOBAL ? -1 : scopes.size() - 1 - depth;
+
+        boolean recorded = false;
+        for(Effects enclosing : effects) {
+            if(!enclosing.memo || scope >= enclosing.scopeStart) continue;
+
+            // Globals can also be assigned by other files, so their caches are cleared when that happens
+            if(scope < 0) enclosing.globals.add(name.lexeme);
+
+            if(recorded) continue;
+            recorded = true;
+            if(scope < 0) memoGlobalReads.computeIfAbsent(name.lexeme, k -> new ArrayList<>()).add(name);
+            else scopes.get(scope).get(name.lexeme).memoReads.add(name);
+        }
+    }
+
+    /**
+     * Reports reads by memoised functions of a variable that is assigned.
+     * 
+     * @param reads the tokens of the reads
+     */
+    private void memoReadsAssigned(List<Token> reads) {
+        for(Token read : reads) {
+            errors.error(read, ErrorType.FUNCTION, "Memoised functions can't read variables from outside them that are assigned");
+        }
+    }
+
+    /**
+     * Records a side effect of every enclosing function and summand.
+     */
+    private void sideEffect() {
+        for(Effects enclosing : effects) {
+            enclosing.pure = false;
+        }
     }
 
     /**
      * Create a new scope block.
      */
     private void beginScope() {
-        scopes.push(new HashMap<String, Boolean>());
+        scopes.push(new HashMap<String, Local>());
     }
 
     /**
      * Ends the current scope block.
      */
     private void endScope() {
-        scopes.pop();
+        for(Local local : scopes.pop().values()) {
+            if(local.assigned) memoReadsAssigned(local.memoReads);
+        }
     }
 
     /**
      * Declare a new variable in the current scope.
      * 
      * @param name the token of the variable's identifier
+     * @return     the slot of the variable, or 0 if it is a global
      */
-    private void declare(Token name) {
-        if(scopes.isEmpty()) return;
+    private int declare(Token name) {
+        if(scopes.isEmpty()) return 0;
 
-        Map<String, Boolean> scope = scopes.peek();
+        Map<String, Local> scope = scopes.peek();
         if(scope.containsKey(name.lexeme)) {
-            JMPL.error(name, ErrorType.VARIABLE, "Already a variable with this name in this scope");
+            errors.error(name, ErrorType.VARIABLE, "Already a variable with this name in this scope");
         }
 
-        // False indicates the variable is 'not ready'
-        scope.put(name.lexeme, false);
+        // Slots are handed out in declaration order, and declarations store theirs as they might not all run
+        int slot = scope.size();
+        scope.put(name.lexeme, new Local(slot));
+
+        return slot;
     }
 
     /**
@@ -106,22 +332,36 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     private void define(Token name) {
         if(scopes.isEmpty()) return;
 
-        scopes.peek().put(name.lexeme, true);
+        scopes.peek().get(name.lexeme).defined = true;
     }
 
     /**
-     * Resolve the a local variable.
+     * Find the depth of a local variable, the number of scopes between the current scope and the one declaring it.
      * 
-     * @param expr the expression with the variable
      * @param name the token of the variable's identifier
+     * @return     the depth of the variable or {@link #GLOBAL} if it is not a local
      */
-    private void resolveLocal(Expr expr, Token name) {
+    private int resolveDepth(Token name) {
         for (int i = scopes.size() - 1; i >= 0; i--) {
             if(scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                return;
+                return scopes.size() - 1 - i;
             }
         }
+
+        return GLOBAL;
+    }
+
+    /**
+     * Find the slot of a local variable that has already been resolved to a depth.
+     * 
+     * @param name  the token of the variable's identifier
+     * @param depth the depth of the variable
+     * @return      the slot index of the variable in its environment
+     */
+    private int resolveSlot(Token name, int depth) {
+        if(depth == GLOBAL) return 0;
+
+        return scopes.get(scopes.size() - 1 - depth).get(name.lexeme).slot;
     }
 
     @Override
@@ -141,7 +381,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name);
         define(stmt.name);
 
         resolveFunction(stmt, FunctionType.FUNCTION);
@@ -161,6 +401,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitOutputStmt(Stmt.Output stmt) {
+        sideEffect();
         resolve(stmt.expression);
         return null;
     }
@@ -168,7 +409,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitReturnStmt(Stmt.Return stmt) {
         if(currentFunction == FunctionType.NONE) {
-            JMPL.error(stmt.keyword, ErrorType.RETURN, "Can't return from top-level code");
+            errors.error(stmt.keyword, ErrorType.RETURN, "Can't return from top-level code");
         }
 
         if(stmt.value != null) {
@@ -180,7 +421,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitLetStmt(Stmt.Let stmt) {
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name);
 
         if(stmt.initialiser != null) {
             resolve(stmt.initialiser);
@@ -200,10 +441,23 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
 
 
+    @Override
+    public Void visitArrayExpr(Expr.Array expr) {
+        for(Expr element : expr.elements) {
+            resolve(element);
+        }
+
+        return null;
+    }
+
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+
+        expr.depth = resolveDepth(expr.name);
+        expr.slot = resolveSlot(expr.name, expr.depth);
+
+        assignment(expr.name, expr.depth);
 
         return null;
     }
@@ -220,6 +474,16 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     public Void visitCallExpr(Expr.Call expr) {
         resolve(expr.callee);
 
+        // Calls to globals are checked when they are needed, as globals can be reassigned
+        // Anything else could be any function, so has to be assumed to have side effects
+        if(expr.callee instanceof Expr.Variable && ((Expr.Variable)expr.callee).depth == GLOBAL) {
+            for(Effects enclosing : effects) {
+                enclosing.calls.add(((Expr.Variable)expr.callee).name.lexeme);
+            }
+        } else {
+            sideEffect();
+        }
+
         for(Expr argument : expr.arguments) {
             resolve(argument);
         }
@@ -227,12 +491,50 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitComprehensionExpr(Expr.Comprehension expr) {
+        resolve(expr.source);
+
+        // The variable is bound in a scope of its own, like a function's parameter
+        beginScope();
+        declare(expr.name);
+        define(expr.name);
+        if(expr.predicate != null) resolve(expr.predicate);
+        if(expr.element != null) resolve(expr.element);
+        endScope();
+
+        // Array comprehensions are evaluated straight away, so only set comprehensions keep the environment
+        if(expr.brace.type == TokenType.LEFT_BRACE) hasComprehension = true;
+
+        return null;
+    }
+
     @Override
     public Void visitGroupingExpr(Expr.Grouping expr) {
         resolve(expr.expression);
         return null;
     }
 
+    @Override
+    public Void visitIndexExpr(Expr.Index expr) {
+        resolve(expr.array);
+        resolve(expr.index);
+
+        return null;
+    }
+
+    @Override
+    public Void visitIndexAssignExpr(Expr.IndexAssign expr) {
+        resolve(expr.array);
+        resolve(expr.index);
+        resolve(expr.value);
+
+        // The array could have been made anywhere, so changing it is always a side effect
+        sideEffect();
+
+        return null;
+    }
+
     @Override
     public Void visitLiteralExpr(Expr.Literal expr) {
         return null;
@@ -249,9 +551,37 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitSequenceOpExpr(Expr.SequenceOp expr) {
         resolve(expr.upper);
+
+        // A declared lower bound lives in its own scope, as the interpreter creates a new environment for it
+        boolean declaresIndex = expr.lower instanceof Stmt.Let;
+        if(declaresIndex) beginScope();
+
         resolve(expr.lower);
+
+        // Resolve the index variable against the sequence operation itself so it can be stepped
+        Token index = declaresIndex ? ((Stmt.Let)expr.lower).name : ((Expr.Assign)((Stmt.Expression)expr.lower).expression).name;
+        expr.depth = resolveDepth(index);
+        expr.slot = resolveSlot(index, expr.depth);
+
+        // Each thread summing in parallel gets its own copy of a declared index's scope
+        effects.push(new Effects(declaresIndex ? scopes.size() - 1 : scopes.size()));
         resolve(expr.summand);
 
+        Effects summandEffects = effects.pop();
+        expr.pure = summandEffects.pure;
+        expr.calls = new ArrayList<>(summandEffects.calls);
+
+        if(declaresIndex) endScope();
+
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        for(Expr element : expr.elements) {
+            resolve(element);
+        }
+
         return null;
     }
 
@@ -264,12 +594,15 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
         // Make sure variable can't be referenced in its own initialiser
-        if(!scopes.isEmpty() && scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-            JMPL.error(expr.name, ErrorType.VARIABLE, "Can't read local variable in its own initialiser");
+        if(!scopes.isEmpty() && scopes.peek().containsKey(expr.name.lexeme) && !scopes.peek().get(expr.name.lexeme).defined) {
+            errors.error(expr.name, ErrorType.VARIABLE, "Can't read local variable in its own initialiser");
         }
 
-        resolveLocal(expr, expr.name);
-        
+        expr.depth = resolveDepth(expr.name);
+        expr.slot = resolveSlot(expr.name, expr.depth);
+
+        read(expr.name, expr.depth);
+
         return null;
     }
 }
@@ -7,12 +7,28 @@ package com.jmpl.j_jmpl;
  * @version 0.1
  */
 public class RuntimeError extends RuntimeException {
+    /** The token where the error occured. Null if the error only knows its line. */
     final Token token;
+    final int line;
     final ErrorType type;
+    /** Name of the file the error occured in, null if it is left out or not known yet. */
+    String file;
 
     RuntimeError(Token token, ErrorType type, String message) {
         super(message);
         this.token = token;
+        this.line = token.line;
+        this.type = type;
+        this.file = token.file;
+    }
+
+    /**
+     * Creates an error that only knows its line. The {@link VM} fills in the file from the chunk that was running.
+     */
+    RuntimeError(int line, ErrorType type, String message) {
+        super(message);
+        this.token = null;
+        this.line = line;
         this.type = type;
     }
 }
@@ -1,71 +1,113 @@
 package com.jmpl.j_jmpl;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.NoSuchElementException;
 
 /**
  * Scanner class for j-jmpl. It reads the input source code character by character
  * and generate tokens from it.
+ * <p>
+ * Tokens are scanned one at a time as the parser asks for them, reading the source through a buffer that only
+ * holds the characters of the current lexeme and what has been read past it, so scanning a large file doesn't
+ * need the whole file (or all of its tokens) in memory. Lexemes are interned in a {@link SymbolTable} straight
+ * from the buffer, so a lexeme that appears many times is only allocated once.
  * 
  * @author Joel Luckett
  * @version 0.1
  */
-class Scanner {
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
-
-    // Scanner variables - keep track of where we are in the source code
+class Scanner implements Iterator<Token> {
+    /** Number of characters read from the source at a time. */
+    private static final int BUFFER_SIZE = 1 << 13;
+
+    private final Reader source;
+    private final ErrorReporter errors;
+    /** Name of the file being scanned, given to each token. */
+    private final String file;
+    /** Characters read from the source, starting part way through the source. Grows to fit long lexemes. */
+    private char[] buffer = new char[BUFFER_SIZE];
+    /** Number of characters in the buffer. */
+    private int limit = 0;
+    /** Whether the whole source has been read into the buffer. */
+    private boolean exhausted = false;
+    /** The token found by the last call to {@link #scanToken()}, null if it didn't find one. */
+    private Token token;
+    /** Whether the EOF token has been given out. */
+    private boolean finished = false;
+    /** Lexemes seen so far, so tokens with the same lexeme share a string. */
+    private final SymbolTable symbols = new SymbolTable();
+
+    // Scanner variables - keep track of where we are in the buffer
     private int start = 0;
     private int current = 0;
     private int line = 1;
 
-    /**
-     * Map containing all reserved keywords.
-     */
-    private static final Map<String, TokenType> keywords;
-
-    static {
-        keywords = new HashMap<>();
-        keywords.put("and",    TokenType.AND); // Alternative to '∧'
-        keywords.put("or",     TokenType.OR); // Alternative to '∨'
-        keywords.put("not",    TokenType.NOT); // Alternative to '¬'
-        keywords.put("true",   TokenType.TRUE);
-        keywords.put("false",  TokenType.FALSE);
-        keywords.put("let",    TokenType.LET);
-        keywords.put("null",   TokenType.NULL);
-        keywords.put("if",     TokenType.IF);
-        keywords.put("then",   TokenType.THEN);
-        keywords.put("else",   TokenType.ELSE);
-        keywords.put("while",  TokenType.WHILE);
-        keywords.put("do",     TokenType.DO);
-        keywords.put("Sum",    TokenType.SUMMATION); // Alternative to '∑'
-        keywords.put("out",    TokenType.OUT);
-        keywords.put("func",   TokenType.FUNCTION);
-        keywords.put("return", TokenType.RETURN);
-        keywords.put("in",     TokenType.IN); // Alternative to '∈'
+    Scanner (String source, ErrorReporter errors) {
+        this(new StringReader(source), errors);
     }
 
-    Scanner (String source) {
+    /**
+     * Creates a scanner that reads source code as it is needed. The reader is not closed.
+     * 
+     * @param source the reader of the source code
+     * @param errors the reporter of errors in the source
+     */
+    Scanner (Reader source, ErrorReporter errors) {
         this.source = source;
+        this.errors = errors;
+        this.file = errors.name();
     }
 
     /**
      * Loops through each character of the source code to generate tokens.
      * 
-     * @return the list of tokens generated by scanning the source code
+     * @return the list of tokens generated by scanning the rest of the source code
      */
     List<Token> scanTokens() {
-        while(!isAtEnd()) {
+        List<Token> tokens = new ArrayList<>();
+
+        while(hasNext()) tokens.add(next());
+
+        return tokens;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !finished;
+    }
+
+    /**
+     * Scans the next token, ending with an EOF token.
+     * 
+     * @return the next token of the source code
+     * @throws UncheckedIOException if an I/O error occurs reading the source
+     */
+    @Override
+    public Token next() {
+        if(finished) throw new NoSuchElementException();
+
+        // Whitespace and comments don't give tokens
+        token = null;
+        while(token == null) {
+            if(isAtEnd()) {
+                // End-Of-File token
+                finished = true;
+                return new Token(TokenType.EOF, "", null, line, file);
+            }
+
             // At the beginning of a lexeme
             start = current;
             scanToken();
         }
 
-        // Append End-Of-File token
-        tokens.add(new Token(TokenType.EOF, "", null, line));
-        return tokens;
+        return token;
     }
 
     /**
@@ -83,7 +125,6 @@ class Scanner {
             case '[': addToken(TokenType.LEFT_SQUARE); break;
             case ']': addToken(TokenType.RIGHT_SQUARE); break;
             case ',': addToken(TokenType.COMMA); break;
-            case '.': addToken(TokenType.DOT); break;
             case '-': addToken(TokenType.MINUS); break;
             case '+': addToken(TokenType.PLUS); break;
             case '^': addToken(TokenType.CARET); break;
@@ -94,6 +135,10 @@ class Scanner {
             case '∧': addToken(TokenType.AND); break;
             case '∨': addToken(TokenType.OR); break;
             case '#': addToken(TokenType.HASHTAG); break;
+            case '∪': addToken(TokenType.UNION); break;
+            case '∩': addToken(TokenType.INTERSECTION); break;
+            case '∖':
+            case '\\': addToken(TokenType.DIFFERENCE); break;
             case '≠': addToken(TokenType.NOT_EQUAL); break;
             case '≥': addToken(TokenType.GREATER_EQUAL); break;
             case '≤': addToken(TokenType.LESS_EQUAL); break;
@@ -104,6 +149,9 @@ class Scanner {
             case ':': 
                 addToken(match('=') ? TokenType.ASSIGN : TokenType.COLON);
                 break;
+            case '.':
+                addToken(match('.') ? TokenType.DOT_DOT : TokenType.DOT);
+                break;
             case '=':
                 addToken(match('=') ? TokenType.EQUAL_EQUAL : TokenType.EQUAL);
                 break;
@@ -120,13 +168,13 @@ class Scanner {
             case '/':
                 if(match('/')) {
                     // If it is a comment, keep consuming until end of the line
-                    while (peek() != '\n' && !isAtEnd()) advance();
+                    while (peek() != '\n' && !isAtEnd()) skip();
                 } else if(match('*')) {
                     // If it is a multi-line comment, keep consuming until closed off
                     while ((peek() != '*' || peekNext() != '/') && !isAtEnd()) {
                         // Increment line counter manually when scanning multi-line comments
                         if(peek() == '\n') line++;
-                        advance();
+                        skip();
                     }
                 } else {
                     addToken(TokenType.SLASH);
@@ -154,30 +202,91 @@ class Scanner {
                 }
                 else {
                     // Else return an error
-                    JMPL.error(line, ErrorType.SYNTAX, "Unexpected character: '" + c + "'");
+                    errors.error(line, ErrorType.SYNTAX, "Unexpected character: '" + c + "'");
                 }
                 break;
         }
     }
 
     /**
-     * Adds an identifier to the token list. 
+     * Adds an identifier token. 
      */
     private void identifier() {
         while(isValidIdentifierCharacter(peek())) advance();
 
         // Check if the identifier matches a reserved keyword
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
+        token = keyword();
 
         // If it doesn't match it's a user defined identifier
-        if(type == null) type = TokenType.IDENTIFIER;
+        if(token == null) token = new Token(TokenType.IDENTIFIER, symbols.intern(buffer, start, current - start), null, line, file);
+    }
+
+    /**
+     * Checks if the current lexeme is a reserved keyword, by its length and first character and then the rest
+     * of its characters, so nothing is allocated unless it is one.
+     * 
+     * @return the keyword's token, or null if the lexeme isn't a keyword
+     */
+    private Token keyword() {
+        switch(current - start) {
+            case 2:
+                switch(buffer[start]) {
+                    case 'o': return keyword("or", TokenType.OR); // Alternative to '∨'
+                    case 'i': return buffer[start + 1] == 'f' ? keyword("if", TokenType.IF) : keyword("in", TokenType.IN); // Alternative to '∈'
+                    case 'd': return keyword("do", TokenType.DO);
+                    default: return null;
+                }
+            case 3:
+                switch(buffer[start]) {
+                    case 'a': return keyword("and", TokenType.AND); // Alternative to '∧'
+                    case 'n': return keyword("not", TokenType.NOT); // Alternative to '¬'
+                    case 'l': return keyword("let", TokenType.LET);
+                    case 'o': return keyword("out", TokenType.OUT);
+                    case 'S': return keyword("Sum", TokenType.SUMMATION); // Alternative to '∑'
+                    default: return null;
+                }
+            case 4:
+                switch(buffer[start]) {
+                    case 't': return buffer[start + 1] == 'r' ? keyword("true", TokenType.TRUE) : keyword("then", TokenType.THEN);
+                    case 'n': return keyword("null", TokenType.NULL);
+                    case 'e': return keyword("else", TokenType.ELSE);
+                    case 'f': return keyword("func", TokenType.FUNCTION);
+                    case 'm': return keyword("memo", TokenType.MEMO); // Modifier for 'func'
+                    default: return null;
+                }
+            case 5:
+                switch(buffer[start]) {
+                    case 'f': return keyword("false", TokenType.FALSE);
+                    case 'w': return keyword("while", TokenType.WHILE);
+                    case 'u': return keyword("union", TokenType.UNION); // Alternative to '∪'
+                    default: return null;
+                }
+            case 6:
+                return buffer[start] == 'r' ? keyword("return", TokenType.RETURN) : null;
+            case 9:
+                return buffer[start] == 'i' ? keyword("intersect", TokenType.INTERSECTION) : null; // Alternative to '∩'
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Checks if the current lexeme is a given keyword, which has the same length.
+     * 
+     * @param keyword the keyword, which becomes the token's lexeme
+     * @param type    the type of the keyword
+     * @return        the keyword's token, or null if the lexeme is something else
+     */
+    private Token keyword(String keyword, TokenType type) {
+        for(int i = 1; i < keyword.length(); i++) {
+            if(buffer[start + i] != keyword.charAt(i)) return null;
+        }
 
-        addToken(type);
+        return new Token(type, keyword, null, line, file);
     }
 
     /**
-     * Adds a number to the tokens list.
+     * Adds a number token.
      * Should be called if a digit is detected.
      * Parses all numbers as doubles.
      */
@@ -195,11 +304,18 @@ class Scanner {
         }
 
         // Add token by converting lexeme to its numerical value
-        addToken(TokenType.NUMBER, Double.parseDouble(source.substring(start, current)));
+        // Numbers are often all different, so they aren't interned
+        String text = new String(buffer, start, current - start);
+        Object value = Double.parseDouble(text);
+
+        // Integers too large to be exact as doubles are kept exactly
+        if(text.indexOf('.') < 0 && (Double)value >= Numbers.EXACT_LIMIT) value = Numbers.valueOf(new BigInteger(text));
+
+        token = new Token(TokenType.NUMBER, text, value, line, file);
     }
 
     /**
-     * Adds string literals to tokens list.
+     * Adds a string literal token.
      * Should be called if a '"' is detected.
      */
     private void string() {
@@ -214,15 +330,16 @@ class Scanner {
         }
 
         if(isAtEnd()) {
-            JMPL.error(line, ErrorType.TYPE, "Unterminated string");
+            errors.error(line, ErrorType.TYPE, "Unterminated string");
             return;
         }
         
         // Advance to the closing "
         advance();
 
-        String value = source.substring(start + 1, current - 1);
-        addToken(TokenType.STRING, value);
+        // Strings are rarely repeated, so they aren't interned
+        String value = new String(buffer, start + 1, current - start - 2);
+        token = new Token(TokenType.STRING, new String(buffer, start, current - start), value, line, file);
     }
 
     /**
@@ -234,7 +351,7 @@ class Scanner {
      */
     private boolean match(char expected) {
         if(isAtEnd()) return false;
-        if(source.charAt(current) != expected) return false;
+        if(buffer[current] != expected) return false;
 
         current++;
         return true;
@@ -246,8 +363,8 @@ class Scanner {
      * @return the next character of the source or null character if at end of file
      */
     private char peek() {
-        if(isAtEnd()) return '\0';
-        return source.charAt(current);
+        if(!available(1)) return '\0';
+        return buffer[current];
     }
 
     /**
@@ -256,8 +373,8 @@ class Scanner {
      * @return the character two ahead or null character if at end of file
      */
     private char peekNext() {
-        if(current + 1 >= source.length()) return '\0';
-        return source.charAt(current + 1);
+        if(!available(2)) return '\0';
+        return buffer[current + 1];
     }
 
     /**
@@ -308,7 +425,7 @@ class Scanner {
      * @return if the scanner is at the end of the source code file
      */
     private boolean isAtEnd() {
-        return current >= source.length();
+        return !available(1);
     }
 
     /**
@@ -318,12 +435,60 @@ class Scanner {
      * @return the next character in the source code
      */
     private char advance() {
+        available(1);
         current++;
-        return source.charAt(current - 1);
+        return buffer[current - 1];
+    }
+
+    /**
+     * Consumes a character that isn't part of a token, such as in a comment, so it doesn't have to stay in the
+     * buffer.
+     */
+    private void skip() {
+        advance();
+        start = current;
+    }
+
+    /**
+     * Reads from the source until the buffer holds a number of characters from current, if the source has them.
+     * 
+     * @param count the number of characters needed
+     * @return      whether the characters are in the buffer
+     */
+    private boolean available(int count) {
+        while(current + count > limit) {
+            if(exhausted) return false;
+            fill();
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads more of the source into the buffer. Characters before the current lexeme are no longer needed, so
+     * they are discarded to make room, and the buffer is only grown if the lexeme fills it.
+     */
+    private void fill() {
+        if(start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, limit - start);
+            limit -= start;
+            current -= start;
+            start = 0;
+        }
+
+        if(limit == buffer.length) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+
+        try {
+            int read = source.read(buffer, limit, buffer.length - limit);
+
+            if(read < 0) exhausted = true; else limit += read;
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     /**
-     * Adds a token to the list of tokens with a null literal.
+     * Gives the token that has been scanned with a null literal.
      * Overloaded version of the {@link #addToken(TokenType, Object)} method,
      * allowing tokens to be added without a literal.
      * 
@@ -335,13 +500,12 @@ class Scanner {
 
 
     /**
-     * Adds a token to the list of tokens.
+     * Gives the token that has been scanned.
      * 
      * @param type    the type of the token to be added
      * @param literal the literal of the token to be added
      */
     private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        token = new Token(type, symbols.intern(buffer, start, current - start), literal, line, file);
     }
 }
@@ -0,0 +1,104 @@
+package com.jmpl.j_jmpl;
+
+import java.util.stream.Stream;
+
+/**
+ * A set value in j-jmpl, whose elements might be stored ({@link JmplSet}) or worked out as they are needed
+ * ({@link LazySet}). Operators that only look at the elements, like '∈' and '#', take any set, and everything
+ * else turns it into a {@link JmplSet} first.
+ *
+ * @author Joel Luckett
+ * @version 0.1
+ */
+interface SetView {
+    /**
+     * Checks if an element is in the set.
+     *
+     * @param element the element
+     * @return        whether it is in the set
+     */
+    boolean contains(Object element);
+
+    /**
+     * Checks if a number is in the set.
+     *
+     * @param number the number
+     * @return       whether it is in the set
+     */
+    default boolean containsNumber(double number) {
+        return contains(number);
+    }
+
+    /**
+     * Gets the number of elements in the set, its cardinality.
+     *
+     * @return the number of elements
+     */
+    long size();
+
+    /**
+     * Checks if the set has no elements.
+     *
+     * @return whether the set is empty
+     */
+    default boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Adds up the elements of the set, exactly if they are integers.
+     *
+     * @return the sum, a double or a large integer, or null if an element isn't a number
+     */
+    Object sum();
+
+    /**
+     * Gets the elements of the set, each once.
+     *
+     * @return a sequential stream of the elements
+     */
+    Stream<Object> stream();
+
+    /**
+     * Gets the elements of the set, stored.
+     *
+     * @return a set of the same elements
+     */
+    JmplSet toSet();
+
+    /**
+     * Gets the union of two sets.
+     *
+     * @param left  the left set
+     * @param right the right set
+     * @return      a new set of the elements in either set
+     */
+    static SetView union(SetView left, SetView right) {
+        return left.toSet().union(right.toSet());
+    }
+
+    /**
+     * Gets the intersection of two sets. Ranges are only looked up in, not stored.
+     *
+     * @param left  the left set
+     * @param right the right set
+     * @return      a new set of the elements in both sets
+     */
+    static SetView intersection(SetView left, SetView right) {
+        if(left instanceof Range && right instanceof Range) return ((Range)left).intersection((Range)right);
+        if(left instanceof Range) return right.toSet().intersection(left);
+
+        return left.toSet().intersection(right instanceof Range ? right : right.toSet());
+    }
+
+    /**
+     * Gets the difference of two sets. A range on the right is only looked up in, not stored.
+     *
+     * @param left  the left set
+     * @param right the right set
+     * @return      a new set of the elements in the left set but not the right
+     */
+    static SetView difference(SetView left, SetView right) {
+        return left.toSet().difference(right instanceof Range ? right : right.toSet());
+    }
+}
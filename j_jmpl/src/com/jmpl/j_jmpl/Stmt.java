@@ -50,11 +50,17 @@ abstract class Stmt {
         final Token name;
         final List<Token> params;
         final Stmt body;
+        final boolean memo;
+        boolean pure;
+        List<String> calls;
+        List<String> globals;
+        int slot;
 
-        Function(Token name, List<Token> params, Stmt body) {
+        Function(Token name, List<Token> params, Stmt body, boolean memo) {
             this.name = name;
             this.params = params;
             this.body = body;
+            this.memo = memo;
         }
 
         @Override
@@ -111,6 +117,7 @@ abstract class Stmt {
     static class Let extends Stmt {
         final Token name;
         final Expr initialiser;
+        int slot;
 
         Let(Token name, Expr initialiser) {
             this.name = name;
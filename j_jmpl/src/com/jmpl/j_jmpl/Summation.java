@@ -0,0 +1,494 @@
+package com.jmpl.j_jmpl;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Closed-form and parallel evaluation of summations for j-jmpl.
+ * <p>
+ * A summand that is a polynomial in the index variable (built from numbers, the index, other variables and
+ * +, -, *, / by a constant and ^ by a whole number) is summed with power sum formulas instead of a loop, so its
+ * cost doesn't depend on the number of terms. Such summands can't have side effects, so evaluating them once
+ * per term or not at all gives the same result. Only polynomials whose terms are all integers are summed this way,
+ * exactly as the loop would be (see {@link Numbers}). Others are left to the loop, which rounds each addition, so
+ * both engines give the same result.
+ * <p>
+ * Other pure summands over large ranges are split into chunks of {@link #CHUNK_SIZE} terms that are summed on a
+ * {@link ForkJoinPool}. Each chunk is summed with compensated (Kahan) addition, and the chunks' totals are added
+ * up in order the same way, so the result doesn't depend on the number of threads. The VM adds up the terms of the
+ * same summations with an {@link Accumulator}, which chunks them the same way, so both engines give the same
+ * result. Terms that are all integers are summed exactly instead, as the loop would.
+ *
+ * @author Joel Luckett
+ * @version 0.1
+ */
+final class Summation {
+    /** Highest power of the index that is summed in closed form. */
+    static final int MAX_DEGREE = 10;
+    /** Fewest terms a summation needs to be summed in parallel. */
+    static final long PARALLEL_THRESHOLD = 1 << 16;
+    /** Number of terms in each chunk. */
+    private static final long CHUNK_SIZE = 1 << 12;
+    /** Most chunks summed in parallel at once, so the memory used doesn't grow with the number of terms. */
+    private static final int BATCH_SIZE = 1 << 10;
+
+    private Summation() {}
+
+    /**
+     * Sums a summand in closed form if it is a polynomial in the index variable.
+     *
+     * @param interpreter the interpreter, used to read variables other than the index
+     * @param sum         the summation expression
+     * @param index       the name of the index variable
+     * @param lower       the lower bound, a whole number
+     * @param upper       the upper bound, a whole number no less than the lower bound
+     * @return            the sum, an exact integer, or null if it has to be summed term by term
+     */
+    static Object closedForm(Interpreter interpreter, Expr.SequenceOp sum, Token index, double lower, double upper) {
+        double[] coefficients = polynomial(interpreter, sum.summand, sum, index);
+        if(coefficients == null) return null;
+
+        // Anything that isn't finite is left to the loop so it gives the same infinities and NaNs
+        for(double coefficient : coefficients) {
+            if(!Double.isFinite(coefficient)) return null;
+        }
+
+        // Only integer terms add up without rounding, so the exact sum is what the loop would give
+        if(!integerValued(coefficients)) return null;
+
+        // The sum of i^k from lower to upper is P_k(upper) - P_k(lower - 1)
+        BigInteger from = new BigDecimal(lower).toBigInteger().subtract(BigInteger.ONE);
+        BigInteger to = new BigDecimal(upper).toBigInteger();
+        BigInteger[] high = powerSums(to, coefficients.length - 1);
+        BigInteger[] low = powerSums(from, coefficients.length - 1);
+
+        // Doubles are exact binary fractions, so the sum can be worked out exactly even if the coefficients aren't integers
+        BigDecimal result = BigDecimal.ZERO;
+        for(int k = 0; k < coefficients.length; k++) {
+            if(coefficients[k] != 0) result = result.add(new BigDecimal(coefficients[k]).multiply(new BigDecimal(high[k].subtract(low[k]))));
+        }
+
+        return Numbers.valueOf(result.toBigIntegerExact());
+    }
+
+    /**
+     * Checks if a polynomial gives an integer for every integer. This is so if it gives one for each of 0 to its
+     * degree, as it is then a sum of binomial coefficients C(i, k) times integers.
+     *
+     * @param coefficients the coefficients of the polynomial indexed by power
+     * @return             whether the polynomial is integer-valued
+     */
+    private static boolean integerValued(double[] coefficients) {
+        for(int i = 0; i < coefficients.length; i++) {
+            BigDecimal value = BigDecimal.ZERO;
+            BigDecimal power = BigDecimal.ONE;
+            for(double coefficient : coefficients) {
+                value = value.add(new BigDecimal(coefficient).multiply(power));
+                power = power.multiply(BigDecimal.valueOf(i));
+            }
+
+            if(value.stripTrailingZeros().scale() > 0) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Finds the power sums P_k(n) = 1^k + 2^k + ... + n^k for every k up to a degree, using the recurrence
+     * (n + 1)^(k + 1) - 1 = sum of C(k + 1, j) * P_j(n) for j from 0 to k. The sums are polynomials in n, so this
+     * also extends them to negative n.
+     *
+     * @param n      the number of terms
+     * @param degree the highest power
+     * @return       the power sums, indexed by power
+     */
+    static BigInteger[] powerSums(BigInteger n, int degree) {
+        BigInteger[] sums = new BigInteger[degree + 1];
+        BigInteger next = n.add(BigInteger.ONE);
+        sums[0] = n;
+
+        for(int k = 1; k <= degree; k++) {
+            BigInteger total = next.pow(k + 1).subtract(BigInteger.ONE);
+
+            // Binomial coefficients C(k + 1, j), built up as j increases
+            BigInteger binomial = BigInteger.ONE;
+            for(int j = 0; j < k; j++) {
+                total = total.subtract(binomial.multiply(sums[j]));
+                binomial = binomial.multiply(BigInteger.valueOf(k + 1 - j)).divide(BigInteger.valueOf(j + 1));
+            }
+
+            // Always divides exactly, as power sums are whole numbers
+            sums[k] = total.divide(BigInteger.valueOf(k + 1));
+        }
+
+        return sums;
+    }
+
+    /**
+     * Checks if a summation is long enough, and its summand pure, to be summed in chunks.
+     *
+     * @param interpreter the interpreter, used to check the functions the summand calls are pure
+     * @param calls       the names of the global functions the summand calls, or null if it isn't pure
+     * @param lower       the lower bound
+     * @param upper       the upper bound
+     * @return            whether it is summed in chunks
+     */
+    static boolean chunked(Interpreter interpreter, List<String> calls, double lower, double upper) {
+        return upper - lower + 1 >= PARALLEL_THRESHOLD && calls != null && interpreter.impureCall(calls) == null;
+    }
+
+    /**
+     * Sums a pure summand in parallel if there are enough terms.
+     * <p>
+     * If any term isn't a number or throws an error, null is returned so the summation is redone by the loop,
+     * which reports the error at the same term it always would. This is safe as the summand is pure. Large
+     * integers are left to the loop too, as they aren't doubles.
+     *
+     * @param interpreter the interpreter evaluating the summation
+     * @param sum         the summation expression, whose index must be declared by its lower bound
+     * @param index       the name of the index variable
+     * @param lower       the lower bound, a whole number
+     * @param upper       the upper bound, a whole number no less than the lower bound
+     * @param enclosing   the environment enclosing the index's scope
+     * @return            the sum, a double or a large integer, or null if it has to be summed by the loop
+     */
+    static Object parallel(Interpreter interpreter, Expr.SequenceOp sum, Token index, double lower, double upper, Environment enclosing) {
+        if(!chunked(interpreter, sum.pure ? sum.calls : null, lower, upper)) return null;
+
+        try {
+            Accumulator total = new Accumulator();
+
+            // Chunks are summed in batches, whose totals are added in order
+            for(double start = lower; start <= upper; start += CHUNK_SIZE * BATCH_SIZE) {
+                int count = (int)Math.min(BATCH_SIZE, Math.ceil((upper - start + 1) / CHUNK_SIZE));
+                Accumulator[] chunks = new Accumulator[count];
+                ForkJoinPool.commonPool().invoke(new Chunks(interpreter, sum, index, start, upper, enclosing, chunks, 0, count));
+
+                for(Accumulator chunk : chunks) total.add(chunk);
+            }
+
+            return total.value();
+        } catch(RuntimeError | NotNumber e) {
+            return null;
+        }
+    }
+
+    /**
+     * Adds a term to a compensated sum.
+     *
+     * @param total the sum and its compensation (the negated error so far)
+     * @param term  the term to add
+     */
+    private static void compensatedAdd(double[] total, double term) {
+        double y = term - total[1];
+        double t = total[0] + y;
+
+        // Past the range of doubles the error is meaningless, and would turn the infinity into NaN
+        total[1] = Double.isInfinite(t) ? 0 : (t - total[0]) - y;
+        total[0] = t;
+    }
+
+    /**
+     * Adds up the terms of a summation the way they are summed in parallel: in chunks of {@link #CHUNK_SIZE}
+     * terms, each summed with compensated addition, whose totals are then added in order with compensated
+     * addition. If every term is an integer the total is exact instead, and if any isn't a double it is what the
+     * loop gives.
+     */
+    static final class Accumulator {
+        /** The total the loop gives, used if every term is an integer or any isn't a double. */
+        private final Numbers.Sum exact = new Numbers.Sum();
+        /** Whether every term so far is an integer small enough to be exact. */
+        private boolean integers = true;
+        /** Whether every term so far is a double. */
+        private boolean doubles = true;
+        /** Compensated sum of the current chunk's terms. */
+        private final double[] chunk = new double[2];
+        /** Number of terms in the current chunk. */
+        private long terms = 0;
+        /** Compensated sum of the totals of the chunks before the current one. */
+        private final double[] total = new double[2];
+
+        /**
+         * Adds the next term.
+         *
+         * @param term a double or a large integer
+         */
+        void add(Object term) {
+            exact.add(term);
+            if(!(term instanceof Double)) {
+                doubles = false;
+                return;
+            }
+
+            double value = (Double)term;
+            if(integers && !Numbers.isExactInteger(value)) integers = false;
+
+            // A full chunk is only added to the total once the next one starts, so a chunk summed alone keeps its sum
+            if(terms == CHUNK_SIZE) {
+                compensatedAdd(total, chunk[0] - chunk[1]);
+                chunk[0] = 0;
+                chunk[1] = 0;
+                terms = 0;
+            }
+
+            compensatedAdd(chunk, value);
+            terms++;
+        }
+
+        /**
+         * Adds the terms of the next chunk, summed by an accumulator of its own. Only chunks can be added to an
+         * accumulator this way, not single terms.
+         *
+         * @param next the accumulator of the chunk
+         */
+        void add(Accumulator next) {
+            exact.add(next.exact.value());
+            integers &= next.integers;
+            doubles &= next.doubles;
+            compensatedAdd(total, next.chunk[0] - next.chunk[1]);
+        }
+
+        /**
+         * Gets the total of the terms added so far.
+         *
+         * @return the total, a double or a large integer
+         */
+        Object value() {
+            if(integers || !doubles) return exact.value();
+
+            // The current chunk is added to a copy, so more terms can still be added
+            double[] result = total.clone();
+            if(terms > 0) compensatedAdd(result, chunk[0] - chunk[1]);
+
+            return result[0] - result[1];
+        }
+    }
+
+    /**
+     * Thrown when a term summed in parallel isn't a double.
+     */
+    private static class NotNumber extends RuntimeException {
+        NotNumber() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * Task that sums a range of chunks of a summation, splitting it in half until it is one chunk.
+     */
+    private static class Chunks extends RecursiveAction {
+        private final Interpreter interpreter;
+        private final Expr.SequenceOp sum;
+        private final Token index;
+        /** The index of the first term of the first chunk in the batch. */
+        private final double start;
+        private final double upper;
+        private final Environment enclosing;
+        /** The accumulators of the batch's chunks, filled in by the tasks. */
+        private final Accumulator[] results;
+        /** The first and one past the last chunk of the batch this task sums. */
+        private final int from, to;
+
+        Chunks(Interpreter interpreter, Expr.SequenceOp sum, Token index, double start, double upper, Environment enclosing, Accumulator[] results, int from, int to) {
+            this.interpreter = interpreter;
+            this.sum = sum;
+            this.index = index;
+            this.start = start;
+            this.upper = upper;
+            this.enclosing = enclosing;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Chunks(interpreter, sum, index, start, upper, enclosing, results, from, middle),
+                          new Chunks(interpreter, sum, index, start, upper, enclosing, results, middle, to));
+                return;
+            }
+
+            double lower = start + (double)from * CHUNK_SIZE;
+            double last = Math.min(upper, lower + CHUNK_SIZE - 1);
+
+            // Each chunk has its own copy of the index's scope and its own interpreter
+            Environment scope = new Environment(enclosing);
+            scope.define(index, sum.slot, lower);
+            Interpreter worker = new Interpreter(interpreter, scope);
+
+            Accumulator total = new Accumulator();
+            for(double i = lower; i <= last; i++) {
+                scope.assignAt(0, sum.slot, i);
+
+                Object term = worker.evaluate(sum.summand);
+                if(!(term instanceof Double)) throw new NotNumber();
+
+                total.add(term);
+            }
+
+            results[from] = total;
+        }
+    }
+
+    //#region Polynomials
+
+    /**
+     * Converts an expression to a polynomial in the index variable.
+     *
+     * @param interpreter the interpreter, used to read variables other than the index
+     * @param expr        the expression to convert
+     * @param sum         the summation the index belongs to
+     * @param index       the name of the index variable
+     * @return            the coefficients of the polynomial indexed by power, or null if it isn't a polynomial
+     */
+    private static double[] polynomial(Interpreter interpreter, Expr expr, Expr.SequenceOp sum, Token index) {
+        double[] coefficients = expand(interpreter, expr, sum, index);
+        if(coefficients == null) return null;
+
+        // Coefficients past 2^53 might have been rounded where the loop would work them out exactly
+        for(double coefficient : coefficients) {
+            if(Math.abs(coefficient) >= Numbers.EXACT_LIMIT) return null;
+        }
+
+        return coefficients;
+    }
+
+    /**
+     * Expands an expression into a polynomial in the index variable, converting its operands with
+     * {@link #polynomial}.
+     *
+     * @param interpreter the interpreter, used to read variables other than the index
+     * @param expr        the expression to expand
+     * @param sum         the summation the index belongs to
+     * @param index       the name of the index variable
+     * @return            the coefficients of the polynomial indexed by power, or null if it isn't a polynomial
+     */
+    private static double[] expand(Interpreter interpreter, Expr expr, Expr.SequenceOp sum, Token index) {
+        if(expr instanceof Expr.Literal) {
+            Object value = ((Expr.Literal)expr).value;
+            return value instanceof Double ? new double[] {(Double)value} : null;
+        }
+
+        if(expr instanceof Expr.Grouping) return expand(interpreter, ((Expr.Grouping)expr).expression, sum, index);
+
+        if(expr instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable)expr;
+
+            // The index resolves to the same place as the summation
+            if(variable.name.lexeme.equals(index.lexeme) && variable.depth == sum.depth && variable.slot == sum.slot) {
+                return new double[] {0, 1};
+            }
+
+            // Other variables can't change while summing, so they are constants
+            Object value = interpreter.evaluate(variable);
+            return value instanceof Double ? new double[] {(Double)value} : null;
+        }
+
+        if(expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            if(unary.operator.type != TokenType.MINUS) return null;
+
+            double[] right = polynomial(interpreter, unary.right, sum, index);
+            return right == null ? null : scale(right, -1);
+        }
+
+        if(expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            double[] left = polynomial(interpreter, binary.left, sum, index);
+            if(left == null) return null;
+            double[] right = polynomial(interpreter, binary.right, sum, index);
+            if(right == null) return null;
+
+            switch(binary.operator.type) {
+                case TokenType.PLUS: return add(left, right, 1);
+                case TokenType.MINUS: return add(left, right, -1);
+                case TokenType.ASTERISK: return multiply(left, right);
+                case TokenType.SLASH:
+                    // Only division by a non-zero constant, the loop reports division by zero
+                    if(right.length != 1 || right[0] == 0) return null;
+
+                    double[] quotient = new double[left.length];
+                    for(int i = 0; i < left.length; i++) quotient[i] = left[i] / right[0];
+                    return quotient;
+                case TokenType.CARET:
+                    if(right.length != 1) return null;
+                    if(left.length == 1) return new double[] {Math.pow(left[0], right[0])};
+
+                    // Only whole powers of polynomials are polynomials
+                    double power = right[0];
+                    if(power < 0 || power > MAX_DEGREE || Math.floor(power) != power) return null;
+
+                    double[] result = {1};
+                    for(int i = 0; i < power && result != null; i++) result = multiply(result, left);
+                    return result;
+                default:
+                    return null;
+            }
+        }
+
+        // Calls, assignments, nested summations and everything else are summed term by term
+        return null;
+    }
+
+    /**
+     * Adds a multiple of one polynomial to another.
+     *
+     * @param left  the first polynomial
+     * @param right the second polynomial
+     * @param sign  1 to add, -1 to subtract
+     * @return      the sum of the polynomials
+     */
+    private static double[] add(double[] left, double[] right, double sign) {
+        double[] result = new double[Math.max(left.length, right.length)];
+
+        for(int i = 0; i < result.length; i++) {
+            double a = i < left.length ? left[i] : 0;
+            double b = i < right.length ? right[i] : 0;
+            result[i] = a + sign * b;
+        }
+
+        return result;
+    }
+
+    /**
+     * Multiplies two polynomials.
+     *
+     * @param left  the first polynomial
+     * @param right the second polynomial
+     * @return      the product, or null if its degree is above {@link #MAX_DEGREE}
+     */
+    private static double[] multiply(double[] left, double[] right) {
+        if(left.length + right.length - 2 > MAX_DEGREE) return null;
+
+        double[] result = new double[left.length + right.length - 1];
+
+        for(int i = 0; i < left.length; i++) {
+            for(int j = 0; j < right.length; j++) {
+                result[i + j] += left[i] * right[j];
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Multiplies a polynomial by a constant.
+     *
+     * @param polynomial the polynomial
+     * @param factor     the constant
+     * @return           the scaled polynomial
+     */
+    private static double[] scale(double[] polynomial, double factor) {
+        double[] result = new double[polynomial.length];
+        for(int i = 0; i < polynomial.length; i++) result[i] = polynomial[i] * factor;
+
+        return result;
+    }
+
+    //#endregion
+}
@@ -0,0 +1,108 @@
+package com.jmpl.j_jmpl;
+
+import java.util.Arrays;
+
+/**
+ * Table of the lexemes a {@link Scanner} has seen, so each distinct lexeme is only allocated once.
+ * <p>
+ * Lexemes are looked up straight from the scanner's buffer without making a string first. Every token with the
+ * same lexeme shares one string, whose hash code is cached, so the maps the resolver and environments key by
+ * name hash it once and compare it by reference.
+ *
+ * @author Joel Luckett
+ * @version 0.1
+ */
+class SymbolTable {
+    /** The interned strings, in the order they were first seen. Their index is their id. */
+    private String[] symbols = new String[64];
+    /** Open addressing hash table of symbol ids plus one, 0 for an empty slot. Its length is a power of two. */
+    private int[] table = new int[128];
+    private int size = 0;
+
+    /** Strings of every ASCII character, shared by all tables as most single character lexemes are operators. */
+    private static final String[] ASCII = new String[128];
+
+    static {
+        for(char c = 0; c < ASCII.length; c++) ASCII[c] = String.valueOf(c);
+    }
+
+    /**
+     * Gets the canonical string for some characters, adding it if it hasn't been seen before.
+     *
+     * @param chars  the buffer holding the characters
+     * @param start  the index of the first character
+     * @param length the number of characters
+     * @return       the string with those characters, the same one for every call with the same characters
+     */
+    String intern(char[] chars, int start, int length) {
+        if(length == 1 && chars[start] < ASCII.length) return ASCII[chars[start]];
+
+        // The same hash as String.hashCode(), so it can be compared with the cached hashes of the symbols
+        int hash = 0;
+        for(int i = start; i < start + length; i++) hash = 31 * hash + chars[i];
+
+        int mask = table.length - 1;
+        int slot = spread(hash) & mask;
+
+        while(table[slot] != 0) {
+            String symbol = symbols[table[slot] - 1];
+            if(symbol.hashCode() == hash && matches(symbol, chars, start, length)) return symbol;
+
+            slot = (slot + 1) & mask;
+        }
+
+        String symbol = new String(chars, start, length);
+        if(size == symbols.length) symbols = Arrays.copyOf(symbols, size * 2);
+        symbols[size++] = symbol;
+        table[slot] = size;
+
+        // Keep the table at most half full so probes stay short
+        if(size * 2 > table.length) rehash();
+
+        return symbol;
+    }
+
+    /**
+     * Doubles the size of the hash table.
+     */
+    private void rehash() {
+        table = new int[table.length * 2];
+        int mask = table.length - 1;
+
+        for(int id = 0; id < size; id++) {
+            int slot = spread(symbols[id].hashCode()) & mask;
+            while(table[slot] != 0) slot = (slot + 1) & mask;
+
+            table[slot] = id + 1;
+        }
+    }
+
+    /**
+     * Mixes the high bits of a hash into the low bits, which are the only ones used to pick a slot.
+     *
+     * @param hash the hash code
+     * @return     the mixed hash
+     */
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Checks if a string has the same characters as part of a buffer.
+     *
+     * @param symbol the string
+     * @param chars  the buffer
+     * @param start  the index of the first character in the buffer
+     * @param length the number of characters
+     * @return       whether they are the same
+     */
+    private static boolean matches(String symbol, char[] chars, int start, int length) {
+        if(symbol.length() != length) return false;
+
+        for(int i = 0; i < length; i++) {
+            if(symbol.charAt(i) != chars[start + i]) return false;
+        }
+
+        return true;
+    }
+}
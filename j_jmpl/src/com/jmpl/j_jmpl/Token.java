@@ -11,12 +11,15 @@ class Token {
     final String lexeme;
     final Object literal;
     final int line;
+    /** Name of the file the token was scanned from, shown in runtime errors. Null if it is left out. */
+    final String file;
 
-    Token (TokenType type, String lexeme, Object literal, int line) {
+    Token (TokenType type, String lexeme, Object literal, int line, String file) {
         this.type = type;
         this.lexeme = lexeme;
         this.literal = literal;
         this.line = line;
+        this.file = file;
     }
 
     public String toString() {
@@ -7,6 +7,7 @@ enum TokenType {
     COMMA, DOT, MINUS, PLUS, SLASH, ASTERISK,          // , . - + / *
     CARET, PERCENT,                                    // ^ %
     SEMICOLON, COLON, PIPE, IN, HASHTAG,               // ; : | ∈ #
+    UNION, INTERSECTION, DIFFERENCE,                   // ∪ ∩ ∖ (\)
  
     // One or two character tokens 
     // This is when a common character can be followed by another
@@ -15,6 +16,7 @@ enum TokenType {
     GREATER, GREATER_EQUAL,                            // > >= (≥)
     LESS, LESS_EQUAL,                                  // < <= (≤)
     MAPS_TO, IMPLIES,                                  // -> => (→, ⇒)
+    DOT_DOT,                                           // ..
 
     // Literals
     IDENTIFIER, STRING, NUMBER,
@@ -25,7 +27,7 @@ enum TokenType {
     LET, NULL,
     IF, THEN, ELSE, WHILE, DO,
     SUMMATION, 
-    OUT, RETURN, FUNCTION,
+    OUT, RETURN, FUNCTION, MEMO,
 
     EOF
 }
\ No newline at end of file
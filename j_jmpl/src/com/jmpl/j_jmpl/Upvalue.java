@@ -0,0 +1,43 @@
+package com.jmpl.j_jmpl;
+
+/**
+ * A variable captured by a {@link VmClosure}. While the variable is in scope the upvalue is open, and refers to the
+ * variable's slot in the stack of the {@link VM} running its function. When the scope ends the upvalue is closed and
+ * keeps the value itself, so every closure that captured the variable still shares it.
+ * 
+ * @author Joel Luckett
+ * @version 0.1
+ */
+class Upvalue {
+    /** The virtual machine whose stack holds the variable, null once the upvalue is closed. */
+    VM vm;
+    /** Index of the variable in the stack while the upvalue is open. */
+    final int index;
+    /** The value of the variable once the upvalue is closed. */
+    private Object value;
+    /** The next open upvalue of the virtual machine, further down its stack. */
+    Upvalue next;
+
+    Upvalue(VM vm, int index, Upvalue next) {
+        this.vm = vm;
+        this.index = index;
+        this.next = next;
+    }
+
+    Object get() {
+        return vm != null ? vm.slot(index) : value;
+    }
+
+    void set(Object value) {
+        if(vm != null) vm.setSlot(index, value);
+        else this.value = value;
+    }
+
+    /**
+     * Moves the variable out of the stack, once its scope has ended.
+     */
+    void close() {
+        value = vm.slot(index);
+        vm = null;
+    }
+}
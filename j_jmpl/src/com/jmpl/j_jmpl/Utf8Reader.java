@@ -0,0 +1,144 @@
+package com.jmpl.j_jmpl;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reader that decodes UTF-8 source code straight from a byte buffer, usually a memory-mapped file, so the source
+ * isn't copied into a byte array or string before it is scanned.
+ * <p>
+ * ASCII is copied across a byte at a time, and multi-byte characters (such as the operators '∑', '∈', '≠' and
+ * '→', which are three bytes each) are decoded by hand. Malformed bytes are replaced with U+FFFD, as they are by
+ * {@link java.io.InputStreamReader}.
+ *
+ * @author Joel Luckett
+ * @version 0.1
+ */
+class Utf8Reader extends Reader {
+    /** Character given for bytes that aren't valid UTF-8. */
+    private static final char REPLACEMENT = '\uFFFD';
+
+    private final ByteBuffer bytes;
+    /** Second half of a surrogate pair that didn't fit in the last read, or 0 if there isn't one. */
+    private char pending = 0;
+
+    /**
+     * Creates a reader of the bytes between a buffer's position and limit.
+     *
+     * @param bytes the UTF-8 encoded source
+     */
+    Utf8Reader(ByteBuffer bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * Memory-maps a file to be read.
+     *
+     * @param  path        the path of the file
+     * @return             the bytes of the file
+     * @throws IOException if an I/O error occurs, or the file is too large to be mapped
+     */
+    static ByteBuffer map(Path path) throws IOException {
+        // The mapping stays valid once the channel is closed
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if(channel.size() > Integer.MAX_VALUE) throw new IOException("File is too large to be mapped: " + path);
+
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    @Override
+    public int read(char[] buffer, int offset, int length) {
+        if(length == 0) return 0;
+
+        int end = offset + length;
+        int i = offset;
+        int position = bytes.position();
+        int limit = bytes.limit();
+
+        if(pending != 0) {
+            buffer[i++] = pending;
+            pending = 0;
+        } else if(position == limit) {
+            return -1;
+        }
+
+        while(i < end && position < limit) {
+            int lead = bytes.get(position);
+
+            // ASCII, by far the most common
+            if(lead >= 0) {
+                buffer[i++] = (char)lead;
+                position++;
+                continue;
+            }
+
+            lead &= 0xFF;
+            int needed;
+            int codePoint;
+            // Range of the byte after the lead, narrowed for some leads to rule out overlong encodings and values
+            // past the last code point
+            int low = 0x80;
+            int high = 0xBF;
+
+            if(lead >= 0xC2 && lead <= 0xDF) {
+                needed = 1;
+                codePoint = lead & 0x1F;
+            } else if(lead >= 0xE0 && lead <= 0xEF) {
+                needed = 2;
+                codePoint = lead & 0x0F;
+                if(lead == 0xE0) low = 0xA0;
+            } else if(lead >= 0xF0 && lead <= 0xF4) {
+                needed = 3;
+                codePoint = lead & 0x07;
+                if(lead == 0xF0) low = 0x90;
+                if(lead == 0xF4) high = 0x8F;
+            } else {
+                // Not a lead byte
+                buffer[i++] = REPLACEMENT;
+                position++;
+                continue;
+            }
+
+            // Take continuation bytes until one is invalid, which starts the next character
+            int next = position + 1;
+            int found = 0;
+            while(found < needed && next < limit) {
+                int continuation = bytes.get(next) & 0xFF;
+                if(continuation < low || continuation > high) break;
+
+                codePoint = (codePoint << 6) | (continuation & 0x3F);
+                next++;
+                found++;
+                low = 0x80;
+                high = 0xBF;
+            }
+
+            position = next;
+
+            // The valid start of a sequence that was cut short is replaced as one character, as are surrogates
+            if(found < needed || (codePoint >= 0xD800 && codePoint <= 0xDFFF)) {
+                buffer[i++] = REPLACEMENT;
+            } else if(codePoint < 0x10000) {
+                buffer[i++] = (char)codePoint;
+            } else {
+                // Characters outside the Basic Multilingual Plane take two chars
+                buffer[i++] = Character.highSurrogate(codePoint);
+
+                if(i < end) buffer[i++] = Character.lowSurrogate(codePoint); else pending = Character.lowSurrogate(codePoint);
+            }
+        }
+
+        bytes.position(position);
+        return i - offset;
+    }
+
+    @Override
+    public void close() {
+        // Nothing to release, a mapping is unmapped when it is garbage collected
+    }
+}
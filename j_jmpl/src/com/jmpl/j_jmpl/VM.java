@@ -0,0 +1,1257 @@
+package com.jmpl.j_jmpl;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Virtual machine for j-jmpl. Executes bytecode produced by the {@link Compiler} in a stack-based dispatch loop.
+ * <p>
+ * Function calls push a {@link CallFrame} instead of recursing through the Java stack, and returns do not throw.
+ * The locals of a call live in slots of its frame on the value stack, and closures reach the variables they capture
+ * through {@link Upvalue}s. The {@link Interpreter} provides the globals and native functions.
+ * <p>
+ * Numbers are kept unboxed: a stack slot holding {@link #NUMBER} has its value in the same slot of a parallel array
+ * of doubles, so arithmetic on locals doesn't allocate. Values are only boxed when they leave the stack, like being
+ * stored in a global, a set or an array, or passed to a native function. Hot closures whose bodies only do
+ * arithmetic are compiled by the {@link NumericCompiler}, as the interpreter's functions are.
+ *
+ * @author Joel Luckett
+ * @version 0.1
+ */
+class VM {
+    /** Maximum number of nested calls before reporting a stack overflow. */
+    private static final int FRAMES_MAX = 1 << 20;
+    /** Marks a stack slot whose value is the number in the same slot of {@link #numbers}. */
+    private static final Object NUMBER = new Object();
+
+    /** Interpreter that owns the globals, passed on to native functions. */
+    private final Interpreter interpreter;
+    /** The environment that stores globals. */
+    private final Environment globals;
+
+    /** The value stack. */
+    private Object[] stack;
+    /** The unboxed numbers of the slots of the value stack that hold {@link #NUMBER}. */
+    private double[] numbers;
+    /** Index of the next free slot in the value stack. */
+    private int top = 0;
+
+    private CallFrame[] frames;
+    private int frameCount = 0;
+    /** The open upvalues, highest in the stack first. */
+    private Upvalue openUpvalues = null;
+
+    /**
+     * A function invocation that is in progress. Frames are kept once their call returns and reused by later calls.
+     */
+    private static class CallFrame {
+        /** The closure being called, null for the top-level script. */
+        VmClosure closure;
+        Chunk chunk;
+        /** Index of the next instruction to execute. */
+        int ip;
+        /** Index in the value stack of the called value. The frame's slots follow it, starting with the arguments. */
+        int base;
+        /** Cache to store the returned value in if the function is memoised, otherwise null. */
+        MemoCache memo;
+        /** The arguments the returned value is cached under. */
+        List<Object> memoArguments;
+
+        /**
+         * Sets the frame up for a new call.
+         *
+         * @param closure the closure being called, null for the top-level script
+         * @param chunk   the chunk of the called function
+         * @param base    the index of the called value in the stack
+         */
+        void reset(VmClosure closure, Chunk chunk, int base) {
+            this.closure = closure;
+            this.chunk = chunk;
+            this.base = base;
+            this.ip = 0;
+            this.memo = null;
+            this.memoArguments = null;
+        }
+    }
+
+    VM(Interpreter interpreter) {
+        this(interpreter, 256, 64);
+    }
+
+    /**
+     * Creates a VM whose stacks start at a given size, and grow when they need to.
+     *
+     * @param interpreter the interpreter that owns the globals
+     * @param slots       the number of slots the value stack starts with
+     * @param frames      the number of frames the call stack starts with
+     */
+    private VM(Interpreter interpreter, int slots, int frames) {
+        this.interpreter = interpreter;
+        this.globals = interpreter.globals;
+        this.stack = new Object[slots];
+        this.numbers = new double[slots];
+        this.frames = new CallFrame[frames];
+    }
+
+    /**
+     * Runs a compiled top-level script.
+     *
+     * @param script the compiled script
+     */
+    void interpret(CompiledFunction script) {
+        try {
+            push(null);
+            pushFrame(null, script, 0);
+            run(0);
+        } catch(RuntimeError e) {
+            locate(e);
+            JMPL.runtimeError(e);
+
+            // Unwind everything that was in progress, keeping the variables closures captured
+            closeUpvalues(0);
+            Arrays.fill(stack, null);
+            top = 0;
+            frameCount = 0;
+        }
+    }
+
+    /**
+     * Calls a closure from outside the dispatch loop and runs it to completion.
+     *
+     * @param closure   the closure to call
+     * @param arguments the arguments of the call
+     * @return          the value returned by the closure
+     */
+    Object call(VmClosure closure, Object[] arguments) {
+        int exitFrame = frameCount;
+
+        push(closure);
+        for(Object argument : arguments) {
+            push(argument);
+        }
+
+        try {
+            // Memoised results don't need a frame
+            if(!callClosure(closure, arguments.length)) return pop();
+
+            return run(exitFrame);
+        } catch(RuntimeError e) {
+            // Located before another VM, with frames of its own, catches it
+            locate(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Fills in the file of an error that only knows its line, from the chunk of the frame that was running.
+     *
+     * @param error the runtime error
+     */
+    private void locate(RuntimeError error) {
+        if(error.token == null && error.file == null && frameCount > 0) error.file = frames[frameCount - 1].chunk.file;
+    }
+
+    /**
+     * Gets the value in a slot of the stack, boxing it if it is a number.
+     *
+     * @param index the index of the slot
+     * @return      the value
+     */
+    Object slot(int index) {
+        return boxed(stack[index], numbers[index]);
+    }
+
+    /**
+     * Sets the value in a slot of the stack.
+     *
+     * @param index the index of the slot
+     * @param value the value
+     */
+    void setSlot(int index, Object value) {
+        stack[index] = value;
+    }
+
+    /**
+     * The dispatch loop. Executes instructions until the frame at a given index returns.
+     *
+     * @param exitFrame the number of frames below the one being run
+     * @return          the value returned by that frame
+     */
+    private Object run(int exitFrame) {
+        CallFrame frame = frames[frameCount - 1];
+        byte[] code = frame.chunk.code;
+        Object[] constants = frame.chunk.constants();
+        int ip = frame.ip;
+        // Index of the frame's first slot
+        int fp = frame.base + 1;
+
+        // The stacks and the top are kept in locals, and written back to the fields before leaving the loop
+        Object[] stack = this.stack;
+        double[] numbers = this.numbers;
+        int sp = top;
+
+        for(;;) {
+            byte op = code[ip++];
+
+            switch(op) {
+                case OpCode.CONSTANT:
+                    stack[sp++] = constants[readShort(code, ip)];
+                    ip += 2;
+                    break;
+                case OpCode.NULL: stack[sp++] = null; break;
+                case OpCode.TRUE: stack[sp++] = true; break;
+                case OpCode.FALSE: stack[sp++] = false; break;
+                case OpCode.POP: sp--; break;
+                case OpCode.GET_GLOBAL: {
+                    int name = readShort(code, ip);
+                    ip += 2;
+
+                    // Undefined globals are looked up by name to report the error
+                    Environment.Global global = frame.chunk.global(name, globals);
+                    stack[sp++] = global != null ? global.value : globals.get((Token)constants[name]);
+                    break;
+                }
+                case OpCode.SET_GLOBAL:
+                case OpCode.STORE_GLOBAL: {
+                    int name = readShort(code, ip);
+                    ip += 2;
+
+                    Object value = boxed(stack[sp - 1], numbers[sp - 1]);
+                    Environment.Global global = frame.chunk.global(name, globals);
+                    if(global != null) globals.assign(global, value);
+                    else globals.assign((Token)constants[name], value);
+
+                    if(op == OpCode.STORE_GLOBAL) sp--;
+                    break;
+                }
+                case OpCode.DEFINE_GLOBAL:
+                    sp--;
+                    globals.define((Token)constants[readShort(code, ip)], 0, boxed(stack[sp], numbers[sp]));
+                    ip += 2;
+                    break;
+                case OpCode.GET_LOCAL: {
+                    int slot = fp + readShort(code, ip);
+                    ip += 2;
+
+                    stack[sp] = stack[slot];
+                    numbers[sp] = numbers[slot];
+                    sp++;
+                    break;
+                }
+                case OpCode.SET_LOCAL:
+                case OpCode.STORE_LOCAL: {
+                    int slot = fp + readShort(code, ip);
+                    ip += 2;
+
+                    stack[slot] = stack[sp - 1];
+                    numbers[slot] = numbers[sp - 1];
+                    if(op == OpCode.STORE_LOCAL) sp--;
+                    break;
+                }
+                case OpCode.GET_UPVALUE: {
+                    Upvalue upvalue = frame.closure.upvalues[readShort(code, ip)];
+                    ip += 2;
+
+                    if(upvalue.vm == this) {
+                        // Open upvalues in this VM's stack are copied without boxing
+                        stack[sp] = stack[upvalue.index];
+                        numbers[sp] = numbers[upvalue.index];
+                    } else {
+                        stack[sp] = upvalue.get();
+                    }
+                    sp++;
+                    break;
+                }
+                case OpCode.SET_UPVALUE:
+                case OpCode.STORE_UPVALUE: {
+                    Upvalue upvalue = frame.closure.upvalues[readShort(code, ip)];
+                    ip += 2;
+
+                    if(upvalue.vm == this) {
+                        stack[upvalue.index] = stack[sp - 1];
+                        numbers[upvalue.index] = numbers[sp - 1];
+                    } else {
+                        upvalue.set(boxed(stack[sp - 1], numbers[sp - 1]));
+                    }
+                    if(op == OpCode.STORE_UPVALUE) sp--;
+                    break;
+                }
+                case OpCode.EQUAL:
+                case OpCode.NOT_EQUAL: {
+                    Object left = stack[sp - 2];
+                    Object right = stack[sp - 1];
+
+                    boolean equal;
+                    if((left == NUMBER || left instanceof Double) && (right == NUMBER || right instanceof Double)) {
+                        double l = left == NUMBER ? numbers[sp - 2] : (double)left;
+                        double r = right == NUMBER ? numbers[sp - 1] : (double)right;
+
+                        // Compared as Double.equals does, so NaN is equal to itself and 0 is not equal to -0
+                        equal = Double.doubleToLongBits(l) == Double.doubleToLongBits(r);
+                    } else {
+                        equal = Interpreter.isEqual(slot(sp - 2), slot(sp - 1));
+                    }
+
+                    sp--;
+                    stack[sp - 1] = op == OpCode.EQUAL ? equal : !equal;
+                    stack[sp] = null;
+                    break;
+                }
+                case OpCode.GREATER:
+                case OpCode.GREATER_EQUAL:
+                case OpCode.LESS:
+                case OpCode.LESS_EQUAL:
+                case OpCode.SUBTRACT:
+                case OpCode.MULTIPLY:
+                case OpCode.DIVIDE:
+                case OpCode.POWER: {
+                    Object left = stack[sp - 2];
+                    Object right = stack[sp - 1];
+
+                    if((left == NUMBER || left instanceof Double) && (right == NUMBER || right instanceof Double)) {
+                        double l = left == NUMBER ? numbers[sp - 2] : (double)left;
+                        double r = right == NUMBER ? numbers[sp - 1] : (double)right;
+
+                        if(op == OpCode.DIVIDE && r == 0) throw new RuntimeError(frame.chunk.lines[ip - 1], ErrorType.ZERO_DIVISION, "Division by 0");
+
+                        sp--;
+                        numberOperation(op, l, r, stack, numbers, sp - 1);
+                        break;
+                    }
+
+                    top = sp;
+                    operation(op, frame.chunk.lines[ip - 1]);
+                    sp = top;
+                    break;
+                }
+                case OpCode.ADD: {
+                    Object left = stack[sp - 2];
+                    Object right = stack[sp - 1];
+
+                    if((left == NUMBER || left instanceof Double) && (right == NUMBER || right instanceof Double)) {
+                        double l = left == NUMBER ? numbers[sp - 2] : (double)left;
+                        double r = right == NUMBER ? numbers[sp - 1] : (double)right;
+
+                        // Number addition, redone exactly if the sum is an integer that might have been rounded
+                        double sum = l + r;
+                        if(Numbers.isInexact(sum, l, r)) {
+                            stack[sp - 2] = Numbers.add(l, r);
+                        } else {
+                            stack[sp - 2] = NUMBER;
+                            numbers[sp - 2] = sum;
+                        }
+                        sp--;
+                        break;
+                    }
+
+                    top = sp;
+                    operation(op, frame.chunk.lines[ip - 1]);
+                    sp = top;
+                    break;
+                }
+                case OpCode.NOT:
+                    stack[sp - 1] = !isTruthful(stack[sp - 1], numbers[sp - 1]);
+                    break;
+                case OpCode.NEGATE: {
+                    Object value = stack[sp - 1];
+
+                    if(value == NUMBER) {
+                        numbers[sp - 1] = -numbers[sp - 1];
+                    } else if(value instanceof Double) {
+                        stack[sp - 1] = NUMBER;
+                        numbers[sp - 1] = -(double)value;
+                    } else if(Numbers.isNumber(value)) {
+                        stack[sp - 1] = Numbers.negate(value);
+                    } else {
+                        throw new RuntimeError(frame.chunk.lines[ip - 1], ErrorType.TYPE, "Invalid operand type(s).");
+                    }
+                    break;
+                }
+                case OpCode.JUMP:
+                    ip += readShort(code, ip) + 2;
+                    break;
+                case OpCode.JUMP_IF_FALSE:
+                    if(!isTruthful(stack[sp - 1], numbers[sp - 1])) {
+                        ip += readShort(code, ip);
+                    }
+                    ip += 2;
+                    break;
+                case OpCode.POP_JUMP_IF_FALSE:
+                    sp--;
+                    if(!isTruthful(stack[sp], numbers[sp])) {
+                        ip += readShort(code, ip);
+                    }
+                    ip += 2;
+                    break;
+                case OpCode.LOOP:
+                    ip += 2;
+                    ip -= readShort(code, ip - 2);
+                    break;
+                case OpCode.CALL: {
+                    int argCount = code[ip++] & 0xff;
+                    frame.ip = ip;
+                    top = sp;
+
+                    Object callee = stack[sp - 1 - argCount];
+                    if(callee instanceof VmClosure) {
+                        // Push a new frame and continue in the callee, unless the result was memoised
+                        if(callClosure((VmClosure)callee, argCount)) {
+                            frame = frames[frameCount - 1];
+                            code = frame.chunk.code;
+                            constants = frame.chunk.constants();
+                            ip = frame.ip;
+                            fp = frame.base + 1;
+                        }
+                    } else {
+                        callNative(callee, argCount, frame.chunk.lines[ip - 2]);
+                    }
+
+                    // The stacks might have grown
+                    stack = this.stack;
+                    numbers = this.numbers;
+                    sp = top;
+                    break;
+                }
+                case OpCode.CLOSURE:
+                    stack[sp++] = closure((CompiledFunction)constants[readShort(code, ip)], frame);
+                    ip += 2;
+                    break;
+                case OpCode.RETURN: {
+                    sp--;
+                    Object result = stack[sp];
+                    double number = numbers[sp];
+                    if(frame.memo != null) frame.memo.put(frame.memoArguments, boxed(result, number));
+
+                    // Discard the frame's slots, moving the variables closures captured out of them
+                    if(openUpvalues != null) closeUpvalues(fp);
+                    frameCount--;
+                    Arrays.fill(stack, frame.base, sp, null);
+                    sp = frame.base;
+
+                    if(frameCount == exitFrame) {
+                        top = sp;
+                        return boxed(result, number);
+                    }
+
+                    stack[sp] = result;
+                    numbers[sp] = number;
+                    sp++;
+
+                    frame = frames[frameCount - 1];
+                    code = frame.chunk.code;
+                    constants = frame.chunk.constants();
+                    ip = frame.ip;
+                    fp = frame.base + 1;
+                    break;
+                }
+                case OpCode.SUM_ADD:
+                    top = sp;
+                    addSum(frame.chunk.lines[ip - 1]);
+                    stack = this.stack;
+                    numbers = this.numbers;
+                    sp = top;
+                    break;
+                case OpCode.SUM_NEXT:
+                    ip += 2;
+                    if(number(sp - 2) > number(sp - 3)) {
+                        // Leave only the sum, and jump past the summand
+                        if(stack[sp - 1] == NUMBER) {
+                            stack[sp - 3] = NUMBER;
+                            numbers[sp - 3] = numbers[sp - 1];
+                        } else {
+                            stack[sp - 3] = sumValue(stack[sp - 1]);
+                        }
+                        stack[sp - 2] = null;
+                        stack[sp - 1] = null;
+                        sp -= 2;
+                        ip += readShort(code, ip - 2);
+                    }
+                    break;
+                default:
+                    // Instructions that aren't usually run in tight loops are run outside the dispatch loop, which
+                    // keeps it small enough to be compiled quickly
+                    frame.ip = ip;
+                    top = sp;
+                    instruction(op, frame);
+                    ip = frame.ip;
+                    stack = this.stack;
+                    numbers = this.numbers;
+                    sp = top;
+                    break;
+            }
+
+            // Make room for the largest number of values one instruction can push
+            if(sp + 2 > stack.length) {
+                grow(sp + 2);
+                stack = this.stack;
+                numbers = this.numbers;
+            }
+        }
+    }
+
+    /**
+     * Runs an instruction that isn't handled by the dispatch loop itself.
+     *
+     * @param op    the instruction
+     * @param frame the current frame, whose instruction pointer is past the instruction
+     */
+    private void instruction(byte op, CallFrame frame) {
+        byte[] code = frame.chunk.code;
+        Object[] constants = frame.chunk.constants();
+        int ip = frame.ip;
+        int fp = frame.base + 1;
+        Object[] stack = this.stack;
+        double[] numbers = this.numbers;
+        int sp = top;
+
+        switch(op) {
+            case OpCode.CLOSE_UPVALUES:
+                closeUpvalues(fp + readShort(code, ip));
+                ip += 2;
+                break;
+            case OpCode.OUTPUT:
+                sp--;
+                System.out.println(Interpreter.stringify(boxed(stack[sp], numbers[sp])));
+                break;
+            case OpCode.SUM_BEGIN: {
+                @SuppressWarnings("unchecked")
+                List<String> calls = (List<String>)constants[readShort(code, ip)];
+                ip += 2;
+
+                top = sp;
+                beginSum(frame.chunk.lines[ip - 3], calls);
+                stack = this.stack;
+                numbers = this.numbers;
+                sp = top;
+                break;
+            }
+            case OpCode.BUILD_SET: {
+                int count = readShort(code, ip);
+                ip += 2;
+
+                JmplSet set = new JmplSet(count);
+                for(int i = sp - count; i < sp; i++) {
+                    if(stack[i] == NUMBER) set.addNumber(numbers[i]); else set.add(stack[i]);
+                }
+
+                // Clear the popped elements so they can be collected
+                Arrays.fill(stack, sp - count, sp, null);
+                sp -= count;
+                stack[sp++] = set;
+                break;
+            }
+            case OpCode.IN: {
+                Object element = boxed(stack[sp - 2], numbers[sp - 2]);
+
+                if(stack[sp - 1] instanceof JmplArray) {
+                    sp--;
+                    stack[sp - 1] = ((JmplArray)stack[sp]).contains(element);
+                    stack[sp] = null;
+                    break;
+                }
+                if(!(stack[sp - 1] instanceof SetView)) {
+                    throw new RuntimeError(frame.chunk.lines[ip - 1], ErrorType.TYPE, "Operand must be a set or an array");
+                }
+
+                sp--;
+                stack[sp - 1] = ((SetView)stack[sp]).contains(element);
+                stack[sp] = null;
+                break;
+            }
+            case OpCode.UNION:
+            case OpCode.INTERSECTION:
+            case OpCode.DIFFERENCE: {
+                Object left = stack[sp - 2];
+                Object right = stack[sp - 1];
+
+                if(!(left instanceof SetView) || !(right instanceof SetView)) {
+                    throw new RuntimeError(frame.chunk.lines[ip - 1], ErrorType.TYPE, "Operands must be sets");
+                }
+
+                sp--;
+                stack[sp - 1] = setOperation(op, (SetView)left, (SetView)right);
+                stack[sp] = null;
+                break;
+            }
+            case OpCode.CARDINALITY:
+                if(stack[sp - 1] instanceof JmplArray) {
+                    numbers[sp - 1] = ((JmplArray)stack[sp - 1]).length();
+                    stack[sp - 1] = NUMBER;
+                    break;
+                }
+                if(!(stack[sp - 1] instanceof SetView)) {
+                    throw new RuntimeError(frame.chunk.lines[ip - 1], ErrorType.TYPE, "Operand must be a set or an array");
+                }
+
+                numbers[sp - 1] = ((SetView)stack[sp - 1]).size();
+                stack[sp - 1] = NUMBER;
+                break;
+            case OpCode.SUM_ELEMENTS: {
+                if(stack[sp - 1] instanceof JmplArray) {
+                    Object sum = ((JmplArray)stack[sp - 1]).sum();
+                    if(sum == null) throw new RuntimeError(frame.chunk.lines[ip - 1], ErrorType.TYPE, "Can only sum arrays of numbers");
+
+                    stack[sp - 1] = sum;
+                    break;
+                }
+                if(!(stack[sp - 1] instanceof SetView)) {
+                    throw new RuntimeError(frame.chunk.lines[ip - 1], ErrorType.TYPE, "Operand must be a set or an array");
+                }
+
+                Object sum = ((SetView)stack[sp - 1]).sum();
+                if(sum == null) throw new RuntimeError(frame.chunk.lines[ip - 1], ErrorType.TYPE, "Can only sum sets of numbers");
+
+                stack[sp - 1] = sum;
+                break;
+            }
+            case OpCode.RANGE: {
+                Object lower = boxed(stack[sp - 2], numbers[sp - 2]);
+                Object upper = boxed(stack[sp - 1], numbers[sp - 1]);
+
+                if(!(lower instanceof Double) || !(upper instanceof Double)) {
+                    if(Numbers.isNumber(lower) && Numbers.isNumber(upper)) {
+                        throw new RuntimeError(frame.chunk.lines[ip - 1], ErrorType.TYPE, "Range bounds must be no larger than 2^53");
+                    }
+                    throw new RuntimeError(frame.chunk.lines[ip - 1], ErrorType.TYPE, "Operands must be numbers");
+                }
+                if(!Range.isBound((Double)lower) || !Range.isBound((Double)upper)) {
+                    throw new RuntimeError(frame.chunk.lines[ip - 1], ErrorType.TYPE, "Range bounds must be integers");
+                }
+
+                sp--;
+                stack[sp - 1] = new Range((Double)lower, (Double)upper);
+                stack[sp] = null;
+                break;
+            }
+            case OpCode.COMPREHENSION: {
+                boolean mapped = readShort(code, ip) != 0;
+                ip += 2;
+
+                if(!(stack[sp - 2] instanceof SetView)) {
+                    throw new RuntimeError(frame.chunk.lines[ip - 1], ErrorType.TYPE, "Elements must be taken from a set");
+                }
+
+                sp--;
+                stack[sp - 1] = new LazySet((SetView)stack[sp - 1], stage((VmClosure)stack[sp]), mapped);
+                stack[sp] = null;
+                break;
+            }
+            case OpCode.BUILD_ARRAY: {
+                int count = readShort(code, ip);
+                ip += 2;
+
+                Object[] elements = new Object[count];
+                for(int i = 0; i < count; i++) {
+                    elements[i] = boxed(stack[sp - count + i], numbers[sp - count + i]);
+                }
+
+                // Clear the popped elements so they can be collected
+                Arrays.fill(stack, sp - count, sp, null);
+                sp -= count;
+                stack[sp++] = new JmplArray(elements);
+                break;
+            }
+            case OpCode.INDEX: {
+                JmplArray array = checkArray(stack[sp - 2], frame.chunk.lines[ip - 1]);
+                int index = stack[sp - 1] == NUMBER
+                    ? elementIndex(array, numbers[sp - 1], frame.chunk.lines[ip - 1])
+                    : elementIndex(array, stack[sp - 1], frame.chunk.lines[ip - 1]);
+
+                sp--;
+                stack[sp - 1] = array.get(index);
+                stack[sp] = null;
+                break;
+            }
+            case OpCode.SET_INDEX: {
+                JmplArray array = checkArray(stack[sp - 3], frame.chunk.lines[ip - 1]);
+                int index = stack[sp - 2] == NUMBER
+                    ? elementIndex(array, numbers[sp - 2], frame.chunk.lines[ip - 1])
+                    : elementIndex(array, stack[sp - 2], frame.chunk.lines[ip - 1]);
+                array.set(index, boxed(stack[sp - 1], numbers[sp - 1]));
+
+                // Leave the value, as with assignment
+                stack[sp - 3] = stack[sp - 1];
+                numbers[sp - 3] = numbers[sp - 1];
+                stack[sp - 2] = null;
+                stack[sp - 1] = null;
+                sp -= 2;
+                break;
+            }
+            case OpCode.ARRAY_COMPREHENSION: {
+                Object source = stack[sp - 2];
+                if(!(source instanceof SetView) && !(source instanceof JmplArray)) {
+                    throw new RuntimeError(frame.chunk.lines[ip - 1], ErrorType.TYPE, "Elements must be taken from a set or an array");
+                }
+
+                JmplArray array = JmplArray.comprehend(source, stage((VmClosure)stack[sp - 1]).open());
+
+                sp--;
+                stack[sp - 1] = array;
+                stack[sp] = null;
+                break;
+            }
+            default:
+                throw new RuntimeError(frame.chunk.lines[ip - 1], ErrorType.SYNTAX, "Unknown instruction " + op);
+        }
+
+        frame.ip = ip;
+        top = sp;
+    }
+
+    /**
+     * Applies a binary operator to the two values on top of the stack when they aren't both doubles, like large
+     * integers or strings.
+     *
+     * @param op   the instruction of the operator
+     * @param line the source line of the operator
+     */
+    private void operation(byte op, int line) {
+        Object left = slot(top - 2);
+        Object right = slot(top - 1);
+
+        if(op == OpCode.ADD) {
+            if(Numbers.isNumber(left) && Numbers.isNumber(right)) {
+                stack[top - 2] = Numbers.add(left, right);
+            } else if(left instanceof String || right instanceof String) {
+                // String concatenation
+                stack[top - 2] = Interpreter.stringify(left) + Interpreter.stringify(right);
+            } else {
+                throw new RuntimeError(line, ErrorType.TYPE, "Invalid operand type(s)");
+            }
+        } else {
+            if(op == OpCode.DIVIDE && Interpreter.isZero(right)) throw new RuntimeError(line, ErrorType.ZERO_DIVISION, "Division by 0");
+            if(!Numbers.isNumber(left) || !Numbers.isNumber(right)) {
+                throw new RuntimeError(line, ErrorType.TYPE, "Operands must be numbers");
+            }
+
+            // Large integers
+            stack[top - 2] = exactOperation(op, left, right);
+        }
+
+        top--;
+        stack[top] = null;
+    }
+
+    /**
+     * Applies an operator that requires two number operands, storing the result in a slot of the stack.
+     *
+     * @param op      the instruction of the operator
+     * @param left    the left operand
+     * @param right   the right operand
+     * @param stack   the value stack
+     * @param numbers the unboxed numbers of the value stack
+     * @param slot    the slot to store the result in
+     */
+    private static void numberOperation(byte op, double left, double right, Object[] stack, double[] numbers, int slot) {
+        double result;
+        switch(op) {
+            case OpCode.GREATER: stack[slot] = left > right; return;
+            case OpCode.GREATER_EQUAL: stack[slot] = left >= right; return;
+            case OpCode.LESS: stack[slot] = left < right; return;
+            case OpCode.LESS_EQUAL: stack[slot] = left <= right; return;
+            case OpCode.DIVIDE: result = left / right; break;
+            case OpCode.SUBTRACT: result = left - right; break;
+            case OpCode.MULTIPLY: result = left * right; break;
+            case OpCode.POWER: result = Math.pow(left, right); break;
+            default: stack[slot] = null; return;
+        }
+
+        // Integers past 2^53 might have been rounded, so they are worked out again exactly
+        if(op != OpCode.DIVIDE && Numbers.isInexact(result, left, right)) {
+            stack[slot] = exactOperation(op, left, right);
+            return;
+        }
+
+        stack[slot] = NUMBER;
+        numbers[slot] = result;
+    }
+
+    /**
+     * Applies an operator that requires two number operands exactly, when an operand is a large integer or the
+     * result might be one.
+     *
+     * @param op    the instruction of the operator
+     * @param left  the left operand
+     * @param right the right operand, which is not 0 for division
+     * @return      the result of the operation
+     */
+    private static Object exactOperation(byte op, Object left, Object right) {
+        switch(op) {
+            case OpCode.SUBTRACT: return Numbers.subtract(left, right);
+            case OpCode.MULTIPLY: return Numbers.multiply(left, right);
+            case OpCode.DIVIDE: return Numbers.divide(left, right);
+            case OpCode.POWER: return Numbers.power(left, right);
+            default: break;
+        }
+
+        // Comparisons, which are false if either operand is NaN
+        Integer order = Numbers.compare(left, right);
+        if(order == null) return false;
+
+        switch(op) {
+            case OpCode.GREATER: return order > 0;
+            case OpCode.GREATER_EQUAL: return order >= 0;
+            case OpCode.LESS: return order < 0;
+            case OpCode.LESS_EQUAL: return order <= 0;
+            default: return null;
+        }
+    }
+
+    /**
+     * Applies an operator that requires two set operands.
+     *
+     * @param op    the instruction of the operator
+     * @param left  the left operand
+     * @param right the right operand
+     * @return      the resulting set
+     */
+    private static SetView setOperation(byte op, SetView left, SetView right) {
+        switch(op) {
+            case OpCode.UNION: return SetView.union(left, right);
+            case OpCode.INTERSECTION: return SetView.intersection(left, right);
+            case OpCode.DIFFERENCE: return SetView.difference(left, right);
+            default: return null;
+        }
+    }
+
+    /**
+     * Checks if the operand of an index is an array.
+     *
+     * @param operand the operand
+     * @param line    the line of the index
+     * @return        the operand as an array
+     */
+    private static JmplArray checkArray(Object operand, int line) {
+        if(operand instanceof JmplArray) return (JmplArray)operand;
+
+        throw new RuntimeError(line, ErrorType.TYPE, "Only arrays can be indexed");
+    }
+
+    /**
+     * Checks the index of an element of an array.
+     *
+     * @param array the array
+     * @param index the index
+     * @param line  the line of the index
+     * @return      the index, checked to be in range
+     */
+    private static int elementIndex(JmplArray array, Object index, int line) {
+        if(index instanceof BigInteger) {
+            throw new RuntimeError(line, ErrorType.INDEX, "Index " + index + " is out of range for length " + array.length());
+        }
+        if(!(index instanceof Double)) {
+            throw new RuntimeError(line, ErrorType.TYPE, "Index must be an integer");
+        }
+
+        return elementIndex(array, (double)index, line);
+    }
+
+    /**
+     * Checks the index of an element of an array, when the index is a number.
+     *
+     * @param array the array
+     * @param index the index
+     * @param line  the line of the index
+     * @return      the index, checked to be in range
+     */
+    private static int elementIndex(JmplArray array, double index, int line) {
+        if(Math.floor(index) != index) {
+            throw new RuntimeError(line, ErrorType.TYPE, "Index must be an integer");
+        }
+        if(index < 0 || index >= array.length()) {
+            throw new RuntimeError(line, ErrorType.INDEX, "Index " + Interpreter.stringify(index) + " is out of range for length " + array.length());
+        }
+
+        return (int)index;
+    }
+
+    /**
+     * Creates the stage of a set or array comprehension from the closure it was compiled to.
+     *
+     * @param closure the closure, which gives an element's value or {@link LazySet#SKIP}
+     * @return        the stage
+     */
+    private LazySet.Stage stage(VmClosure closure) {
+        return () -> {
+            // Each pass runs on a VM of its own, as the set can be used while this one is part way through an instruction.
+            // Passes are made often and usually only call the closure, so they start small
+            VM pass = new VM(interpreter, 16, 4);
+            return element -> pass.call(closure, new Object[] {element});
+        };
+    }
+
+    /**
+     * Creates a closure of a function declared in the function of a frame.
+     *
+     * @param function the compiled function
+     * @param frame    the frame of the enclosing function
+     * @return         the closure
+     */
+    private VmClosure closure(CompiledFunction function, CallFrame frame) {
+        MemoCache memo = null;
+        if(function.declaration.memo) {
+            memo = new MemoCache(interpreter.memoStatistics(function.declaration));
+            globals.watch(function.declaration.globals);
+        }
+
+        Upvalue[] upvalues = new Upvalue[function.capturesLocal.length];
+        for(int i = 0; i < upvalues.length; i++) {
+            int index = function.captureIndices[i];
+            upvalues[i] = function.capturesLocal[i] ? captureUpvalue(frame.base + 1 + index) : frame.closure.upvalues[index];
+        }
+
+        return new VmClosure(this, function, upvalues, memo, globals);
+    }
+
+    /**
+     * Gets the open upvalue of a slot of the stack, creating it if no closure has captured the slot yet.
+     *
+     * @param index the index of the slot
+     * @return      the upvalue
+     */
+    private Upvalue captureUpvalue(int index) {
+        Upvalue previous = null;
+        Upvalue upvalue = openUpvalues;
+        while(upvalue != null && upvalue.index > index) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+
+        if(upvalue != null && upvalue.index == index) return upvalue;
+
+        Upvalue created = new Upvalue(this, index, upvalue);
+        if(previous == null) openUpvalues = created;
+        else previous.next = created;
+
+        return created;
+    }
+
+    /**
+     * Closes the open upvalues of the slots from an index of the stack upwards.
+     *
+     * @param index the index of the lowest slot
+     */
+    private void closeUpvalues(int index) {
+        while(openUpvalues != null && openUpvalues.index >= index) {
+            openUpvalues.close();
+            openUpvalues = openUpvalues.next;
+        }
+    }
+
+    /**
+     * Calls a closure by pushing a new frame. The closure and its arguments are on top of the stack.
+     * <p>
+     * If the closure is compiled, or memoised with the result cached, the closure and arguments are replaced by the
+     * result instead.
+     *
+     * @param closure  the closure to call
+     * @param argCount the number of arguments
+     * @return         whether a frame was pushed
+     */
+    private boolean callClosure(VmClosure closure, int argCount) {
+        // Calls from outside the dispatch loop of a VM with no frames are reported at the function itself
+        int line = closure.function.name.line;
+        if(frameCount > 0) {
+            CallFrame caller = frames[frameCount - 1];
+            line = caller.chunk.lines[caller.ip - 1];
+        }
+
+        if(argCount != closure.arity()) {
+            throw new RuntimeError(line, ErrorType.ARGUMENT, "Expected " + closure.arity() + " arguments but got " + argCount);
+        }
+
+        // Hot closures are compiled and run with unboxed numbers when every argument is a number
+        NumericCompiler.NumericFunction compiled = closure.hot();
+        if(compiled != null) {
+            double[] values = numberArguments(argCount);
+
+            if(values != null) {
+                try {
+                    double result = compiled.invoke(values);
+
+                    Arrays.fill(stack, top - argCount - 1, top, null);
+                    top -= argCount + 1;
+                    stack[top] = NUMBER;
+                    numbers[top++] = result;
+                    return false;
+                } catch(NumericCompiler.Deoptimization e) {
+                    // Compiled code has no side effects, so the call can be run again by the VM
+                }
+            }
+        }
+
+        List<Object> memoArguments = null;
+        if(closure.memo != null) {
+            // The resolver checked the function itself, the functions it calls can only be checked once they exist
+            if(!closure.memoChecked) {
+                String impure = interpreter.impureCall(closure.function.declaration.calls);
+                if(impure != null) {
+                    throw new RuntimeError(closure.function.name, ErrorType.FUNCTION, "Memoised function '" + closure.function.name.lexeme + "' calls '" + impure + "', which has side effects");
+                }
+
+                closure.memoChecked = true;
+            }
+
+            memoArguments = Arrays.asList(arguments(argCount));
+            Object result = closure.memo.get(memoArguments, globals.memoEpoch());
+
+            if(result != MemoCache.MISSING) {
+                Arrays.fill(stack, top - argCount - 1, top, null);
+                top -= argCount + 1;
+                push(result);
+                return false;
+            }
+        }
+
+        if(frameCount == FRAMES_MAX) throw new RuntimeError(line, ErrorType.FUNCTION, "Stack overflow");
+
+        // The arguments become the first slots of the frame
+        CallFrame frame = pushFrame(closure, closure.function, top - argCount - 1);
+        frame.memo = closure.memo;
+        frame.memoArguments = memoArguments;
+
+        return true;
+    }
+
+    /**
+     * Pushes the frame of a call, whose callee and arguments are on top of the stack, and clears the slots of the
+     * rest of its locals.
+     *
+     * @param closure  the closure being called, null for the top-level script
+     * @param function the function being called
+     * @param base     the index of the callee in the stack
+     * @return         the frame
+     */
+    private CallFrame pushFrame(VmClosure closure, CompiledFunction function, int base) {
+        int end = base + 1 + function.slots;
+        grow(end + 2);
+        Arrays.fill(stack, top, Math.max(top, end), null);
+        top = Math.max(top, end);
+
+        if(frameCount == frames.length) frames = Arrays.copyOf(frames, frameCount * 2);
+        CallFrame frame = frames[frameCount];
+        if(frame == null) frame = frames[frameCount] = new CallFrame();
+        frame.reset(closure, function.chunk, base);
+        frameCount++;
+
+        return frame;
+    }
+
+    /**
+     * Calls a value that is not a {@link VmClosure}. The callee and its arguments are on top of the stack.
+     *
+     * @param callee   the value being called
+     * @param argCount the number of arguments
+     * @param line     the source line of the call
+     */
+    private void callNative(Object callee, int argCount, int line) {
+        // If the thing being called isn't a function
+        if(!(callee instanceof JmplCallable)) {
+            throw new RuntimeError(line, ErrorType.SYNTAX, "Only functions can be called");
+        }
+
+        JmplCallable function = (JmplCallable)callee;
+
+        // Check the amount of arguments is the amount expected
+        if(argCount != function.arity()) {
+            throw new RuntimeError(line, ErrorType.ARGUMENT, "Expected " + function.arity() + " arguments but got " + argCount);
+        }
+
+        Object result = function.call(interpreter, arguments(argCount));
+
+        Arrays.fill(stack, top - argCount - 1, top, null);
+        top -= argCount + 1;
+        push(result);
+    }
+
+    /**
+     * Checks the bounds and first summand of a summation, then pushes the accumulator below the summand.
+     *
+     * @param line  the source line of the summation
+     * @param calls the names of the functions the summand calls if it might be summed in chunks, otherwise null
+     */
+    private void beginSum(int line, List<String> calls) {
+        Object upper = slot(top - 3);
+        Object lower = slot(top - 2);
+        Object summand = slot(top - 1);
+
+        // Errors
+        if(!(upper instanceof Double) || Math.floor((Double)upper) != (Double)upper) throw new RuntimeError(line, ErrorType.SYNTAX, "Upper bound must be an integer");
+        if(!(lower instanceof Double) || Math.floor((Double)lower) != (Double)lower) throw new RuntimeError(line, ErrorType.SYNTAX, "Lower bound must be an integer");
+        if(!Numbers.isNumber(summand) && !(summand instanceof String) && !(summand instanceof Character)) throw new RuntimeError(line, ErrorType.SYNTAX, "Summand must be a number or a string");
+        if((Double)lower > (Double)upper) throw new RuntimeError(line, ErrorType.SYNTAX, "Lower bound must be less than or equal to the upper bound");
+
+        // Numbers are summed, in chunks if there are enough terms, and anything else is concatenated
+        if(!Numbers.isNumber(summand)) {
+            stack[top - 1] = new StringBuilder();
+        } else if(Summation.chunked(interpreter, calls, (Double)lower, (Double)upper)) {
+            stack[top - 1] = new Summation.Accumulator();
+        } else {
+            stack[top - 1] = NUMBER;
+            numbers[top - 1] = 0;
+        }
+        push(summand);
+    }
+
+    /**
+     * Adds the summand on top of the stack to the accumulator, steps the index and pushes the new index.
+     *
+     * @param line the source line of the summation
+     */
+    private void addSum(int line) {
+        Object sum = stack[top - 2];
+
+        if((sum == NUMBER || sum instanceof Double) && (stack[top - 1] == NUMBER || stack[top - 1] instanceof Double)) {
+            // Redone exactly if the sum is an integer that might have been rounded
+            double total = number(top - 2);
+            double term = number(top - 1);
+            double next = total + term;
+
+            top--;
+            if(Numbers.isInexact(next, total, term)) {
+                stack[top - 1] = Numbers.add(total, term);
+            } else {
+                stack[top - 1] = NUMBER;
+                numbers[top - 1] = next;
+            }
+        } else {
+            addTerm(line, pop(), sum);
+        }
+
+        double index = number(top - 2) + 1;
+        stack[top - 2] = NUMBER;
+        numbers[top - 2] = index;
+        push(NUMBER);
+        numbers[top - 1] = index;
+    }
+
+    /**
+     * Adds a summand to an accumulator that is not a number, or a summand that is not a number to one that is.
+     *
+     * @param line    the source line of the summation
+     * @param summand the summand
+     * @param sum     the accumulator, which is on top of the stack
+     */
+    private void addTerm(int line, Object summand, Object sum) {
+        sum = boxed(sum, numbers[top - 1]);
+
+        if(sum instanceof StringBuilder) {
+            ((StringBuilder)sum).append(summand);
+        } else if(sum instanceof Summation.Accumulator) {
+            if(!Numbers.isNumber(summand)) throw new RuntimeError(line, ErrorType.SYNTAX, "Summand must be a number or a string");
+            ((Summation.Accumulator)sum).add(summand);
+        } else if(Numbers.isNumber(summand)) {
+            stack[top - 1] = Numbers.add(sum, summand);
+        } else {
+            throw new RuntimeError(line, ErrorType.SYNTAX, "Summand must be a number or a string");
+        }
+    }
+
+    /**
+     * Gets the result of a summation from its accumulator.
+     *
+     * @param sum the accumulator
+     * @return    the sum
+     */
+    private static Object sumValue(Object sum) {
+        if(sum instanceof Summation.Accumulator) return ((Summation.Accumulator)sum).value();
+        if(sum instanceof StringBuilder) return sum.toString();
+
+        return sum;
+    }
+
+    private static int readShort(byte[] code, int offset) {
+        return ((code[offset] & 0xff) << 8) | (code[offset + 1] & 0xff);
+    }
+
+    private void push(Object value) {
+        grow(top + 1);
+        stack[top++] = value;
+    }
+
+    private Object pop() {
+        // Popped slots are not cleared, they are overwritten by the next push or cleared on return
+        top--;
+        return boxed(stack[top], numbers[top]);
+    }
+
+    /**
+     * Makes sure the stack has at least a number of slots.
+     *
+     * @param size the number of slots
+     */
+    private void grow(int size) {
+        if(size <= stack.length) return;
+
+        int length = Math.max(size, stack.length * 2);
+        stack = Arrays.copyOf(stack, length);
+        numbers = Arrays.copyOf(numbers, length);
+    }
+
+    /**
+     * Copies the arguments of a call on top of the stack, boxing any numbers.
+     *
+     * @param argCount the number of arguments
+     * @return         the arguments
+     */
+    private Object[] arguments(int argCount) {
+        Object[] arguments = new Object[argCount];
+        for(int i = 0; i < argCount; i++) {
+            arguments[i] = slot(top - argCount + i);
+        }
+
+        return arguments;
+    }
+
+    /**
+     * Gets the arguments on top of the stack as numbers for compiled code.
+     *
+     * @param argCount the number of arguments
+     * @return         the unboxed arguments, or null if any argument isn't a number
+     */
+    private double[] numberArguments(int argCount) {
+        for(int i = top - argCount; i < top; i++) {
+            if(stack[i] != NUMBER && !(stack[i] instanceof Double)) return null;
+        }
+
+        double[] values = new double[argCount];
+        for(int i = 0; i < argCount; i++) {
+            values[i] = number(top - argCount + i);
+        }
+
+        return values;
+    }
+
+    /**
+     * Gets a number in a slot of the stack, which holds either an unboxed number or a Double.
+     *
+     * @param index the index of the slot
+     * @return      the number
+     */
+    private double number(int index) {
+        return stack[index] == NUMBER ? numbers[index] : (double)stack[index];
+    }
+
+    /**
+     * Gets the value of a stack slot, boxing it if it is an unboxed number.
+     *
+     * @param value  the value in the slot
+     * @param number the unboxed number in the slot
+     * @return       the value
+     */
+    private static Object boxed(Object value, double number) {
+        return value == NUMBER ? (Object)number : value;
+    }
+
+    /**
+     * Checks if the value of a stack slot is truthful, see {@link Interpreter#isTruthful(Object)}.
+     *
+     * @param value  the value in the slot
+     * @param number the unboxed number in the slot
+     * @return       whether the value is truthful
+     */
+    private static boolean isTruthful(Object value, double number) {
+        return value == NUMBER ? number != 0 : Interpreter.isTruthful(value);
+    }
+}
@@ -0,0 +1,98 @@
+package com.jmpl.j_jmpl;
+
+/**
+ * A {@link CompiledFunction} paired with the variables it captured where it was declared. This is the runtime value of a function in the {@link VM}.
+ * 
+ * @author Joel Luckett
+ * @version 0.1
+ */
+class VmClosure implements NumericCompiler.Compilable {
+    final CompiledFunction function;
+    /** The surrounding variables the function captured where it was defined. */
+    final Upvalue[] upvalues;
+    /** Cache of results if the function is memoised, otherwise null. */
+    final MemoCache memo;
+    /** Whether the functions a memoised function calls have been checked to be pure. */
+    boolean memoChecked = false;
+    /** The virtual machine that created this closure. */
+    private final VM vm;
+    /** Globals used by compiled code to look up functions. */
+    private final Environment globals;
+
+    /** Number of times the closure has been called while interpreted. */
+    private int calls = 0;
+    /** Number of calls to interpret before compiling, doubled each time the closure is deoptimised. */
+    private int threshold = JmplFunction.COMPILE_THRESHOLD;
+    /** Compiled form of the closure, null if it isn't compiled. */
+    private NumericCompiler.NumericFunction compiled = null;
+    /** Whether compiling failed, so it shouldn't be tried again. */
+    private boolean uncompilable = false;
+    /** Whether the closure was deoptimised and hasn't been called enough since to be compiled again. */
+    private boolean deoptimised = false;
+
+    VmClosure(VM vm, CompiledFunction function, Upvalue[] upvalues, MemoCache memo, Environment globals) {
+        this.vm = vm;
+        this.function = function;
+        this.upvalues = upvalues;
+        this.memo = memo;
+        this.globals = globals;
+    }
+
+    @Override
+    public int arity() {
+        return function.arity;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        // Only reached when called from outside the VM's dispatch loop
+        return vm.call(this, arguments);
+    }
+
+    /**
+     * Counts a call of the closure by the VM, compiling it once it is hot enough.
+     *
+     * @return the compiled closure, or null if it should be run by the VM
+     */
+    NumericCompiler.NumericFunction hot() {
+        // Read once, as another thread summing in parallel can deoptimise the closure at any time
+        NumericCompiler.NumericFunction function = compiled;
+        if(function == null && !uncompilable && ++calls >= threshold) {
+            deoptimised = false;
+            function = compiled();
+        }
+
+        return function;
+    }
+
+    @Override
+    public NumericCompiler.NumericFunction compiled() {
+        // Compiled code calls compiled functions directly, which would skip the memo cache
+        if(memo != null) return null;
+        // The top-level script and the stages of comprehensions have no declared body to compile
+        if(function.declaration == null || function.declaration.body == null) return null;
+
+        NumericCompiler.NumericFunction numeric = compiled;
+        if(numeric == null && !uncompilable && !deoptimised) {
+            numeric = NumericCompiler.compile(this, function.declaration, globals);
+            compiled = numeric;
+            uncompilable = numeric == null;
+        }
+
+        return numeric;
+    }
+
+    @Override
+    public void deoptimise() {
+        // Backs off, so a closure whose assumptions keep failing is mostly run by the VM
+        compiled = null;
+        deoptimised = true;
+        calls = 0;
+        threshold = Math.min(threshold * 2, JmplFunction.MAX_BACK_OFF);
+    }
+
+    @Override
+    public String toString() {
+        return function.toString();
+    }
+}
@@ -21,28 +21,34 @@ public class GenerateAst {
 
         String outputDir = args[0];
 
-        // defineAst(outputDir, "Expr", Arrays.asList(
-        // "SequenceOp : Token name, Expr upper, Stmt lower, Expr summand",
-        //      "Assign     : Token name, Expr value",
-        //      "Binary     : Expr left, Token operator, Expr right",
-        //      "Call       : Expr callee, Token paren, List<Expr> arguments",
-        //      "Grouping   : Expr expression",
-        //      "Literal    : Object value",
-        //      "Logical    : Expr left, Token operator, Expr right",
-        //      "Unary      : Token operator, Expr right",
-        //      "Variable   : Token name"
-        // ));
-
-        defineAst(outputDir, "Stmt", Arrays.asList(
-        "Block      : List<Stmt> statements",
-             "Expression : Expr expression",
-             "Function   : Token name, List<Token> params, Stmt body",
-             "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
-             "Output     : Expr expression",
-             "Return     : Token keyword, Expr value",
-             "Let        : Token name, Expr initialiser",
-             "While      : Expr condition, Stmt body"
+        // Fields after a '|' are mutable and filled in after parsing (e.g. by the resolver)
+        defineAst(outputDir, "Expr", Arrays.asList(
+        "Array      : Token bracket, List<Expr> elements",
+             "Assign     : Token name, Expr value | int depth = Resolver.GLOBAL, int slot",
+             "Binary     : Expr left, Token operator, Expr right",
+             "Call       : Expr callee, Token paren, List<Expr> arguments | boolean tail, JmplCallable cached",
+             "Comprehension : Token brace, Token name, Expr source, Expr predicate, Expr element",
+             "Grouping   : Expr expression",
+             "Index      : Expr array, Token bracket, Expr index",
+             "IndexAssign : Expr array, Token bracket, Expr index, Expr value",
+             "Literal    : Object value",
+             "Logical    : Expr left, Token operator, Expr right",
+             "SequenceOp : Token name, Expr upper, Stmt lower, Expr summand | int depth = Resolver.GLOBAL, int slot, boolean pure, List<String> calls",
+             "Set        : Token brace, List<Expr> elements",
+             "Unary      : Token operator, Expr right",
+             "Variable   : Token name | int depth = Resolver.GLOBAL, int slot"
         ));
+
+        // defineAst(outputDir, "Stmt", Arrays.asList(
+        // "Block      : List<Stmt> statements",
+        //      "Expression : Expr expression",
+        //      "Function   : Token name, List<Token> params, Stmt body, boolean memo | boolean pure, List<String> calls, List<String> globals, int slot",
+        //      "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
+        //      "Output     : Expr expression",
+        //      "Return     : Token keyword, Expr value",
+        //      "Let        : Token name, Expr initialiser | int slot",
+        //      "While      : Expr condition, Stmt body"
+        // ));
     }
     
     /**
@@ -50,7 +56,7 @@ public class GenerateAst {
      * 
      * @param  outputDir   the directory the file will be added to
      * @param  baseName    the name of the base class
-     * @param  types       a list of types of ast that can be generated. Each element of the list in the format: 'name : parameters'
+     * @param  types       a list of types of ast that can be generated. Each element of the list in the format: 'name : parameters | mutable fields'
      * @throws IOException if an I/O error occurs
      */
     private static void defineAst(String outputDir, String baseName, List<String> types) throws IOException {
@@ -104,9 +110,16 @@ public class GenerateAst {
      * @param writer    the writer of the base class
      * @param baseName  the name of the base class
      * @param className the name of the sub class
-     * @param fieldList String of the parameters of the subclass
+     * @param fieldList String of the parameters of the subclass, optionally followed by '|' and its mutable fields
      */
     private static void defineType(PrintWriter writer, String baseName, String className, String fieldList) {
+        // Split off the mutable fields, which are not set by the constructor
+        String[] mutableFields = new String[0];
+        if(fieldList.contains("|")) {
+            mutableFields = fieldList.split("\\|")[1].trim().split(", ");
+            fieldList = fieldList.split("\\|")[0].trim();
+        }
+
         // Function signature
         writer.println("    static class " + className + " extends " + baseName + " {");
 
@@ -116,6 +129,10 @@ public class GenerateAst {
             writer.println("        final " + field + ";");
         }
 
+        for (String field : mutableFields) {
+            writer.println("        " + field + ";");
+        }
+
         writer.println();
 
         // Constructor